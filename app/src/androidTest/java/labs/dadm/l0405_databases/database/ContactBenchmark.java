@@ -0,0 +1,990 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Build;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import labs.dadm.l0405_databases.BuildConfig;
+import labs.dadm.l0405_databases.io.ContactExporter;
+import labs.dadm.l0405_databases.io.ContactFormat;
+import labs.dadm.l0405_databases.io.ContactImporter;
+import labs.dadm.l0405_databases.io.ProgressListener;
+import labs.dadm.l0405_databases.pojo.Contact;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Benchmark of the persistence layer, run on a device as instrumented tests:
+//     ./gradlew connectedDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=labs.dadm.l0405_databases.database.ContactBenchmark
+// Each test measures operations of CustomSqliteOpenHelper on a separate database file, so the user's
+// contacts are not modified, and fails if the improvement it measures is not there.
+// Once the tests finish, their results are written as JSON (RESULTS_FILE), so the results of different
+// builds can be compared: into the directory that Gradle copies from the device into
+// app/build/outputs/connected_android_test_additional_output, or into the app's files directory otherwise
+@RunWith(AndroidJUnit4.class)
+public class ContactBenchmark {
+
+    // Name of the database file used by the benchmark
+    private static final String DATABASE_NAME = "benchmark_database";
+    // Name of the snapshot file used by the benchmark
+    private static final String SNAPSHOT_NAME = "benchmark_snapshot.bin";
+    // Name of the file contacts are exported to, and imported from
+    private static final String EXPORT_NAME = "benchmark_export";
+    // Name of the file where results are written
+    private static final String RESULTS_FILE = "benchmark_results.json";
+    // Instrumentation argument with the directory whose files Gradle copies from the device
+    private static final String OUTPUT_DIRECTORY_ARGUMENT = "additionalTestOutputDir";
+
+    // Number of contacts in the table for each run of the operations
+    private static final int[] TABLE_SIZES = {1000, 10000, 100000};
+    // Number of measured executions of each single-row operation
+    private static final int ITERATIONS = 50;
+    // Number of measured executions of operations that read or write many rows
+    private static final int BULK_ITERATIONS = 5;
+    // Number of executions discarded before measuring, so statements are compiled and pages cached
+    private static final int WARMUP_ITERATIONS = 5;
+    // Number of contacts written by each bulk insert
+    private static final int BULK_SIZE = 1000;
+    // Number of contacts generated and inserted at once while filling a table
+    private static final int FILL_BATCH_SIZE = 10000;
+    // Number of contacts in the table used to compare each operation opening the database for it,
+    // as it was done before, with the long-lived connection and its compiled statements
+    private static final int CONNECTION_REUSE_TABLE_SIZE = 10000;
+    // Number of contacts read by each page or search
+    private static final int PAGE_SIZE = 50;
+    // Number of contacts in the table, threads reading pages of it, and pages read by each thread,
+    // to measure the latency of reads while another thread writes, with and without write-ahead logging
+    private static final int CONCURRENT_READS_TABLE_SIZE = 10000;
+    private static final int READER_THREADS = 3;
+    private static final int READS_PER_THREAD = 200;
+    // Pages in the write-ahead log that trigger an automatic checkpoint
+    private static final int CHECKPOINT_THRESHOLD = 1000;
+    // Number of contacts in the tables where full-text search is compared with scanning the table
+    private static final int[] SEARCH_TABLE_SIZES = {10000, 100000, 1000000};
+    // Number of letters typed in each search
+    private static final int SEARCH_LENGTH = 3;
+    // Number of contacts exported and imported in each format, to check that memory does not grow with them
+    private static final int[] IMPORT_EXPORT_TABLE_SIZES = {10000, 100000};
+    // Progress reports between two samples of the heap while exporting or importing
+    private static final int HEAP_SAMPLE_INTERVAL = 10;
+    // Growth of the heap retained (bytes) too small to be told from noise
+    private static final long MEMORY_NOISE = 2 * 1024 * 1024;
+    // Number of contacts in the table where duplicates are found and merged, and fraction of them duplicated
+    private static final int DUPLICATES_TABLE_SIZE = 100000;
+    private static final double DUPLICATE_RATE = 0.10;
+    // Selection of the contacts whose name, email, or phone contain a text, as searched before full-text search
+    private static final String SQL_LIKE_SEARCH =
+            ContactContract.ContactEntry.COLUMN_NAME_NAME + " LIKE ? OR " +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL + " LIKE ? OR " +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE + " LIKE ?";
+    // Maximum number of words in the notes of each synthetic contact
+    private static final int MAX_NOTES_WORDS = 60;
+    // Width and height (pixels) of the synthetic photos
+    private static final int PHOTO_SIZE = 512;
+    // Number of different filtered queries executed in turn
+    private static final int QUERY_SHAPES = 4;
+    // Number of compiled statements kept by each connection when it is enabled
+    private static final int STATEMENT_CACHE_SIZE = 50;
+    // Number of updates made between the first synchronization and the incremental one
+    private static final int SYNC_UPDATES = 100;
+    // Journal entries sent in each synchronization request
+    private static final int SYNC_BATCH_SIZE = 500;
+    // Every how many requests the local server fails, and the retry policy used against it
+    private static final int SYNC_FAIL_EVERY = 7;
+    private static final int SYNC_MAX_ATTEMPTS = 3;
+    private static final long SYNC_BACKOFF = 10;
+    // Seed for the synthetic contacts, so every run uses the same data
+    private static final long SEED = 42;
+
+    // Operation to be measured
+    private interface Operation {
+        // Returns the number of rows read or written
+        int run(int iteration);
+    }
+
+    // Operation executed on a connection opened just for it
+    private interface LegacyOperation {
+        // Returns the number of rows read or written
+        int run(SQLiteDatabase database);
+    }
+
+    // Results of all the tests run, written once they finish
+    private static final JSONArray results = new JSONArray();
+
+    private final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+    // Write the results of the tests run, with the build and device they were obtained on
+    @AfterClass
+    public static void writeResults() throws IOException, JSONException {
+        final JSONObject report = new JSONObject();
+        report.put("version", BuildConfig.VERSION_NAME);
+        report.put("buildType", BuildConfig.BUILD_TYPE);
+        report.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        report.put("sdk", Build.VERSION.SDK_INT);
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("results", results);
+
+        final String directory = InstrumentationRegistry.getArguments().getString(OUTPUT_DIRECTORY_ARGUMENT);
+        final File file = directory == null
+                ? new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getFilesDir(), RESULTS_FILE)
+                : new File(directory, RESULTS_FILE);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(report.toString(2));
+        }
+    }
+
+    // Measure the latency of every operation of the helper on tables of growing size
+    @Test
+    public void operations() throws IOException, JSONException {
+        for (int size : TABLE_SIZES) {
+            runForSize(size);
+        }
+    }
+
+    // Measure all the operations on a table with the given number of contacts
+    private void runForSize(int size) throws IOException, JSONException {
+        context.deleteDatabase(DATABASE_NAME);
+        final CustomSqliteOpenHelper helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        final Random random = new Random(SEED);
+        final File snapshotFile = new File(context.getCacheDir(), SNAPSHOT_NAME);
+        try {
+            final long[] ids = fill(helper, random, size);
+
+            // Startup: the first screen of contacts read from the snapshot,
+            // or from the database once it is opened again
+            final ContactSnapshot snapshot = new ContactSnapshot(snapshotFile);
+            snapshot.write(helper.getContactsAfter(null, 0, ContactSnapshot.SIZE));
+            measure("readSnapshot", size, ITERATIONS, iteration ->
+                    snapshot.read().size());
+            measure("openFirstPage", size, BULK_ITERATIONS, iteration -> {
+                helper.close();
+                return helper.getContactsAfter(null, 0, ContactSnapshot.SIZE).size();
+            });
+
+            measure("getContacts", size, BULK_ITERATIONS, iteration ->
+                    helper.getContacts().size());
+            // All the columns, including the notes, which the list does not read
+            measure("getContactsFull", size, BULK_ITERATIONS, iteration ->
+                    helper.getContacts(CustomSqliteOpenHelper.Projection.FULL).size());
+            measure("forEachContact", size, BULK_ITERATIONS, iteration -> {
+                final int[] rows = new int[1];
+                helper.forEachContact(row -> {
+                    rows[0]++;
+                    return true;
+                });
+                return rows[0];
+            });
+            measure("getContactsAfter", size, ITERATIONS, iteration ->
+                    helper.getContactsAfter(null, 0, PAGE_SIZE).size());
+            measure("getContact", size, ITERATIONS, iteration ->
+                    helper.getContact(ids[random.nextInt(ids.length)]) == null ? 0 : 1);
+            // Thumbnails of the photos decoded into new bitmaps, or reusing the previous one,
+            // as the list does once the bitmaps of rows no longer displayed go to its pool
+            final long[] withPhoto = addPhotos(helper, random, ids, WARMUP_ITERATIONS + ITERATIONS);
+            measure("decodeThumbnail", size, ITERATIONS, iteration ->
+                    ContactPhotos.decodeThumbnail(helper.getThumbnail(withPhoto[iteration]), null) == null ? 0 : 1);
+            final Bitmap[] reusable = new Bitmap[1];
+            measure("decodeThumbnailReused", size, ITERATIONS, iteration -> {
+                reusable[0] = ContactPhotos.decodeThumbnail(helper.getThumbnail(withPhoto[iteration]), reusable[0]);
+                return reusable[0] == null ? 0 : 1;
+            });
+            // The same filtered queries reusing their compiled statements, or compiled each time
+            measureFilteredQueries(helper, random, ids, size, STATEMENT_CACHE_SIZE, "findContactsCached");
+            measureFilteredQueries(helper, random, ids, size, 1, "findContactsUncached");
+            helper.setStatementCacheSize(STATEMENT_CACHE_SIZE);
+            measure("searchContacts", size, ITERATIONS, iteration ->
+                    helper.searchContacts(randomSearch(random), PAGE_SIZE).size());
+            measure("addContact", size, ITERATIONS, iteration ->
+                    helper.addContact(generateContact(random)) == -1 ? 0 : 1);
+            measure("addContacts", size, BULK_ITERATIONS, iteration ->
+                    helper.addContacts(generateContacts(random, BULK_SIZE)).length);
+            // Throughput of the provider: the same contacts inserted one by one or with a single call
+            final ContactProvider provider = new ContactProvider(helper);
+            measure("providerInsert", size, BULK_ITERATIONS, iteration -> {
+                int inserted = 0;
+                for (ContentValues values : generateValues(random, BULK_SIZE)) {
+                    if (provider.insert(ContactContract.ContactEntry.CONTENT_URI, values) != null) {
+                        inserted++;
+                    }
+                }
+                return inserted;
+            });
+            measure("providerBulkInsert", size, BULK_ITERATIONS, iteration ->
+                    provider.bulkInsert(ContactContract.ContactEntry.CONTENT_URI, generateValues(random, BULK_SIZE)));
+            measure("updateContact", size, ITERATIONS, iteration -> {
+                final Contact contact = generateContact(random);
+                contact.set_ID(ids[random.nextInt(ids.length)]);
+                helper.updateContact(contact);
+                return 1;
+            });
+            // Each iteration deletes a different contact from the end of the initial ones
+            measure("deleteContact", size, ITERATIONS, iteration -> {
+                final Contact contact = generateContact(random);
+                contact.set_ID(ids[ids.length - 1 - iteration]);
+                helper.deleteContact(contact);
+                return 1;
+            });
+            // Each iteration deletes the next contacts from the start of the initial ones, while there are any
+            measure("deleteContacts", size, BULK_ITERATIONS, iteration -> {
+                final int from = Math.min(iteration * BULK_SIZE, ids.length);
+                return helper.deleteContacts(Arrays.copyOfRange(ids, from, Math.min(from + BULK_SIZE, ids.length)));
+            });
+            // Deleted contacts are purged, and the storage released, by compacting the database
+            measureCompaction(helper, size);
+            measure("forEachContactAfterCompaction", size, BULK_ITERATIONS, iteration -> {
+                final int[] rows = new int[1];
+                helper.forEachContact(row -> {
+                    rows[0]++;
+                    return true;
+                });
+                return rows[0];
+            });
+            // Everything stored so far, and then only the contacts updated afterwards
+            measureSync(helper, random, size);
+        } finally {
+            helper.close();
+            context.deleteDatabase(DATABASE_NAME);
+            snapshotFile.delete();
+            final File[] photos = helper.getPhotoDirectory().listFiles();
+            if (photos != null) {
+                for (File photo : photos) {
+                    photo.delete();
+                }
+            }
+        }
+    }
+
+    // Set a synthetic photo (a random colour) to the given number of contacts taken at random.
+    // Returns the IDs of those contacts
+    private static long[] addPhotos(CustomSqliteOpenHelper helper, Random random, long[] ids, int count)
+            throws IOException {
+        final long[] withPhoto = new long[count];
+        final Bitmap photo = Bitmap.createBitmap(PHOTO_SIZE, PHOTO_SIZE, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(photo);
+        for (int i = 0; i < count; i++) {
+            canvas.drawColor(0xFF000000 | random.nextInt(0x1000000));
+            withPhoto[i] = ids[random.nextInt(ids.length)];
+            helper.setContactPhoto(withPhoto[i], photo);
+        }
+        photo.recycle();
+        return withPhoto;
+    }
+
+    // Compare the latency of single-contact operations and of reading all the contacts done as they were
+    // before the connection was kept open (opening the database for each of them and writing through
+    // ContentValues, so every sentence is compiled again) with the current ones, on the same table.
+    // The single-contact operations must be faster on the connection kept open
+    @Test
+    public void connectionReuse() throws JSONException {
+        final int size = CONNECTION_REUSE_TABLE_SIZE;
+        context.deleteDatabase(DATABASE_NAME);
+        final CustomSqliteOpenHelper helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        final Random random = new Random(SEED);
+        try {
+            final long[] ids = fill(helper, random, size);
+
+            assertFaster(compare("connectionReuseAddContact",
+                    measure("legacyAddContact", size, ITERATIONS, iteration -> runLegacy(helper, database ->
+                            database.insert(ContactContract.ContactEntry.TABLE_NAME, null,
+                                    toValues(generateContact(random))) == -1 ? 0 : 1)),
+                    measure("addContact", size, ITERATIONS, iteration ->
+                            helper.addContact(generateContact(random)) == -1 ? 0 : 1)));
+            assertFaster(compare("connectionReuseUpdateContact",
+                    measure("legacyUpdateContact", size, ITERATIONS, iteration -> runLegacy(helper, database ->
+                            database.update(ContactContract.ContactEntry.TABLE_NAME,
+                                    toValues(generateContact(random)),
+                                    ContactContract.ContactEntry.COLUMN_NAME_ID + "=?",
+                                    new String[]{String.valueOf(ids[random.nextInt(ids.length)])}))),
+                    measure("updateContact", size, ITERATIONS, iteration -> {
+                        final Contact contact = generateContact(random);
+                        contact.set_ID(ids[random.nextInt(ids.length)]);
+                        helper.updateContact(contact);
+                        return 1;
+                    })));
+            // Each iteration deletes a different contact: from the start of the table the legacy way,
+            // and from its end the current one
+            assertFaster(compare("connectionReuseDeleteContact",
+                    measure("legacyDeleteContact", size, ITERATIONS, iteration -> runLegacy(helper, database ->
+                            database.delete(ContactContract.ContactEntry.TABLE_NAME,
+                                    ContactContract.ContactEntry.COLUMN_NAME_ID + "=?",
+                                    new String[]{String.valueOf(ids[iteration])}))),
+                    measure("deleteContact", size, ITERATIONS, iteration -> {
+                        final Contact contact = generateContact(random);
+                        contact.set_ID(ids[ids.length - 1 - iteration]);
+                        helper.deleteContact(contact);
+                        return 1;
+                    })));
+            compare("connectionReuseGetContacts",
+                    measure("legacyGetContacts", size, BULK_ITERATIONS, iteration ->
+                            runLegacy(helper, ContactBenchmark::readAllLegacy)),
+                    measure("getContacts", size, BULK_ITERATIONS, iteration ->
+                            helper.getContacts().size()));
+        } finally {
+            helper.close();
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    // Stress test of reads while writing, with and without write-ahead logging.
+    // Reads must have a lower 95th percentile latency with write-ahead logging
+    @Test
+    public void readsUnderWrites() throws InterruptedException, JSONException {
+        final JSONObject comparison = compare("writeAheadLoggingReadsUnderWrites",
+                measureReadsUnderWrites(false), measureReadsUnderWrites(true));
+        assertTrue("Reads are not faster with write-ahead logging (speedup " +
+                comparison.getDouble("speedupP95") + ")", comparison.getDouble("speedupP95") > 1);
+    }
+
+    // Compare searching the contacts through the full-text index with scanning the table for those
+    // containing the text, on tables of growing size. Full-text search must be faster on the largest one
+    @Test
+    public void search() throws JSONException {
+        JSONObject comparison = null;
+        for (int size : SEARCH_TABLE_SIZES) {
+            comparison = measureSearch(size);
+        }
+        assertFaster(comparison);
+    }
+
+    // Both ways of searching look for the first letters of a word, as typed by the user, and read a page
+    // of results. Adds the latency and queries per second of each one, and the speedup of full-text search,
+    // to the results, and returns the comparison
+    private JSONObject measureSearch(int size) throws JSONException {
+        context.deleteDatabase(DATABASE_NAME);
+        final CustomSqliteOpenHelper helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        final Random random = new Random(SEED);
+        try {
+            fill(helper, random, size);
+            final String sql = CustomSqliteOpenHelper.getContactsQuery(
+                    CustomSqliteOpenHelper.Projection.SUMMARY, SQL_LIKE_SEARCH, null, String.valueOf(PAGE_SIZE));
+            final JSONObject scan = measure("searchLike", size, ITERATIONS, iteration -> {
+                final String pattern = "%" + randomSearch(random) + "%";
+                return readSummaries(helper.getReadableDatabase().rawQuery(sql, new String[]{pattern, pattern, pattern}));
+            });
+            scan.put("queriesPerSecond", 1000000000L / Math.max(1, scan.getLong("meanNanos")));
+            final JSONObject fullText = measure("searchFullText", size, ITERATIONS, iteration ->
+                    helper.searchContacts(randomSearch(random), PAGE_SIZE).size());
+            fullText.put("queriesPerSecond", 1000000000L / Math.max(1, fullText.getLong("meanNanos")));
+            return compare("fullTextSearch", scan, fullText);
+        } finally {
+            helper.close();
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    // Export the contacts of tables of increasing size to each format, and import the files into empty tables,
+    // adding the rows per second and the heap retained to the results. Every contact must be exported and
+    // imported, and memory must be constant: the heap retained with the most contacts must not be larger,
+    // beyond noise, than with the previous size
+    @Test
+    public void importExport() throws IOException, InterruptedException, JSONException {
+        final File file = new File(context.getCacheDir(), EXPORT_NAME);
+        try {
+            for (ContactFormat format : ContactFormat.values()) {
+                JSONObject previousExport = null;
+                JSONObject previousImport = null;
+                for (int size : IMPORT_EXPORT_TABLE_SIZES) {
+                    final JSONObject export = measureExport(file, format, size);
+                    final JSONObject imported = measureImport(file, format, size);
+                    assertEquals(size, export.getLong("rows"));
+                    assertEquals(size, imported.getLong("rows"));
+                    if (previousExport != null) {
+                        assertConstantMemory(previousExport, export);
+                        assertConstantMemory(previousImport, imported);
+                    }
+                    previousExport = export;
+                    previousImport = imported;
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Export a table of the given size to the file with ContactExporter.
+    // Adds the result to the results, and returns it
+    private JSONObject measureExport(File file, ContactFormat format, int size) throws IOException, JSONException {
+        context.deleteDatabase(DATABASE_NAME);
+        final CustomSqliteOpenHelper helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        try {
+            fill(helper, new Random(SEED), size);
+            final HeapSampler sampler = new HeapSampler();
+            final long start = System.nanoTime();
+            final long rows = new ContactExporter(helper).exportContacts(file, format, sampler);
+            return addStreamResult("export" + getFormatName(format), size, rows,
+                    System.nanoTime() - start, sampler, file.length());
+        } finally {
+            helper.close();
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    // Import the file into an empty table with ContactImporter.
+    // Adds the result to the results, and returns it
+    private JSONObject measureImport(File file, ContactFormat format, int size)
+            throws IOException, InterruptedException, JSONException {
+        context.deleteDatabase(DATABASE_NAME);
+        final CustomSqliteOpenHelper helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        try (InputStream in = new FileInputStream(file)) {
+            final HeapSampler sampler = new HeapSampler();
+            final long start = System.nanoTime();
+            final long rows = new ContactImporter(helper).importContacts(in, format, sampler);
+            return addStreamResult("import" + getFormatName(format), size, rows,
+                    System.nanoTime() - start, sampler, file.length());
+        } finally {
+            helper.close();
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    // Add the result of an export or import to the results, and return it.
+    // The time spent sampling the heap is not included in the throughput
+    private static JSONObject addStreamResult(String name, int size, long rows, long elapsed, HeapSampler sampler,
+                                              long fileBytes) throws JSONException {
+        final long measured = elapsed - sampler.getSamplingNanos();
+        final JSONObject result = new JSONObject();
+        result.put("operation", name);
+        result.put("tableSize", size);
+        result.put("rows", rows);
+        result.put("elapsedNanos", measured);
+        result.put("rowsPerSecond", rows * 1000000000L / Math.max(1, measured));
+        result.put("fileBytes", fileBytes);
+        result.put("retainedHeapBytes", sampler.getRetainedBytes());
+        results.put(result);
+        return result;
+    }
+
+    // Add to the result of the larger table the growth of the heap retained over the smaller one,
+    // and fail if it is larger than noise
+    private static void assertConstantMemory(JSONObject smaller, JSONObject larger) throws JSONException {
+        final long growth = larger.getLong("retainedHeapBytes") - smaller.getLong("retainedHeapBytes");
+        larger.put("retainedHeapGrowthBytes", growth);
+        assertTrue(larger.getString("operation") + " retained " + growth + " more bytes with " +
+                larger.getInt("tableSize") + " contacts than with " + smaller.getInt("tableSize"),
+                growth <= MEMORY_NOISE);
+    }
+
+    // Get the name of the format as used in the results
+    private static String getFormatName(ContactFormat format) {
+        return format == ContactFormat.CSV ? "Csv" : "VCard";
+    }
+
+    // Find the groups of duplicated contacts in a table where DUPLICATE_RATE of the contacts are another one
+    // written differently, and merge each group into its first contact. Adds the latency of finding the groups
+    // and of merging one of them, and the time to merge all the rest, to the results.
+    // Every duplicate must be found, and no group must be left once they are merged
+    @Test
+    public void duplicates() throws JSONException {
+        final int size = DUPLICATES_TABLE_SIZE;
+        context.deleteDatabase(DATABASE_NAME);
+        final CustomSqliteOpenHelper helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        try {
+            final int duplicates = fillWithDuplicates(helper, new Random(SEED), size);
+            final JSONObject find = measure("findDuplicates", size, BULK_ITERATIONS, iteration ->
+                    helper.findDuplicates().size());
+            final List<long[]> groups = helper.findDuplicates();
+            int grouped = 0;
+            for (long[] group : groups) {
+                grouped += group.length - 1;
+            }
+            find.put("duplicatesGenerated", duplicates);
+            find.put("groups", groups.size());
+            assertTrue("Found " + grouped + " duplicates of " + duplicates, grouped >= duplicates);
+
+            // Each iteration merges a different group
+            measure("mergeContacts", size, ITERATIONS, iteration ->
+                    mergeGroup(helper, groups.get(iteration)));
+            int merged = 0;
+            final long start = System.nanoTime();
+            for (int i = WARMUP_ITERATIONS + ITERATIONS; i < groups.size(); i++) {
+                merged += mergeGroup(helper, groups.get(i));
+            }
+            final long elapsed = System.nanoTime() - start;
+
+            final JSONObject result = new JSONObject();
+            result.put("operation", "mergeAllDuplicates");
+            result.put("tableSize", size);
+            result.put("groups", groups.size() - WARMUP_ITERATIONS - ITERATIONS);
+            result.put("contactsMerged", merged);
+            result.put("elapsedNanos", elapsed);
+            result.put("groupsPerSecond",
+                    (groups.size() - WARMUP_ITERATIONS - ITERATIONS) * 1000000000L / Math.max(1, elapsed));
+            result.put("remainingGroups", helper.findDuplicates().size());
+            results.put(result);
+            assertEquals(0, result.getInt("remainingGroups"));
+        } finally {
+            helper.close();
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    // Merge a group of duplicated contacts into its first one.
+    // Returns the number of contacts merged into it
+    private static int mergeGroup(CustomSqliteOpenHelper helper, long[] group) {
+        helper.mergeContacts(group[0], Arrays.copyOfRange(group, 1, group.length));
+        return group.length - 1;
+    }
+
+    // Several threads read pages of contacts starting at random ones, as the list does while scrolling,
+    // while another thread keeps updating contacts, with or without write-ahead logging
+    // (without it, readers wait for the writer to release the only connection).
+    // Adds the latency of the reads and the throughput of the writes to the results, and returns them
+    private JSONObject measureReadsUnderWrites(boolean writeAheadLogging) throws InterruptedException, JSONException {
+        final int size = CONCURRENT_READS_TABLE_SIZE;
+        context.deleteDatabase(DATABASE_NAME);
+        final CustomSqliteOpenHelper helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        helper.configureWriteAheadLogging(
+                writeAheadLogging, CustomSqliteOpenHelper.CheckpointPolicy.AUTOMATIC, CHECKPOINT_THRESHOLD);
+        final Random random = new Random(SEED);
+        try {
+            final long[] ids = fill(helper, random, size);
+            // Contacts the pages start at
+            final List<Contact> keys = helper.getContacts();
+
+            final AtomicBoolean reading = new AtomicBoolean(true);
+            final long[] writes = new long[1];
+            final Thread writer = new Thread(() -> {
+                final Random writerRandom = new Random(SEED + 1);
+                while (reading.get()) {
+                    final Contact contact = generateContact(writerRandom);
+                    contact.set_ID(ids[writerRandom.nextInt(ids.length)]);
+                    helper.updateContact(contact);
+                    writes[0]++;
+                }
+            });
+            final long[][] samples = new long[READER_THREADS][READS_PER_THREAD];
+            final Thread[] readers = new Thread[READER_THREADS];
+            for (int t = 0; t < readers.length; t++) {
+                final long[] threadSamples = samples[t];
+                final Random readerRandom = new Random(SEED + 2 + t);
+                readers[t] = new Thread(() -> {
+                    for (int i = 0; i < threadSamples.length; i++) {
+                        final Contact key = keys.get(readerRandom.nextInt(keys.size()));
+                        final long start = System.nanoTime();
+                        helper.getContactsAfter(key.getName(), key.get_ID(), PAGE_SIZE);
+                        threadSamples[i] = System.nanoTime() - start;
+                    }
+                });
+            }
+
+            final long start = System.nanoTime();
+            writer.start();
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            try {
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+            } finally {
+                reading.set(false);
+                writer.join();
+            }
+            final long elapsed = System.nanoTime() - start;
+
+            final long[] sorted = new long[READER_THREADS * READS_PER_THREAD];
+            for (int t = 0; t < READER_THREADS; t++) {
+                System.arraycopy(samples[t], 0, sorted, t * READS_PER_THREAD, READS_PER_THREAD);
+            }
+            Arrays.sort(sorted);
+            final JSONObject result = new JSONObject();
+            result.put("operation", writeAheadLogging ? "readsUnderWritesWal" : "readsUnderWritesNoWal");
+            result.put("tableSize", size);
+            result.put("readerThreads", READER_THREADS);
+            result.put("reads", sorted.length);
+            result.put("p50Nanos", percentile(sorted, 50));
+            result.put("p95Nanos", percentile(sorted, 95));
+            result.put("p99Nanos", percentile(sorted, 99));
+            result.put("maxNanos", sorted[sorted.length - 1]);
+            result.put("writes", writes[0]);
+            result.put("writesPerSecond", writes[0] * 1000000000L / Math.max(1, elapsed));
+            results.put(result);
+            return result;
+        } finally {
+            helper.close();
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    // Execute an operation as it was done before the connection was kept open:
+    // the database is opened for it, and closed (with every statement compiled) once it is done
+    private static int runLegacy(CustomSqliteOpenHelper helper, LegacyOperation operation) {
+        helper.close();
+        final SQLiteDatabase database = helper.getWritableDatabase();
+        try {
+            return operation.run(database);
+        } finally {
+            helper.close();
+        }
+    }
+
+    // Read all the contacts as it was done before: sorted by name, and creating a Contact for each one.
+    // Returns the number of contacts read
+    private static int readAllLegacy(SQLiteDatabase database) {
+        return readSummaries(database.query(
+                ContactContract.ContactEntry.TABLE_NAME,
+                new String[]{ContactContract.ContactEntry.COLUMN_NAME_ID,
+                        ContactContract.ContactEntry.COLUMN_NAME_NAME,
+                        ContactContract.ContactEntry.COLUMN_NAME_EMAIL,
+                        ContactContract.ContactEntry.COLUMN_NAME_PHONE},
+                null,
+                null,
+                null,
+                null,
+                ContactContract.ContactEntry.COLUMN_NAME_NAME,
+                null));
+    }
+
+    // Create a Contact for each row of the cursor (its ID, name, email, and phone, in that order), and close it.
+    // Returns the number of contacts read
+    private static int readSummaries(Cursor cursor) {
+        final List<Contact> contacts = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            final Contact contact = new Contact(cursor.getString(1), cursor.getString(2), cursor.getString(3));
+            contact.set_ID(cursor.getLong(0));
+            contacts.add(contact);
+        }
+        cursor.close();
+        return contacts.size();
+    }
+
+    // Execute an operation, measure its latency, and add its statistics to the results.
+    // Returns the statistics added
+    private static JSONObject measure(String name, int size, int iterations, Operation operation) throws JSONException {
+        final long[] samples = new long[iterations];
+        long rows = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + iterations; i++) {
+            final long start = System.nanoTime();
+            final int count = operation.run(i);
+            final long elapsed = System.nanoTime() - start;
+            if (i >= WARMUP_ITERATIONS) {
+                samples[i - WARMUP_ITERATIONS] = elapsed;
+                rows += count;
+            }
+        }
+        Arrays.sort(samples);
+
+        long total = 0;
+        for (long sample : samples) {
+            total += sample;
+        }
+        final JSONObject result = new JSONObject();
+        result.put("operation", name);
+        result.put("tableSize", size);
+        result.put("iterations", iterations);
+        result.put("rowsPerIteration", rows / iterations);
+        result.put("meanNanos", total / iterations);
+        result.put("minNanos", samples[0]);
+        result.put("p50Nanos", percentile(samples, 50));
+        result.put("p95Nanos", percentile(samples, 95));
+        result.put("p99Nanos", percentile(samples, 99));
+        results.put(result);
+        return result;
+    }
+
+    // Add to the results how much faster an operation is than the one it replaces,
+    // as the ratio of their latencies. Returns the comparison added
+    private static JSONObject compare(String name, JSONObject before, JSONObject after) throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("operation", name);
+        result.put("tableSize", after.getInt("tableSize"));
+        result.put("before", before.getString("operation"));
+        result.put("after", after.getString("operation"));
+        result.put("beforeP50Nanos", before.getLong("p50Nanos"));
+        result.put("afterP50Nanos", after.getLong("p50Nanos"));
+        result.put("speedupP50", (double) before.getLong("p50Nanos") / Math.max(1, after.getLong("p50Nanos")));
+        result.put("beforeP95Nanos", before.getLong("p95Nanos"));
+        result.put("afterP95Nanos", after.getLong("p95Nanos"));
+        result.put("speedupP95", (double) before.getLong("p95Nanos") / Math.max(1, after.getLong("p95Nanos")));
+        results.put(result);
+        return result;
+    }
+
+    // Fail unless the median latency of the operation compared is lower than that of the one it replaces
+    private static void assertFaster(JSONObject comparison) throws JSONException {
+        assertTrue(comparison.getString("after") + " is not faster than " + comparison.getString("before") +
+                        " (speedup " + comparison.getDouble("speedupP50") + ")",
+                comparison.getDouble("speedupP50") > 1);
+    }
+
+    // Compact the database once, and add the time it took and its effect on storage to the results
+    private static void measureCompaction(CustomSqliteOpenHelper helper, int size) throws JSONException {
+        final CustomSqliteOpenHelper.StorageStats before = helper.getStorageStats();
+        final long start = System.nanoTime();
+        final long reclaimed = helper.compact();
+        final long elapsed = System.nanoTime() - start;
+        final CustomSqliteOpenHelper.StorageStats after = helper.getStorageStats();
+
+        final JSONObject result = new JSONObject();
+        result.put("operation", "compact");
+        result.put("tableSize", size);
+        result.put("elapsedNanos", elapsed);
+        result.put("purgedContacts", before.deletedContacts - after.deletedContacts);
+        result.put("reclaimedBytes", reclaimed);
+        result.put("fileSizeBefore", before.fileSize);
+        result.put("fileSizeAfter", after.fileSize);
+        result.put("freePagesBefore", before.freePages);
+        result.put("freePagesAfter", after.freePages);
+        results.put(result);
+    }
+
+    // Execute several filtered queries in turn, with different values each time, keeping the given number
+    // of compiled statements (1 keeps only the last one, so none is reused). Adds the latency and
+    // the estimated fraction of queries that reused a compiled statement to the results
+    private static void measureFilteredQueries(CustomSqliteOpenHelper helper, Random random, long[] ids, int size,
+                                               int cacheSize, String name) throws JSONException {
+        helper.setStatementCacheSize(cacheSize);
+        final int hits = helper.getEstimatedStatementCacheHitCount();
+        final int misses = helper.getEstimatedStatementCacheMissCount();
+        measure(name, size, ITERATIONS, iteration -> {
+            final ContactQuery query = new ContactQuery();
+            switch (iteration % QUERY_SHAPES) {
+                case 0:
+                    query.startsWith(ContactQuery.NAME, randomName(random).substring(0, 2))
+                            .orderBy(ContactQuery.NAME, true);
+                    break;
+                case 1:
+                    query.equalTo(ContactQuery.EMAIL,
+                            randomName(random).toLowerCase().replace(' ', '.') + "@example.com");
+                    break;
+                case 2:
+                    final List<Long> selected = new ArrayList<>();
+                    for (int i = 1 + random.nextInt(PAGE_SIZE); i > 0; i--) {
+                        selected.add(ids[random.nextInt(ids.length)]);
+                    }
+                    query.in(ContactQuery.ID, selected);
+                    break;
+                default:
+                    query.startsWith(ContactQuery.PHONE, "6" + random.nextInt(10))
+                            .equalTo(ContactQuery.VERSION, 1L)
+                            .orderBy(ContactQuery.VERSION, false);
+                    break;
+            }
+            return helper.findContacts(query.limit(PAGE_SIZE)).size();
+        });
+        final int reused = helper.getEstimatedStatementCacheHitCount() - hits;
+        final int queries = reused + helper.getEstimatedStatementCacheMissCount() - misses;
+        results.getJSONObject(results.length() - 1).put("estimatedStatementCacheHitRate",
+                queries == 0 ? 0 : (double) reused / queries);
+    }
+
+    // Synchronize all the contacts with a local server that fails every few requests, then update some
+    // of them and synchronize again, which only sends those. Adds the changes, bytes, and retries of
+    // each synchronization to the results, and whether the server ends with as many contacts as the database
+    private static void measureSync(CustomSqliteOpenHelper helper, Random random, int size)
+            throws IOException, JSONException {
+        try (MockSyncServer server = new MockSyncServer(SYNC_FAIL_EVERY)) {
+            final ContactSync sync = new ContactSync(
+                    helper, server.getUrl(), SYNC_BATCH_SIZE, SYNC_MAX_ATTEMPTS, SYNC_BACKOFF);
+            addSyncResult("syncAll", helper, size, sync.sync(), server);
+            final List<Contact> contacts = helper.getContacts();
+            for (int i = 0; i < SYNC_UPDATES; i++) {
+                final Contact contact = generateContact(random);
+                contact.set_ID(contacts.get(random.nextInt(contacts.size())).get_ID());
+                helper.updateContact(contact);
+            }
+            addSyncResult("syncIncremental", helper, size, sync.sync(), server);
+        }
+    }
+
+    // Add the result of a synchronization to the results
+    private static void addSyncResult(String name, CustomSqliteOpenHelper helper, int size,
+                                      ContactSync.SyncResult sync, MockSyncServer server) throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("operation", name);
+        result.put("tableSize", size);
+        result.put("changes", sync.changes);
+        result.put("batches", sync.batches);
+        result.put("bytesSent", sync.bytesSent);
+        result.put("bytesReceived", sync.bytesReceived);
+        result.put("retries", sync.retries);
+        result.put("journalEntriesCompacted", sync.compacted);
+        result.put("durationNanos", sync.durationNanos);
+        result.put("pendingChanges", helper.getPendingChangeCount());
+        result.put("serverRequests", server.getRequestCount());
+        result.put("serverFailures", server.getFailureCount());
+        result.put("consistent", server.getContactCount() == helper.getContacts().size());
+        results.put(result);
+    }
+
+    // Samples the Java heap in use every few progress reports, once the garbage is collected,
+    // so its peak is the memory retained while the operation runs
+    private static class HeapSampler implements ProgressListener {
+        private final Runtime runtime = Runtime.getRuntime();
+        private final long baseline;
+        private long peak;
+        private long samplingNanos = 0;
+        private int reports = 0;
+
+        HeapSampler() {
+            baseline = getUsedHeap();
+            peak = baseline;
+        }
+
+        @Override
+        public void onProgress(long rows, double rowsPerSecond) {
+            if (++reports % HEAP_SAMPLE_INTERVAL == 0) {
+                final long start = System.nanoTime();
+                peak = Math.max(peak, getUsedHeap());
+                samplingNanos += System.nanoTime() - start;
+            }
+        }
+
+        // Get the peak of the heap in use above the one in use before the operation
+        long getRetainedBytes() {
+            return peak - baseline;
+        }
+
+        // Get the time spent sampling the heap (nanoseconds)
+        long getSamplingNanos() {
+            return samplingNanos;
+        }
+
+        private long getUsedHeap() {
+            System.gc();
+            System.runFinalization();
+            System.gc();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+
+    // Get the given percentile of the sorted samples
+    private static long percentile(long[] sorted, int percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    // Insert the given number of synthetic contacts, FILL_BATCH_SIZE at a time, so they are not all in memory.
+    // Returns their IDs
+    private static long[] fill(CustomSqliteOpenHelper helper, Random random, int count) {
+        final long[] ids = new long[count];
+        for (int from = 0; from < count; from += FILL_BATCH_SIZE) {
+            final long[] batch = helper.addContacts(generateContacts(random, Math.min(FILL_BATCH_SIZE, count - from)));
+            System.arraycopy(batch, 0, ids, from, batch.length);
+        }
+        return ids;
+    }
+
+    // Insert the given number of synthetic contacts, FILL_BATCH_SIZE at a time, where DUPLICATE_RATE of them
+    // are a previous contact of the same batch written differently: with its email in upper case,
+    // or its phone number split into groups of digits. Returns the number of duplicates inserted
+    private static int fillWithDuplicates(CustomSqliteOpenHelper helper, Random random, int count) {
+        int duplicates = 0;
+        for (int from = 0; from < count; from += FILL_BATCH_SIZE) {
+            final List<Contact> contacts = new ArrayList<>(Math.min(FILL_BATCH_SIZE, count - from));
+            for (int i = from; i < Math.min(from + FILL_BATCH_SIZE, count); i++) {
+                if (contacts.isEmpty() || random.nextDouble() >= DUPLICATE_RATE) {
+                    contacts.add(generateContact(random));
+                    continue;
+                }
+                final Contact original = contacts.get(random.nextInt(contacts.size()));
+                final String phone = original.getPhone();
+                contacts.add(random.nextBoolean()
+                        ? new Contact(original.getName(), original.getEmail().toUpperCase(), phone)
+                        : new Contact(original.getName(), original.getEmail(),
+                        phone.substring(0, 3) + " " + phone.substring(3, 6) + " " + phone.substring(6)));
+                duplicates++;
+            }
+            helper.addContacts(contacts);
+        }
+        return duplicates;
+    }
+
+    // Generate the given number of synthetic contacts
+    private static List<Contact> generateContacts(Random random, int count) {
+        final List<Contact> contacts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            contacts.add(generateContact(random));
+        }
+        return contacts;
+    }
+
+    // Get the name, email, and phone of a contact as values to be inserted or updated
+    private static ContentValues toValues(Contact contact) {
+        final ContentValues values = new ContentValues();
+        values.put(ContactContract.ContactEntry.COLUMN_NAME_NAME, contact.getName());
+        values.put(ContactContract.ContactEntry.COLUMN_NAME_EMAIL, contact.getEmail());
+        values.put(ContactContract.ContactEntry.COLUMN_NAME_PHONE, contact.getPhone());
+        return values;
+    }
+
+    // Generate the given number of synthetic contacts as values for ContactProvider
+    private static ContentValues[] generateValues(Random random, int count) {
+        final ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            final Contact contact = generateContact(random);
+            values[i] = new ContentValues();
+            values[i].put(ContactContract.ContactEntry.COLUMN_NAME_NAME, contact.getName());
+            values[i].put(ContactContract.ContactEntry.COLUMN_NAME_EMAIL, contact.getEmail());
+            values[i].put(ContactContract.ContactEntry.COLUMN_NAME_PHONE, contact.getPhone());
+        }
+        return values;
+    }
+
+    // Generate a synthetic contact, with notes of up to MAX_NOTES_WORDS words
+    private static Contact generateContact(Random random) {
+        final String name = randomName(random);
+        final Contact contact = new Contact(
+                name,
+                name.toLowerCase().replace(' ', '.') + "@example.com",
+                String.valueOf(600000000 + random.nextInt(100000000)));
+        final StringBuilder notes = new StringBuilder();
+        for (int i = random.nextInt(MAX_NOTES_WORDS + 1); i > 0; i--) {
+            notes.append(randomWord(random)).append(' ');
+        }
+        contact.setNotes(notes.toString().trim());
+        return contact;
+    }
+
+    // Generate the first letters of a word, as typed by the user while searching
+    private static String randomSearch(Random random) {
+        return randomWord(random).substring(0, SEARCH_LENGTH).toLowerCase();
+    }
+
+    // Generate a synthetic name made of two words
+    private static String randomName(Random random) {
+        return randomWord(random) + " " + randomWord(random);
+    }
+
+    // Generate a capitalised word of 4 to 9 letters
+    private static String randomWord(Random random) {
+        final char[] word = new char[4 + random.nextInt(6)];
+        word[0] = (char) ('A' + random.nextInt(26));
+        for (int i = 1; i < word.length; i++) {
+            word[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(word);
+    }
+}
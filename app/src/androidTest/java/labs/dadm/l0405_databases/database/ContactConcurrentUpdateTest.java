@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Stress test of concurrent updates: several threads increment a counter stored in the phone
+// of the same contact, each one reading the contact, increasing the value, and writing it back.
+// With versions, every conflict is detected and the increment applied again on the current value,
+// so no update is lost. Without versions, updates based on stale reads silently overwrite others
+@RunWith(AndroidJUnit4.class)
+public class ContactConcurrentUpdateTest {
+
+    // Name of the database file used by the test
+    private static final String DATABASE_NAME = "concurrent_update_test";
+    // Number of threads updating the same contact concurrently
+    private static final int WRITER_THREADS = 4;
+    // Number of increments of the contact made by each thread
+    private static final int INCREMENTS = 200;
+
+    private Context context;
+    private CustomSqliteOpenHelper helper;
+    private long id;
+
+    // Updates reported by the threads: applied ones, those rejected after all the retries,
+    // and conflicts solved by the resolver before retrying
+    private final AtomicInteger applied = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicInteger resolved = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        id = helper.addContact(new Contact("Counter", "", "0"));
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void versionedUpdatesAreNotLost() throws InterruptedException {
+        final long conflictsBefore = helper.getUpdateConflictCount();
+        runWriters(true);
+
+        final Contact stored = helper.getContact(id);
+        assertEquals(WRITER_THREADS * INCREMENTS, applied.get() + rejected.get());
+        // Each update applied increased the counter once, and the version too
+        assertEquals(applied.get(), Long.parseLong(stored.getPhone()));
+        assertEquals(1 + applied.get(), stored.getVersion());
+        // Each conflict was either solved and retried, or ended the update when no retries were left
+        assertEquals(resolved.get() + rejected.get(), helper.getUpdateConflictCount() - conflictsBefore);
+    }
+
+    @Test
+    public void unversionedUpdatesOverwrite() throws InterruptedException {
+        final long conflictsBefore = helper.getUpdateConflictCount();
+        runWriters(false);
+
+        final Contact stored = helper.getContact(id);
+        // Every update was applied, whatever it read, and none reported a conflict
+        assertEquals(WRITER_THREADS * INCREMENTS, applied.get());
+        assertEquals(0, rejected.get());
+        assertEquals(0, resolved.get());
+        assertEquals(0, helper.getUpdateConflictCount() - conflictsBefore);
+        // The version still counts every update, although increments based on stale reads are lost
+        assertEquals(1 + applied.get(), stored.getVersion());
+        assertTrue(Long.parseLong(stored.getPhone()) <= applied.get());
+    }
+
+    // Run WRITER_THREADS threads making INCREMENTS read-modify-write cycles each on the counter,
+    // checking its version or overwriting it (version 0), and wait for them to finish
+    private void runWriters(boolean versioned) throws InterruptedException {
+        // Increments the counter of the current contact, as the attempted one was based on a stale value
+        final CustomSqliteOpenHelper.ConflictResolver resolver = (current, attempted) -> {
+            resolved.incrementAndGet();
+            current.setPhone(String.valueOf(Long.parseLong(current.getPhone()) + 1));
+            return current;
+        };
+        final Thread[] threads = new Thread[WRITER_THREADS];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < INCREMENTS; i++) {
+                    final Contact contact = helper.getContact(id);
+                    contact.setPhone(String.valueOf(Long.parseLong(contact.getPhone()) + 1));
+                    if (!versioned) {
+                        contact.setVersion(0);
+                    }
+                    final CustomSqliteOpenHelper.UpdateResult result = helper.updateContact(contact, resolver);
+                    if (result == CustomSqliteOpenHelper.UpdateResult.UPDATED) {
+                        applied.incrementAndGet();
+                    } else if (result == CustomSqliteOpenHelper.UpdateResult.CONFLICT) {
+                        rejected.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
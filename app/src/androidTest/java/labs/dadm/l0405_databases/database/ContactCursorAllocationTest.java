@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.content.Context;
+import android.os.Debug;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+// Checks that streaming the contacts through ContactCursor does not allocate objects for each row:
+// the objects allocated while reading all the contacts of a large table must be about the same as
+// while reading only the first ones. Allocations are counted by the runtime (Debug.startAllocCounting())
+@RunWith(AndroidJUnit4.class)
+public class ContactCursorAllocationTest {
+
+    // Name of the database file used by the test
+    private static final String DATABASE_NAME = "allocation_test";
+    // Number of contacts in the table, and of those read to compare with reading all of them
+    private static final int TABLE_SIZE = 100000;
+    private static final int FEW_ROWS = 10000;
+    // Number of contacts inserted at once while filling the table
+    private static final int FILL_BATCH_SIZE = 10000;
+    // Rows read for each allocation allowed when reading more of them (the cursor window is refilled
+    // every few thousand rows, and other threads of the process may allocate meanwhile)
+    private static final int ROWS_PER_ALLOCATION = 100;
+
+    private Context context;
+    private CustomSqliteOpenHelper helper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        for (int from = 0; from < TABLE_SIZE; from += FILL_BATCH_SIZE) {
+            final List<Contact> contacts = new ArrayList<>(FILL_BATCH_SIZE);
+            for (int i = from; i < from + FILL_BATCH_SIZE; i++) {
+                contacts.add(new Contact("Contact " + i, "contact" + i + "@example.com", String.valueOf(600000000 + i)));
+            }
+            helper.addContacts(contacts);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void streamingDoesNotAllocatePerRow() {
+        // Reading all the contacts into a list allocates for each row, which shows allocations are counted
+        final int listed = countAllocations(() -> assertEquals(TABLE_SIZE, helper.getContacts().size()));
+        assumeTrue("Allocations are not counted by this runtime", listed >= TABLE_SIZE);
+
+        // Statements are compiled, and classes loaded, the first time
+        readContacts(TABLE_SIZE);
+        final int few = countAllocations(() -> readContacts(FEW_ROWS));
+        final int all = countAllocations(() -> readContacts(TABLE_SIZE));
+        assertTrue("Reading " + TABLE_SIZE + " contacts allocated " + all + " objects, and reading " +
+                        FEW_ROWS + " of them " + few,
+                all - few <= (TABLE_SIZE - FEW_ROWS) / ROWS_PER_ALLOCATION);
+    }
+
+    // Read the given number of contacts (from the first one) through forEachContact()
+    private void readContacts(int rows) {
+        final int[] read = new int[1];
+        helper.forEachContact(row -> ++read[0] < rows);
+        assertEquals(rows, read[0]);
+    }
+
+    // Get the number of objects allocated by the process while running the given code
+    @SuppressWarnings("deprecation")
+    private static int countAllocations(Runnable code) {
+        Debug.resetAllCounts();
+        Debug.startAllocCounting();
+        try {
+            code.run();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return Debug.getGlobalAllocCount();
+    }
+}
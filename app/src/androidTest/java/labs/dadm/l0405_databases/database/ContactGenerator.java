@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+// Generates synthetic contacts that look like those of a real address book: names are drawn from
+// lists of common first names and surnames (the most common ones more often, so many contacts share
+// a name), and a fraction of the contacts are the same person entered again, with the email in other
+// case or the phone formatted differently, so they are detected as duplicates.
+// The same seed always generates the same contacts. It is only used by instrumented tests.
+class ContactGenerator {
+
+    // Default fraction of contacts that duplicate a previous one
+    static final double DEFAULT_DUPLICATE_RATE = 0.05;
+
+    // Number of contacts added to the database in each call
+    private static final int FILL_BATCH_SIZE = 10000;
+    // Number of recent contacts that can be duplicated
+    private static final int RECENT_SIZE = 1024;
+
+    private static final String[] FIRST_NAMES = {
+            "María", "José", "Antonio", "Carmen", "Manuel", "Ana", "Francisco", "Laura", "David", "Isabel",
+            "Juan", "Lucía", "Javier", "Marta", "Carlos", "Elena", "Daniel", "Paula", "Miguel", "Sara",
+            "Alejandro", "Cristina", "Pablo", "Raquel", "Sergio", "Andrea", "Jorge", "Julia", "Alberto", "Irene",
+            "Luis", "Nuria", "Adrián", "Silvia", "Diego", "Beatriz", "Rubén", "Alba", "Álvaro", "Noelia"};
+    private static final String[] SURNAMES = {
+            "García", "Rodríguez", "González", "Fernández", "López", "Martínez", "Sánchez", "Pérez", "Gómez",
+            "Martín", "Jiménez", "Ruiz", "Hernández", "Díaz", "Moreno", "Muñoz", "Álvarez", "Romero", "Alonso",
+            "Gutiérrez", "Navarro", "Torres", "Domínguez", "Vázquez", "Ramos", "Gil", "Ramírez", "Serrano",
+            "Blanco", "Molina", "Morales", "Suárez", "Ortega", "Delgado", "Castro", "Ortiz", "Rubio", "Marín",
+            "Sanz", "Núñez", "Iglesias", "Medina", "Garrido", "Cortés", "Castillo", "Santos", "Lozano", "Guerrero"};
+    private static final String[] DOMAINS = {
+            "gmail.com", "hotmail.com", "yahoo.es", "outlook.com", "upv.es", "example.com"};
+
+    private final Random random;
+    private final double duplicateRate;
+    // Most recent contacts generated (as a ring), which can be entered again
+    private final Contact[] recent = new Contact[RECENT_SIZE];
+    private int generated = 0;
+    private int duplicates = 0;
+
+    ContactGenerator(long seed) {
+        this(seed, DEFAULT_DUPLICATE_RATE);
+    }
+
+    ContactGenerator(long seed, double duplicateRate) {
+        this.random = new Random(seed);
+        this.duplicateRate = duplicateRate;
+    }
+
+    // Generate the next contact
+    Contact next() {
+        final Contact contact;
+        if (generated > 0 && random.nextDouble() < duplicateRate) {
+            contact = duplicate(recent[random.nextInt(Math.min(generated, RECENT_SIZE))]);
+            duplicates++;
+        } else {
+            contact = create();
+        }
+        recent[generated % RECENT_SIZE] = contact;
+        generated++;
+        return contact;
+    }
+
+    // Generate the given number of contacts
+    List<Contact> next(int count) {
+        final List<Contact> contacts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            contacts.add(next());
+        }
+        return contacts;
+    }
+
+    // Add the given number of contacts to the database, in batches so they are not all in memory at once.
+    // Returns their IDs
+    long[] fill(CustomSqliteOpenHelper helper, int count) {
+        final long[] ids = new long[count];
+        for (int from = 0; from < count; from += FILL_BATCH_SIZE) {
+            final long[] batch = helper.addContacts(next(Math.min(FILL_BATCH_SIZE, count - from)));
+            System.arraycopy(batch, 0, ids, from, batch.length);
+        }
+        return ids;
+    }
+
+    // Get a name that a generated contact may have, to search for it
+    String nextName() {
+        return pick(FIRST_NAMES) + " " + pick(SURNAMES);
+    }
+
+    // Get the number of contacts generated, and how many of them duplicate a previous one
+    int getGeneratedCount() {
+        return generated;
+    }
+
+    int getDuplicateCount() {
+        return duplicates;
+    }
+
+    // Create a new person: a common name, an email derived from it (unique thanks to the number
+    // of contacts generated), and a mobile phone number
+    private Contact create() {
+        final String first = pick(FIRST_NAMES);
+        final String surname = pick(SURNAMES);
+        final String email = toAscii(first) + "." + toAscii(surname) + generated + "@" +
+                DOMAINS[random.nextInt(DOMAINS.length)];
+        final String phone = String.valueOf(600000000 + random.nextInt(100000000));
+        return new Contact(first + " " + surname + " " + pick(SURNAMES), email, formatPhone(phone));
+    }
+
+    // The same person entered again: sometimes with only the email or the phone, written differently
+    private Contact duplicate(Contact original) {
+        final String phone = original.getPhone().replaceAll("[^0-9]", "");
+        int variant = random.nextInt(3);
+        // Duplicates of duplicates may only have one of them
+        if (phone.isEmpty()) {
+            variant = 0;
+        } else if (original.getEmail().isEmpty()) {
+            variant = 1;
+        }
+        switch (variant) {
+            case 0:
+                return new Contact(original.getName(), original.getEmail().toUpperCase(Locale.ROOT), "");
+            case 1:
+                return new Contact(original.getName(), "", formatPhone(phone));
+            default:
+                return new Contact(original.getName(), original.getEmail(), formatPhone(phone));
+        }
+    }
+
+    // Write the phone number in one of the ways people usually do
+    private String formatPhone(String digits) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return digits;
+            case 1:
+                return digits.substring(0, 3) + " " + digits.substring(3, 5) + " " +
+                        digits.substring(5, 7) + " " + digits.substring(7);
+            case 2:
+                return digits.substring(0, 3) + "-" + digits.substring(3, 6) + "-" + digits.substring(6);
+            default:
+                return "(" + digits.substring(0, 3) + ") " + digits.substring(3);
+        }
+    }
+
+    // Pick a value, the first ones more often (as the product of two uniform values is skewed towards 0),
+    // as some names are much more common than others
+    private String pick(String[] values) {
+        final double skewed = random.nextDouble() * random.nextDouble();
+        return values[(int) (skewed * values.length)];
+    }
+
+    // Remove accents and write in lowercase, as in email addresses
+    private static String toAscii(String text) {
+        final StringBuilder builder = new StringBuilder(text.length());
+        for (char c : text.toLowerCase(Locale.ROOT).toCharArray()) {
+            final int index = "áéíóúñ".indexOf(c);
+            builder.append(index == -1 ? c : "aeioun".charAt(index));
+        }
+        return builder.toString();
+    }
+}
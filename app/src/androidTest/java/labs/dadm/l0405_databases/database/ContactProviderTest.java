@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// Checks that ContactProvider only gives access to the public columns of the contacts not deleted,
+// whatever the selection and order, and that batches of operations are applied all or none
+@RunWith(AndroidJUnit4.class)
+public class ContactProviderTest {
+
+    // Name of the database file used by the test
+    private static final String DATABASE_NAME = "provider_test";
+    // Number of contacts inserted before each test
+    private static final int TABLE_SIZE = 3;
+
+    private Context context;
+    private CustomSqliteOpenHelper helper;
+    private ContactProvider provider;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        provider = new ContactProvider(helper);
+        final ContentValues[] values = new ContentValues[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            values[i] = createValues("Contact " + i);
+        }
+        assertEquals(TABLE_SIZE, provider.bulkInsert(ContactContract.ContactEntry.CONTENT_URI, values));
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void queryPublicColumns() {
+        try (Cursor cursor = provider.query(ContactContract.ContactEntry.CONTENT_URI, null,
+                ContactContract.ContactEntry.COLUMN_NAME_NAME + " LIKE ?", new String[]{"Contact%"},
+                ContactContract.ContactEntry.COLUMN_NAME_NAME + " DESC")) {
+            assertEquals(TABLE_SIZE, cursor.getCount());
+            assertEquals(Arrays.asList(
+                    ContactContract.ContactEntry.COLUMN_NAME_ID,
+                    ContactContract.ContactEntry.COLUMN_NAME_NAME,
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL,
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE,
+                    ContactContract.ContactEntry.COLUMN_NAME_VERSION,
+                    ContactContract.ContactEntry.COLUMN_NAME_NOTES), Arrays.asList(cursor.getColumnNames()));
+            cursor.moveToFirst();
+            assertEquals("Contact " + (TABLE_SIZE - 1), cursor.getString(1));
+        }
+    }
+
+    @Test
+    public void rejectPrivateColumnInSelection() {
+        assertRejected(ContactContract.ContactEntry.COLUMN_NAME_DELETED + " = 1", null);
+    }
+
+    @Test
+    public void rejectPrivateColumnInOrder() {
+        assertRejected(null, ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY);
+    }
+
+    @Test
+    public void rejectSubquery() {
+        assertRejected(ContactContract.ContactEntry.COLUMN_NAME_NAME + " IN (SELECT " +
+                ContactContract.ContactEntry.COLUMN_NAME_NAME + " FROM " +
+                ContactContract.ContactEntry.TABLE_NAME + ")", null);
+    }
+
+    @Test
+    public void rejectQuotedPrivateColumn() {
+        assertRejected("\"" + ContactContract.ContactEntry.COLUMN_NAME_DELETED + "\" = 1", null);
+    }
+
+    @Test
+    public void applyBatchRollsBackOnFailure() {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(ContactContract.ContactEntry.CONTENT_URI)
+                .withValues(createValues("Inserted")).build());
+        // Contacts require a name
+        operations.add(ContentProviderOperation.newInsert(ContactContract.ContactEntry.CONTENT_URI)
+                .withValues(new ContentValues()).build());
+        try {
+            provider.applyBatch(operations);
+            fail("The batch should have failed");
+        } catch (Exception e) {
+            assertEquals(TABLE_SIZE, helper.getContactCount());
+        }
+    }
+
+    @Test
+    public void applyBatchCommitsAll() throws Exception {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(ContactContract.ContactEntry.CONTENT_URI)
+                .withValues(createValues("Inserted")).build());
+        operations.add(ContentProviderOperation.newDelete(ContactContract.ContactEntry.CONTENT_URI)
+                .withSelection(ContactContract.ContactEntry.COLUMN_NAME_NAME + " = ?", new String[]{"Contact 0"})
+                .build());
+        assertEquals(2, provider.applyBatch(operations).length);
+        try (Cursor cursor = provider.query(ContactContract.ContactEntry.CONTENT_URI,
+                new String[]{ContactContract.ContactEntry.COLUMN_NAME_NAME}, null, null, null)) {
+            final String[] names = new String[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                names[i] = cursor.getString(0);
+            }
+            assertArrayEquals(new String[]{"Contact 1", "Contact 2", "Inserted"}, names);
+        }
+    }
+
+    // Fail unless querying the contacts with the given selection and order is rejected
+    private void assertRejected(String selection, String sortOrder) {
+        try {
+            provider.query(ContactContract.ContactEntry.CONTENT_URI, null, selection, null, sortOrder).close();
+            fail("Query should have been rejected: " + selection + " ORDER BY " + sortOrder);
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    // Create the values of a contact with the given name
+    private static ContentValues createValues(String name) {
+        final ContentValues values = new ContentValues();
+        values.put(ContactContract.ContactEntry.COLUMN_NAME_NAME, name);
+        values.put(ContactContract.ContactEntry.COLUMN_NAME_EMAIL, "");
+        values.put(ContactContract.ContactEntry.COLUMN_NAME_PHONE, "");
+        return values;
+    }
+}
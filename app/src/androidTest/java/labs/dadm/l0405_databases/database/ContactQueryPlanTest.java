@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+import static org.junit.Assert.fail;
+
+// Checks that the queries listing and looking up contacts use the indexes of the table,
+// asking SQLite for their plan (EXPLAIN QUERY PLAN) on a database with the latest schema.
+// A query fails if any of its steps reads the whole table (SCAN without an index), and
+// queries returning rows in order also fail if SQLite has to sort them (USE TEMP B-TREE)
+@RunWith(AndroidJUnit4.class)
+public class ContactQueryPlanTest {
+
+    // Name of the database file used by the test
+    private static final String DATABASE_NAME = "query_plan_test";
+    // Number of contacts in the table, so statistics look like those of a real address book
+    private static final int TABLE_SIZE = 1000;
+    // Name of the contact whose sort key is used as key by the paged queries
+    private static final String KEY_NAME = "Maria";
+    // Steps reading the whole table of contacts (older versions of SQLite write "SCAN TABLE")
+    private static final Pattern FULL_SCAN = Pattern.compile(
+            "SCAN (TABLE )?" + ContactContract.ContactEntry.TABLE_NAME + "\\b.*");
+    // Steps sorting the rows after reading them
+    private static final String SORT = "USE TEMP B-TREE";
+
+    private Context context;
+    private CustomSqliteOpenHelper helper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        final Random random = new Random(42);
+        final List<Contact> contacts = new ArrayList<>(TABLE_SIZE);
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            final String name = Integer.toString(random.nextInt(Integer.MAX_VALUE), Character.MAX_RADIX);
+            contacts.add(new Contact(name, name + "@example.com", String.valueOf(600000000 + i)));
+        }
+        helper.addContacts(contacts);
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void listContacts() {
+        assertIndexed(CustomSqliteOpenHelper.getContactsQuery(
+                CustomSqliteOpenHelper.Projection.SUMMARY, null,
+                CustomSqliteOpenHelper.SORT_ORDER, null), new String[0], true);
+    }
+
+    @Test
+    public void pageAfterKey() {
+        final String sortKey = ContactCollation.getSortKey(KEY_NAME);
+        assertIndexed(CustomSqliteOpenHelper.getContactsQuery(
+                CustomSqliteOpenHelper.Projection.SUMMARY, CustomSqliteOpenHelper.SQL_AFTER_KEY,
+                CustomSqliteOpenHelper.SORT_ORDER, "50"),
+                new String[]{sortKey, sortKey, "1"}, true);
+    }
+
+    @Test
+    public void pageBeforeKey() {
+        final String sortKey = ContactCollation.getSortKey(KEY_NAME);
+        assertIndexed(CustomSqliteOpenHelper.getContactsQuery(
+                CustomSqliteOpenHelper.Projection.SUMMARY, CustomSqliteOpenHelper.SQL_BEFORE_KEY,
+                CustomSqliteOpenHelper.REVERSE_SORT_ORDER, "50"),
+                new String[]{sortKey, sortKey, "1"}, true);
+    }
+
+    @Test
+    public void contactById() {
+        assertIndexed(CustomSqliteOpenHelper.getContactsQuery(
+                CustomSqliteOpenHelper.Projection.FULL, CustomSqliteOpenHelper.SQL_BY_ID, null, null),
+                new String[]{"1"}, false);
+    }
+
+    @Test
+    public void contactsByEmail() {
+        assertIndexed(CustomSqliteOpenHelper.getContactsQuery(
+                CustomSqliteOpenHelper.Projection.SUMMARY, CustomSqliteOpenHelper.SQL_BY_EMAIL,
+                CustomSqliteOpenHelper.SORT_ORDER, null),
+                new String[]{"maria@example.com"}, false);
+    }
+
+    @Test
+    public void contactsByPhone() {
+        assertIndexed(CustomSqliteOpenHelper.getContactsQuery(
+                CustomSqliteOpenHelper.Projection.SUMMARY, CustomSqliteOpenHelper.SQL_BY_PHONE,
+                CustomSqliteOpenHelper.SORT_ORDER, null),
+                new String[]{"600000000"}, false);
+    }
+
+    @Test
+    public void sections() {
+        assertIndexed(CustomSqliteOpenHelper.SQL_GET_SECTIONS, new String[0], true);
+    }
+
+    @Test
+    public void duplicates() {
+        // The indexes on the keys provide the rows already grouped
+        assertIndexed(CustomSqliteOpenHelper.SQL_FIND_DUPLICATED_EMAILS, new String[0], true);
+        assertIndexed(CustomSqliteOpenHelper.SQL_FIND_DUPLICATED_PHONES, new String[0], true);
+    }
+
+    @Test
+    public void queryById() {
+        assertIndexed(new ContactQuery().in(ContactQuery.ID, Arrays.asList(1L, 2L, 3L)), false);
+    }
+
+    @Test
+    public void queryByPhone() {
+        assertIndexed(new ContactQuery().equalTo(ContactQuery.PHONE, "600000000"), false);
+    }
+
+    @Test
+    public void queryOrderedByName() {
+        assertIndexed(new ContactQuery().orderBy(ContactQuery.NAME, true).limit(50), true);
+    }
+
+    // Check the plan of the SQL sentence generated by the query
+    private void assertIndexed(ContactQuery query, boolean sorted) {
+        assertIndexed(query.getSql(CustomSqliteOpenHelper.SUMMARY_COLUMNS), query.getArgs(), sorted);
+    }
+
+    // Fail if any step of the plan of the SQL sentence reads the whole table of contacts
+    // or, for sentences that return rows in order, sorts them
+    private void assertIndexed(String sql, String[] args, boolean sorted) {
+        final List<String> plan = new ArrayList<>();
+        final Cursor cursor = helper.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            final int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String step : plan) {
+            if ((FULL_SCAN.matcher(step).matches() && !step.contains(" USING "))
+                    || (sorted && step.startsWith(SORT))) {
+                fail("Query not using an index (" + step + "): " + sql + "\nPlan: " + plan);
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import labs.dadm.l0405_databases.BuildConfig;
+import labs.dadm.l0405_databases.pojo.Contact;
+
+import static org.junit.Assert.assertTrue;
+
+// Measures how the app behaves with address books of up to a million contacts, generated by
+// ContactGenerator: loading the first screen after opening the database, searching, editing,
+// and deleting contacts, finding duplicates, and the memory and storage taken.
+// Budgets do not depend on how fast the device is: operations using an index must take about the same
+// with the largest table as with the smallest one, those reading every match may grow at most linearly,
+// and latencies, memory growth, and storage per contact have absolute ceilings. The test fails if any
+// budget is exceeded. The metrics of every run, and the budgets exceeded, are written to RESULTS_FILE
+@RunWith(AndroidJUnit4.class)
+public class ContactScaleTest {
+
+    // Name of the database file used by the test
+    private static final String DATABASE_NAME = "scale_database";
+    // Name of the file where results are written
+    private static final String RESULTS_FILE = "scale_results.json";
+    // Instrumentation argument with the directory whose files Gradle copies from the device
+    private static final String OUTPUT_DIRECTORY_ARGUMENT = "additionalTestOutputDir";
+
+    // Number of contacts in the table for each run
+    private static final int[] TABLE_SIZES = {1000, 10000, 100000, 1000000};
+    // Number of measured executions of each operation, and of those discarded before
+    private static final int ITERATIONS = 20;
+    private static final int WARMUP_ITERATIONS = 3;
+    // Number of contacts read by each search
+    private static final int PAGE_SIZE = 50;
+    // Seed for the synthetic contacts, so every run uses the same data
+    private static final long SEED = 42;
+
+    // Times the median latency of an operation using an index may grow from the smallest table to the largest
+    private static final double MAX_INDEXED_GROWTH = 10;
+    // Times the latency of an operation reading every match may grow for each time the table grows
+    // (more than once, as sorting the matches adds a logarithm)
+    private static final double MAX_LINEAR_GROWTH = 3;
+    // Latencies (nanoseconds) below this are taken as this, so growth is not measured against noise
+    private static final long LATENCY_FLOOR = 1000000;
+    // Highest 95th percentile latency (nanoseconds) of operations the user waits for, and of a search
+    private static final long MAX_INTERACTIVE_NANOS = 1000000000L;
+    private static final long MAX_SEARCH_NANOS = 5000000000L;
+    // Highest time (nanoseconds) to add each contact while filling the table
+    private static final long MAX_FILL_NANOS_PER_CONTACT = 1000000;
+    // Highest growth (bytes) of the Java and native heaps from the smallest table to the largest
+    private static final long MAX_JAVA_HEAP_GROWTH = 32 * 1024 * 1024;
+    private static final long MAX_NATIVE_HEAP_GROWTH = 64 * 1024 * 1024;
+    // Highest size of the database file (bytes) for each contact stored
+    private static final long MAX_BYTES_PER_CONTACT = 2048;
+    // Lowest fraction of the duplicates generated that must be found (several may fall in the same group)
+    private static final double MIN_DUPLICATES_FOUND = 0.5;
+
+    // Operation to be measured
+    private interface Operation {
+        void run(int iteration);
+    }
+
+    // Metrics of all the table sizes, as "size.name"
+    private final JSONObject metrics = new JSONObject();
+    // Budgets exceeded, described along with the values compared
+    private final List<String> violations = new ArrayList<>();
+
+    @Test
+    public void metricsWithinBudgets() throws IOException, JSONException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        for (int size : TABLE_SIZES) {
+            runForSize(context, size);
+        }
+
+        final int smallest = TABLE_SIZES[0];
+        final int largest = TABLE_SIZES[TABLE_SIZES.length - 1];
+        for (String name : new String[]{"startup", "edit", "delete"}) {
+            checkGrowth(name + "P50Nanos", smallest, largest, MAX_INDEXED_GROWTH);
+        }
+        // A search scores every contact matching the name, and there are more of them in larger tables
+        checkGrowth("searchP50Nanos", smallest, largest, MAX_LINEAR_GROWTH * largest / smallest);
+        checkGrowth("findDuplicatesNanos", smallest, largest, MAX_LINEAR_GROWTH * largest / smallest);
+        checkMemoryGrowth("javaHeapBytes", smallest, largest, MAX_JAVA_HEAP_GROWTH);
+        checkMemoryGrowth("nativeHeapBytes", smallest, largest, MAX_NATIVE_HEAP_GROWTH);
+        for (int size : TABLE_SIZES) {
+            checkCeiling(size, "startupP95Nanos", MAX_INTERACTIVE_NANOS);
+            checkCeiling(size, "editP95Nanos", MAX_INTERACTIVE_NANOS);
+            checkCeiling(size, "deleteP95Nanos", MAX_INTERACTIVE_NANOS);
+            checkCeiling(size, "searchP95Nanos", MAX_SEARCH_NANOS);
+            checkCeiling(size, "fillNanos", MAX_FILL_NANOS_PER_CONTACT * size);
+            checkCeiling(size, "databaseBytes", MAX_BYTES_PER_CONTACT * size);
+            final long expected = (long) Math.ceil(get(size, "duplicatesGenerated") * MIN_DUPLICATES_FOUND);
+            if (get(size, "duplicateGroups") < expected) {
+                violations.add(size + ".duplicateGroups: " + get(size, "duplicateGroups") + " (at least " + expected + ")");
+            }
+        }
+
+        final JSONObject report = new JSONObject();
+        report.put("version", BuildConfig.VERSION_NAME);
+        report.put("buildType", BuildConfig.BUILD_TYPE);
+        report.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        report.put("sdk", Build.VERSION.SDK_INT);
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("metrics", metrics);
+        report.put("violations", new JSONArray(violations));
+        final String directory = InstrumentationRegistry.getArguments().getString(OUTPUT_DIRECTORY_ARGUMENT);
+        final File file = directory == null
+                ? new File(context.getFilesDir(), RESULTS_FILE)
+                : new File(directory, RESULTS_FILE);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(report.toString(2));
+        }
+
+        assertTrue("Budgets exceeded: " + violations, violations.isEmpty());
+    }
+
+    // Fill a table with the given number of contacts and measure the operations on it
+    private void runForSize(Context context, int size) throws JSONException {
+        context.deleteDatabase(DATABASE_NAME);
+        final CustomSqliteOpenHelper helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        final ContactGenerator generator = new ContactGenerator(SEED);
+        final Random random = new Random(SEED);
+        try {
+            final long fillStart = System.nanoTime();
+            final long[] ids = generator.fill(helper, size);
+            put(size, "fillNanos", System.nanoTime() - fillStart);
+            put(size, "duplicatesGenerated", generator.getDuplicateCount());
+
+            // Opening the database and reading the first screen of contacts, as on launch
+            measure(size, "startup", iteration -> {
+                helper.close();
+                helper.getContactsAfter(null, 0, ContactSnapshot.SIZE);
+            });
+            measure(size, "search", iteration ->
+                    helper.searchContacts(generator.nextName(), PAGE_SIZE));
+            // Opening a contact, changing it, and saving it
+            measure(size, "edit", iteration -> {
+                final Contact contact = helper.getContact(ids[random.nextInt(ids.length)]);
+                if (contact != null) {
+                    contact.setPhone(String.valueOf(600000000 + random.nextInt(100000000)));
+                    helper.updateContact(contact);
+                }
+            });
+            // Each iteration deletes a different contact from the end of the table
+            measure(size, "delete", iteration -> {
+                final Contact contact = new Contact("", "", "");
+                contact.set_ID(ids[ids.length - 1 - iteration]);
+                helper.deleteContact(contact);
+            });
+            final long duplicatesStart = System.nanoTime();
+            put(size, "duplicateGroups", helper.findDuplicates().size());
+            put(size, "findDuplicatesNanos", System.nanoTime() - duplicatesStart);
+
+            // Memory still in use once the operations are done (caches included), and storage
+            final Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            System.runFinalization();
+            System.gc();
+            put(size, "javaHeapBytes", runtime.totalMemory() - runtime.freeMemory());
+            put(size, "nativeHeapBytes", Debug.getNativeHeapAllocatedSize());
+            put(size, "databaseBytes", helper.getStorageStats().fileSize);
+        } finally {
+            helper.close();
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    // Execute an operation and add the median and 95th percentile of its latency to the metrics
+    private void measure(int size, String name, Operation operation) throws JSONException {
+        final long[] samples = new long[ITERATIONS];
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+            final long start = System.nanoTime();
+            operation.run(i);
+            if (i >= WARMUP_ITERATIONS) {
+                samples[i - WARMUP_ITERATIONS] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(samples);
+        put(size, name + "P50Nanos", samples[(samples.length - 1) / 2]);
+        put(size, name + "P95Nanos", samples[(int) Math.ceil(samples.length * 0.95) - 1]);
+    }
+
+    // Record a violation if a latency grew more than the given times from the smaller table to the larger
+    private void checkGrowth(String name, int from, int to, double maxGrowth) throws JSONException {
+        final long before = get(from, name);
+        final long after = get(to, name);
+        final long limit = (long) (Math.max(before, LATENCY_FLOOR) * maxGrowth);
+        if (after > limit) {
+            violations.add(to + "." + name + ": " + after + " (at most " + limit + ", " + before + " with " + from + ")");
+        }
+    }
+
+    // Record a violation if memory grew more than the given bytes from the smaller table to the larger
+    private void checkMemoryGrowth(String name, int from, int to, long maxGrowth) throws JSONException {
+        final long before = get(from, name);
+        final long after = get(to, name);
+        if (after - before > maxGrowth) {
+            violations.add(to + "." + name + ": " + after + " (at most " + maxGrowth + " more than "
+                    + before + " with " + from + ")");
+        }
+    }
+
+    // Record a violation if a metric of the given table size is above its ceiling
+    private void checkCeiling(int size, String name, long ceiling) throws JSONException {
+        final long value = get(size, name);
+        if (value > ceiling) {
+            violations.add(size + "." + name + ": " + value + " (at most " + ceiling + ")");
+        }
+    }
+
+    // Add a metric of the given table size
+    private void put(int size, String name, long value) throws JSONException {
+        metrics.put(size + "." + name, value);
+    }
+
+    // Get a metric of the given table size
+    private long get(int size, String name) throws JSONException {
+        return metrics.getLong(size + "." + name);
+    }
+}
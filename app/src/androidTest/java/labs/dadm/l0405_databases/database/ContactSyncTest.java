@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+// Checks that ContactSync only sends the contacts changed since the last synchronization, in batches,
+// that deleted contacts reach the server as deletes (also once purged), that only the updates applied
+// are sent, with their latest version, and that requests failing are retried without losing changes.
+// The contacts are sent to MockSyncServer, whose copy must end up matching the database
+@RunWith(AndroidJUnit4.class)
+public class ContactSyncTest {
+
+    // Name of the database file used by the test
+    private static final String DATABASE_NAME = "sync_test";
+    // Number of contacts inserted before each test
+    private static final int TABLE_SIZE = 25;
+    // Journal entries sent in each request, and the retry policy
+    private static final int BATCH_SIZE = 10;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF = 10;
+
+    private Context context;
+    private CustomSqliteOpenHelper helper;
+    private long[] ids;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        helper = CustomSqliteOpenHelper.createInstance(context, DATABASE_NAME);
+        final List<Contact> contacts = new ArrayList<>(TABLE_SIZE);
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            contacts.add(new Contact("Contact " + i, "contact" + i + "@example.com", String.valueOf(600000000 + i)));
+        }
+        ids = helper.addContacts(contacts);
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void pushOnlyDeltas() throws Exception {
+        try (MockSyncServer server = new MockSyncServer(0)) {
+            final ContactSync sync = createSync(server);
+            ContactSync.SyncResult result = sync.sync();
+            assertEquals(TABLE_SIZE, result.changes);
+            assertEquals((TABLE_SIZE + BATCH_SIZE - 1) / BATCH_SIZE, result.batches);
+            assertEquals(TABLE_SIZE, result.compacted);
+            assertEquals(0, helper.getPendingChangeCount());
+            assertServerMatches(server);
+
+            // The same contact updated twice is sent once, as it is now
+            final Contact first = helper.getContact(ids[0]);
+            first.setPhone("611111111");
+            helper.updateContact(first);
+            first.setPhone("622222222");
+            helper.updateContact(first);
+            final Contact second = helper.getContact(ids[1]);
+            second.setName("Renamed");
+            helper.updateContact(second);
+            result = sync.sync();
+            assertEquals(2, result.changes);
+            assertEquals(1, result.batches);
+            assertEquals(2 + TABLE_SIZE, server.getChangeCount());
+            assertEquals("622222222", server.getContact(ids[0]).getString("phone"));
+            assertServerMatches(server);
+
+            // Nothing changed, nothing sent
+            result = sync.sync();
+            assertEquals(0, result.changes);
+            assertEquals(0, result.batches);
+            assertEquals(0, result.bytesSent);
+        }
+    }
+
+    @Test
+    public void pushTombstones() throws Exception {
+        try (MockSyncServer server = new MockSyncServer(0)) {
+            final ContactSync sync = createSync(server);
+            sync.sync();
+
+            // Marked as deleted
+            helper.deleteContacts(new long[]{ids[0]});
+            assertEquals(1, sync.sync().changes);
+            assertNull(server.getContact(ids[0]));
+
+            // Already purged from the table when synchronized
+            helper.deleteContacts(new long[]{ids[1]});
+            helper.compact();
+            assertEquals(1, sync.sync().changes);
+            assertNull(server.getContact(ids[1]));
+            assertEquals(TABLE_SIZE - 2, server.getContactCount());
+            assertServerMatches(server);
+        }
+    }
+
+    @Test
+    public void pushOnlyAppliedVersions() throws Exception {
+        try (MockSyncServer server = new MockSyncServer(0)) {
+            final ContactSync sync = createSync(server);
+            sync.sync();
+            assertEquals(1, server.getContact(ids[0]).getLong("version"));
+
+            final Contact stale = helper.getContact(ids[0]);
+            final Contact current = helper.getContact(ids[0]);
+            current.setPhone("611111111");
+            assertEquals(CustomSqliteOpenHelper.UpdateResult.UPDATED, helper.updateContact(current));
+            // The conflict is not recorded in the journal, as nothing is written
+            stale.setPhone("699999999");
+            assertEquals(CustomSqliteOpenHelper.UpdateResult.CONFLICT, helper.updateContact(stale));
+            assertEquals(1, helper.getPendingChangeCount());
+
+            assertEquals(1, sync.sync().changes);
+            final JSONObject stored = server.getContact(ids[0]);
+            assertEquals("611111111", stored.getString("phone"));
+            assertEquals(2, stored.getLong("version"));
+            assertServerMatches(server);
+        }
+    }
+
+    @Test
+    public void retryFailedRequests() throws Exception {
+        // Every second request fails, so each batch but the first is sent twice
+        try (MockSyncServer server = new MockSyncServer(2)) {
+            final ContactSync.SyncResult result = createSync(server).sync();
+            assertEquals(TABLE_SIZE, result.changes);
+            assertEquals(server.getFailureCount(), result.retries);
+            assertEquals(result.batches + result.retries, server.getRequestCount());
+            assertEquals(0, helper.getPendingChangeCount());
+            assertServerMatches(server);
+        }
+    }
+
+    @Test
+    public void keepChangesNotAcknowledged() throws Exception {
+        // Every request fails, so nothing is removed from the journal
+        try (MockSyncServer server = new MockSyncServer(1)) {
+            try {
+                createSync(server).sync();
+                fail("The synchronization should have failed");
+            } catch (IOException e) {
+                // Expected
+            }
+            assertEquals(MAX_ATTEMPTS, server.getRequestCount());
+            assertEquals(TABLE_SIZE, helper.getPendingChangeCount());
+        }
+    }
+
+    // Create a synchronization with the given server that retries quickly
+    private ContactSync createSync(MockSyncServer server) throws IOException {
+        return new ContactSync(helper, server.getUrl(), BATCH_SIZE, MAX_ATTEMPTS, BACKOFF);
+    }
+
+    // Fail unless the server stores exactly the contacts in the database, with their data and version
+    private void assertServerMatches(MockSyncServer server) throws Exception {
+        final List<Contact> contacts = helper.getContacts(CustomSqliteOpenHelper.Projection.FULL);
+        assertEquals(contacts.size(), server.getContactCount());
+        for (Contact contact : contacts) {
+            final JSONObject stored = server.getContact(contact.get_ID());
+            assertNotNull("Contact " + contact.get_ID() + " not synchronized", stored);
+            assertEquals(contact.getName(), stored.getString("name"));
+            assertEquals(contact.getEmail(), stored.getString("email"));
+            assertEquals(contact.getPhone(), stored.getString("phone"));
+            assertEquals(contact.getNotes(), stored.getString("notes"));
+            assertEquals(contact.getVersion(), stored.getLong("version"));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Minimal HTTP server on the loopback interface standing in for the synchronization server
+// of ContactSync: it applies the changes posted to its own copy of the contacts, and acknowledges
+// the last one. Every failEvery requests (if greater than 0) it answers 503 instead, so retries are exercised.
+// It handles a single connection at a time. It is only used by instrumented tests.
+class MockSyncServer implements Closeable {
+
+    private final ServerSocket socket;
+    private final Thread thread;
+    private final int failEvery;
+    // Contacts stored by the server, by ID
+    private final Map<Long, JSONObject> contacts = new HashMap<>();
+    // Requests received, and how many of them failed on purpose
+    private int requests = 0;
+    private int failures = 0;
+    // Changes received by the requests applied
+    private int changes = 0;
+
+    MockSyncServer(int failEvery) throws IOException {
+        this.failEvery = failEvery;
+        socket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        thread = new Thread(this::serve, "MockSyncServer");
+        thread.start();
+    }
+
+    // Get the URL the changes must be posted to
+    URL getUrl() throws IOException {
+        return new URL("http", "127.0.0.1", socket.getLocalPort(), "/contacts/sync");
+    }
+
+    // Get the number of contacts stored by the server
+    synchronized int getContactCount() {
+        return contacts.size();
+    }
+
+    // Get the last change stored by the server for the contact with the given ID,
+    // or null if it was never received or it was deleted
+    synchronized JSONObject getContact(long id) {
+        return contacts.get(id);
+    }
+
+    // Get the number of changes received by the requests applied
+    synchronized int getChangeCount() {
+        return changes;
+    }
+
+    // Get the number of requests received, and of those answered with an error on purpose
+    synchronized int getRequestCount() {
+        return requests;
+    }
+
+    synchronized int getFailureCount() {
+        return failures;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Answer the requests received until the server is closed
+    private void serve() {
+        while (!socket.isClosed()) {
+            try (Socket client = socket.accept()) {
+                handle(new BufferedInputStream(client.getInputStream()), client.getOutputStream());
+            } catch (IOException e) {
+                // Closed, or the client went away
+            }
+        }
+    }
+
+    // Read a request, apply its changes, and answer it
+    private void handle(InputStream input, OutputStream output) throws IOException {
+        int length = 0;
+        String line;
+        while (!(line = readLine(input)).isEmpty()) {
+            final String header = line.toLowerCase(Locale.US);
+            if (header.startsWith("content-length:")) {
+                length = Integer.parseInt(header.substring("content-length:".length()).trim());
+            }
+        }
+        final byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int count = input.read(body, read, length - read);
+            if (count == -1) {
+                throw new IOException("Request truncated");
+            }
+            read += count;
+        }
+
+        final boolean fail;
+        synchronized (this) {
+            requests++;
+            fail = failEvery > 0 && requests % failEvery == 0;
+            if (fail) {
+                failures++;
+            }
+        }
+        if (fail) {
+            respond(output, "503 Service Unavailable", "{}");
+            return;
+        }
+        try {
+            respond(output, "200 OK", new JSONObject().put("ack", apply(new String(body, StandardCharsets.UTF_8))).toString());
+        } catch (JSONException e) {
+            respond(output, "400 Bad Request", "{}");
+        }
+    }
+
+    // Apply the changes in the body of a request. Returns the sequence number of the last one
+    private synchronized long apply(String body) throws JSONException {
+        final JSONArray received = new JSONObject(body).getJSONArray("changes");
+        long ack = 0;
+        for (int i = 0; i < received.length(); i++) {
+            final JSONObject change = received.getJSONObject(i);
+            final long id = change.getLong("id");
+            if ("delete".equals(change.getString("op"))) {
+                contacts.remove(id);
+            } else {
+                contacts.put(id, change);
+            }
+            ack = Math.max(ack, change.getLong("seq"));
+        }
+        changes += received.length();
+        return ack;
+    }
+
+    // Write a response with a JSON body, closing the connection afterwards
+    private static void respond(OutputStream output, String status, String json) throws IOException {
+        final byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        final String headers = "HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: application/json; charset=utf-8\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Connection: close\r\n\r\n";
+        output.write(headers.getBytes(StandardCharsets.US_ASCII));
+        output.write(body);
+        output.flush();
+    }
+
+    // Read a line of the request line or headers, without its line terminator
+    private static String readLine(InputStream input) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int read;
+        while ((read = input.read()) != -1 && read != '\n') {
+            if (read != '\r') {
+                line.write(read);
+            }
+        }
+        if (read == -1 && line.size() == 0) {
+            throw new IOException("Connection closed");
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -8,48 +8,79 @@ package labs.dadm.l0405_databases.activities;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.Menu;
+import android.view.LayoutInflater;
 import android.view.MenuItem;
+import android.view.ViewTreeObserver;
 import android.widget.EditText;
 import android.widget.ImageButton;
-import android.widget.ListView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.util.List;
+
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
-
-import java.util.List;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import labs.dadm.l0405_databases.R;
 import labs.dadm.l0405_databases.adapters.ContactAdapter;
+import labs.dadm.l0405_databases.database.ContactMetrics;
+import labs.dadm.l0405_databases.database.ContactRepository;
 import labs.dadm.l0405_databases.database.CustomSqliteOpenHelper;
 import labs.dadm.l0405_databases.pojo.Contact;
 
 
 public class MainActivity extends AppCompatActivity {
 
+    // Tag for the startup times logged
+    private static final String TAG = "MainActivity";
+
     // Constants identifying the current state in edition mode
     final static int STATE_NONE = 0;
     final static int STATE_NEW = 1;
     final static int STATE_EDIT = 2;
 
-    // Adapter object linking the data source and the ListView
+    // Adapter object linking the data source and the RecyclerView
     ContactAdapter adapter = null;
+    // Repository accessing the database in background
+    ContactRepository repository = null;
 
     // Hold references to View objects
     EditText etName = null;
     EditText etEmail = null;
     EditText etPhone = null;
+    EditText etNotes = null;
     ImageButton ibSend = null;
     ImageButton ibCall = null;
 
     // Current state of edition
     int state = STATE_NONE;
-    // Position of the element selected from the list
-    int selectedPosition = 0;
+    // Contact selected from the list
+    Contact selectedContact = null;
+    // Time when the activity was created (milliseconds since boot), to measure its startup
+    long createdTime = 0;
+
+    // Lets the user pick an image to be the photo of the selected contact
+    final ActivityResultLauncher<String> pickPhoto = registerForActivityResult(
+            new ActivityResultContracts.GetContent(),
+            uri -> {
+                if (uri != null && selectedContact != null) {
+                    // The list displays the new photo once it is stored
+                    repository.setContactPhoto(selectedContact, uri, null);
+                }
+            });
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        createdTime = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
@@ -57,11 +88,13 @@ public class MainActivity extends AppCompatActivity {
         //  the EditText displaying the name of the contact
         //  the EditText displaying the email address of the contact
         //  the EditText displaying the phone number of the contact
+        //  the EditText displaying the notes about the contact
         //  the ImageButton for sending a message to the contact
         //  the ImageButton for calling the contact
         etName = findViewById(R.id.etName);
         etEmail = findViewById(R.id.etEmail);
         etPhone = findViewById(R.id.etPhone);
+        etNotes = findViewById(R.id.etNotes);
         ibSend = findViewById(R.id.bSend);
         ibCall = findViewById(R.id.bCall);
 
@@ -71,34 +104,118 @@ public class MainActivity extends AppCompatActivity {
         findViewById(R.id.bSend).setOnClickListener(v -> sendMessage());
         findViewById(R.id.bCall).setOnClickListener(v -> callContact());
 
-        // Reference to the ListView object displaying the contacts
-        final ListView list = findViewById(R.id.lvAgenda);
+        // Access the database in background, so the user interface is not blocked
+        repository = new ContactRepository(this);
+
+        // Reference to the RecyclerView object displaying the contacts
+        final RecyclerView list = findViewById(R.id.rvAgenda);
+        list.setLayoutManager(new LinearLayoutManager(this));
+
+        // Create the adapter linking the data source to the RecyclerView,
+        // which loads the contacts from the database page by page.
         // When an item in the list is clicked
         // enable the edition mode and display the contact's data
-        list.setOnItemClickListener((parent, view, position, id) -> displayContactData(position));
+        adapter = new ContactAdapter(R.layout.list_item, repository, this::displayContactData);
 
-        // Get all contacts stored in the database
-        final List<Contact> contactList = CustomSqliteOpenHelper.getInstance(this).getContacts();
+        // Set the data behind this RecyclerView
+        list.setAdapter(adapter);
+        measureStartup(list);
+        // Apply the changes made to contacts to the list as soon as they are stored
+        repository.setOnContactChangedListener(adapter);
 
-        // Create the adapter linking the data source to the ListView
-        adapter = new ContactAdapter(this, R.layout.list_item, contactList);
+        // Display the sections (first letters) of the contacts, so the user can jump to any of them
+        final LinearLayout sections = findViewById(R.id.llSections);
+        adapter.setOnSectionsChangedListener(letters -> displaySections(sections, letters));
+    }
 
-        // Set the data behind this ListView
-        list.setAdapter(adapter);
+    // Logs the time to the first frame (which displays the contacts in the snapshot) and the time
+    // until the contacts are loaded from the database, when the activity is reported as fully drawn
+    private void measureStartup(RecyclerView list) {
+        list.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                list.getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.i(TAG, "Time to first frame: " + (SystemClock.uptimeMillis() - createdTime) + " ms (" +
+                        adapter.getItemCount() + " contacts from the snapshot)");
+                return true;
+            }
+        });
+        adapter.setOnLoadedListener(() -> {
+            adapter.setOnLoadedListener(null);
+            Log.i(TAG, "Time to interactive: " + (SystemClock.uptimeMillis() - createdTime) + " ms");
+            reportFullyDrawn();
+        });
+    }
+
+    // Displays one item for each section, which jumps to its first contact when clicked
+    private void displaySections(LinearLayout layout, List<String> sections) {
+        layout.removeAllViews();
+        final LayoutInflater inflater = LayoutInflater.from(this);
+        for (String section : sections) {
+            final TextView item = (TextView) inflater.inflate(R.layout.section_item, layout, false);
+            item.setText(section);
+            item.setOnClickListener(v -> adapter.jumpToSection(section));
+            layout.addView(item);
+        }
+    }
+
+    // Keep the metrics of the database operations up to date in a file each time the activity is hidden
+    @Override
+    protected void onStop() {
+        repository.writeMetrics(new File(getFilesDir(), ContactMetrics.METRICS_FILE));
+        super.onStop();
+    }
+
+    // Release the thumbnails not displayed when the system is running low on memory
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            adapter.trimMemory();
+        }
+    }
+
+    // Stop delivering the results of database operations once the activity is destroyed
+    @Override
+    protected void onDestroy() {
+        repository.cancel();
+        super.onDestroy();
     }
 
     // Enables the edition mode and displays the contact's data
-    private void displayContactData(int position) {
+    private void displayContactData(Contact contact) {
         // Enter edition mode
         enableEdition();
         // Update EditTexts with contact's data
-        final Contact contact = (Contact) adapter.getItem(position);
         etName.setText(contact.getName());
         etEmail.setText(contact.getEmail());
         etPhone.setText(contact.getPhone());
 
-        // Remember the position of the selected object form the list
-        selectedPosition = position;
+        // Remember the selected object form the list
+        selectedContact = contact;
+
+        // The list only reads the columns it displays, so the notes are read the first time
+        // the contact is opened, and kept in the object for the next times
+        if (contact.getNotes() != null) {
+            etNotes.setText(contact.getNotes());
+        } else {
+            etNotes.setText("");
+            etNotes.setEnabled(false);
+            repository.getContact(contact.get_ID(), details -> {
+                if (details == null || details.get_ID() != contact.get_ID()) {
+                    return;
+                }
+                // Only keep the notes if they belong to the same version of the contact
+                if (details.getVersion() == contact.getVersion()) {
+                    contact.setNotes(details.getNotes());
+                }
+                // Display them if the contact is still being edited
+                if (state == STATE_EDIT && selectedContact == contact) {
+                    etNotes.setText(details.getNotes());
+                    etNotes.setEnabled(true);
+                }
+            });
+        }
 
         // Remember the app is in edition mode
         state = STATE_EDIT;
@@ -118,18 +235,21 @@ public class MainActivity extends AppCompatActivity {
                 menu.findItem(R.id.action_save).setVisible(false);
                 menu.findItem(R.id.action_clear).setVisible(false);
                 menu.findItem(R.id.action_delete).setVisible(false);
+                menu.findItem(R.id.action_photo).setVisible(false);
                 break;
             case STATE_NEW:
                 menu.findItem(R.id.action_new).setVisible(false);
                 menu.findItem(R.id.action_save).setVisible(true);
                 menu.findItem(R.id.action_clear).setVisible(true);
                 menu.findItem(R.id.action_delete).setVisible(false);
+                menu.findItem(R.id.action_photo).setVisible(false);
                 break;
             case STATE_EDIT:
                 menu.findItem(R.id.action_new).setVisible(false);
                 menu.findItem(R.id.action_save).setVisible(true);
                 menu.findItem(R.id.action_clear).setVisible(true);
                 menu.findItem(R.id.action_delete).setVisible(true);
+                menu.findItem(R.id.action_photo).setVisible(true);
                 break;
         }
 
@@ -164,18 +284,19 @@ public class MainActivity extends AppCompatActivity {
             // Delete the contact from the database
             deleteContact();
             return true;
+        } else if (selectedItem == R.id.action_photo) {
+            // Pick an image to be the contact's photo
+            pickPhoto.launch("image/*");
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
     // Deletes the contact from the database
     private void deleteContact() {
-        // Get the data of the selected contact
-        final Contact contact = (Contact) adapter.getItem(selectedPosition);
-        // Delete the contact form the database
-        CustomSqliteOpenHelper.getInstance(this).deleteContact(contact);
-        // Remove the contact from the list
-        adapter.remove(contact);
+        // Delete the selected contact form the database
+        // (the adapter is notified once it is deleted)
+        repository.deleteContact(selectedContact, null);
         // Clear the data fields
         clearEdition();
         // Stop editing
@@ -211,21 +332,28 @@ public class MainActivity extends AppCompatActivity {
         final String name = etName.getText().toString();
         final String email = etEmail.getText().toString();
         final String phone = etPhone.getText().toString();
+        final String notes = etNotes.getText().toString();
 
         // If creating a new contact, then add it to the list and database
         if (state == STATE_NEW) {
             // Create a new contact
             final Contact contact = new Contact(name, email, phone);
-            contact.set_ID(CustomSqliteOpenHelper.getInstance(this).addContact(contact));
-            adapter.add(contact);
+            contact.setNotes(notes);
+            // The adapter is notified once it is stored
+            repository.addContact(contact, null);
         }
         // If editing an existing contact, then update the list and database
         else if (state == STATE_EDIT) {
-            final Contact contact = (Contact) adapter.getItem(selectedPosition);
-            contact.setName(name);
-            contact.setEmail(email);
-            contact.setPhone(phone);
-            CustomSqliteOpenHelper.getInstance(this).updateContact(contact);
+            // A new object is written, as the selected one is still displayed by the list
+            final Contact contact = new Contact(name, email, phone);
+            contact.set_ID(selectedContact.get_ID());
+            contact.setVersion(selectedContact.getVersion());
+            // Notes not loaded yet are kept as stored
+            if (etNotes.isEnabled()) {
+                contact.setNotes(notes);
+            }
+            // If it was changed meanwhile (e.g. through ContactProvider), only the fields edited here are overwritten
+            repository.updateContact(contact, CustomSqliteOpenHelper.mergeChanges(selectedContact), null);
         }
 
         // Clear the data fields
@@ -255,6 +383,7 @@ public class MainActivity extends AppCompatActivity {
         etName.setEnabled(true);
         etEmail.setEnabled(true);
         etPhone.setEnabled(true);
+        etNotes.setEnabled(true);
         ibSend.setEnabled(true);
         ibCall.setEnabled(true);
     }
@@ -264,6 +393,7 @@ public class MainActivity extends AppCompatActivity {
         etName.setEnabled(false);
         etEmail.setEnabled(false);
         etPhone.setEnabled(false);
+        etNotes.setEnabled(false);
         ibSend.setEnabled(false);
         ibCall.setEnabled(false);
     }
@@ -273,6 +403,7 @@ public class MainActivity extends AppCompatActivity {
         etName.setText("");
         etEmail.setText("");
         etPhone.setText("");
+        etNotes.setText("");
     }
 
     // Sends message
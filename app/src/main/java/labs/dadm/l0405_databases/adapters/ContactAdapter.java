@@ -4,69 +4,440 @@
 
 package labs.dadm.l0405_databases.adapters;
 
-import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SortedList;
+import androidx.recyclerview.widget.SortedListAdapterCallback;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import labs.dadm.l0405_databases.R;
+import labs.dadm.l0405_databases.database.ContactCollation;
+import labs.dadm.l0405_databases.database.ContactRepository;
+import labs.dadm.l0405_databases.database.CustomSqliteOpenHelper;
 import labs.dadm.l0405_databases.pojo.Contact;
 
-// Custom adapter to associate the source data with Views within the ListView.
-public class ContactAdapter extends ArrayAdapter<Contact> {
+// Custom adapter to associate the source data with Views within the RecyclerView.
+// Contacts are loaded from the database in pages, so only a window around the visible
+// items is kept in memory: pages are loaded in background as the user scrolls towards
+// either end of the window, and pages far from the visible items are evicted.
+// Changes made to the contacts are applied to the window as they are notified by the database:
+// the SortedList finds their position by binary search and notifies only the items affected.
+// Jumping to a section (the first letter of the names) replaces the window with the first page
+// of that section, which the database reads with a single seek on the index of sort keys.
+// On creation, the first contacts are displayed from a snapshot, so they do not wait for the
+// database to be opened, and they are replaced by those read from the database as soon as they are available.
+// Thumbnails of the photos are loaded in background by ThumbnailCache, which reuses the bitmaps of
+// rows no longer displayed, so memory stays bounded however many contacts are scrolled through.
+public class ContactAdapter extends RecyclerView.Adapter<ContactAdapter.ContactHolder>
+        implements CustomSqliteOpenHelper.OnContactChangedListener {
+
+    // Number of contacts loaded from the database at once
+    private static final int PAGE_SIZE = 50;
+    // Maximum number of pages kept in memory (visible ones plus the prefetch window)
+    private static final int MAX_PAGES = 5;
+    // Distance (in items) to either end of the window that triggers loading a new page
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+    // Maximum memory (bytes) taken by the thumbnails kept in the cache
+    private static final int THUMBNAIL_CACHE_SIZE = 2 * 1024 * 1024;
 
     // Hold reference to the layout
     private final int layout;
+    // Hold reference to the repository accessing the database in background
+    private final ContactRepository repository;
+    // Object to be notified when a contact is clicked
+    private final OnContactClickListener listener;
+    // Thumbnails of the photos of the contacts
+    private final ThumbnailCache thumbnails;
+
+    // Contiguous window of contacts loaded from the database, sorted by name and ID
+    private final SortedList<Contact> contacts;
+    // Contacts in the window by their ID, to find them when they change
+    private final Map<Long, Contact> contactsById = new HashMap<>();
+    // Whether the window includes the first/last contact in the database
+    private boolean reachedStart = true;
+    private boolean reachedEnd = false;
+    // Whether a page is being loaded at either end of the window
+    private boolean loadingNext = false;
+    private boolean loadingPrevious = false;
+    // Incremented each time the window is reloaded, to discard pages requested before
+    private int generation = 0;
+
+    // RecyclerView displaying the contacts, to move to the start of the window after a jump
+    private RecyclerView recyclerView = null;
+    // Object to be notified when the sections of the contacts change
+    private OnSectionsChangedListener sectionsListener = null;
+    // Whether the sections are being loaded, and whether they changed since they were requested
+    private boolean loadingSections = false;
+    private boolean sectionsChanged = false;
+    // Object to be notified each time the window is loaded from the database
+    private Runnable loadedListener = null;
+
+    // Interface to be notified when a contact is clicked
+    public interface OnContactClickListener {
+        void onContactClick(Contact contact);
+    }
+
+    // Interface to be notified of the sections (first letters) of the names of the contacts
+    public interface OnSectionsChangedListener {
+        void onSectionsChanged(List<String> sections);
+    }
 
     // Hold references to View elements
-    private static class ContactHolder {
-        TextView tvName;
-        TextView tvEmail;
-        TextView tvPhone;
+    static class ContactHolder extends RecyclerView.ViewHolder {
+        final ImageView ivPhoto;
+        final TextView tvName;
+        final TextView tvEmail;
+        final TextView tvPhone;
+
+        ContactHolder(@NonNull View itemView) {
+            super(itemView);
+            ivPhoto = itemView.findViewById(R.id.ivPhoto);
+            tvName = itemView.findViewById(R.id.tvName);
+            tvEmail = itemView.findViewById(R.id.tvEmail);
+            tvPhone = itemView.findViewById(R.id.tvPhone);
+        }
     }
 
-    public ContactAdapter(@NonNull Context context, int resource, @NonNull List<Contact> objects) {
-        super(context, resource, objects);
+    public ContactAdapter(int resource, @NonNull ContactRepository repository, @NonNull OnContactClickListener listener) {
         this.layout = resource;
+        this.repository = repository;
+        this.listener = listener;
+        this.thumbnails = new ThumbnailCache(repository, THUMBNAIL_CACHE_SIZE, R.drawable.contact_placeholder);
+        // Changes to the list are notified to the RecyclerView item by item
+        this.contacts = new SortedList<>(Contact.class, new SortedListAdapterCallback<Contact>(this) {
+            @Override
+            public int compare(Contact o1, Contact o2) {
+                return compareContacts(o1, o2);
+            }
+
+            @Override
+            public boolean areContentsTheSame(Contact oldItem, Contact newItem) {
+                // The version also changes with the photo (contacts from the snapshot have none)
+                return oldItem.getName().equals(newItem.getName()) &&
+                        oldItem.getEmail().equals(newItem.getEmail()) &&
+                        oldItem.getPhone().equals(newItem.getPhone()) &&
+                        (oldItem.getVersion() == 0 || oldItem.getVersion() == newItem.getVersion());
+            }
+
+            @Override
+            public boolean areItemsTheSame(Contact item1, Contact item2) {
+                return item1.get_ID() == item2.get_ID();
+            }
+        });
+        // Display the first page of contacts from the snapshot, and load it from the database
+        addPage(repository.readSnapshot());
+        refresh();
     }
 
-    // Creates and populates a View with the information from the required position of the data source.
-    @NonNull
+    // Order contacts as the database does: by name (according to the same collator
+    // that generates the sort keys), and by ID for contacts with the same name
+    private static int compareContacts(Contact o1, Contact o2) {
+        final int result = ContactCollation.compareNames(o1.getName(), o2.getName());
+        return result != 0 ? result : Long.compare(o1.get_ID(), o2.get_ID());
+    }
+
+    // Reload the window of contacts starting from its first contact, and the sections
+    public void refresh() {
+        // The key preceding the first contact is (name, ID - 1), as IDs are unique
+        final Contact first = reachedStart || contacts.size() == 0 ? null : contacts.get(0);
+        if (first == null) {
+            loadWindow(null, 0, false);
+        } else {
+            loadWindow(first.getName(), first.get_ID() - 1, false);
+        }
+        loadSections();
+    }
+
+    // Replace the window with the first page of the given section, and move to its start
+    public void jumpToSection(String section) {
+        if (ContactCollation.OTHER_SECTION.equals(section)) {
+            // Names not starting with a letter go first
+            loadWindow(null, 0, true);
+        } else {
+            // A section sorts before any name starting with it, and IDs are greater than 0
+            loadWindow(section, 0, true);
+        }
+    }
+
+    // Replace the window with the page following the given (name, _ID) key,
+    // or the first page if name is null
+    private void loadWindow(String name, long id, boolean moveToStart) {
+        final int current = ++generation;
+        loadingNext = true;
+        repository.getContactsAfter(name, id, PAGE_SIZE, page -> {
+            if (current != generation) {
+                return;
+            }
+            if (page == null) {
+                // The page could not be read, so the current window is kept
+                loadingNext = false;
+                return;
+            }
+            if (page.isEmpty() && name != null) {
+                // Nothing follows the key (its contacts were deleted), so show the first page
+                loadWindow(null, 0, moveToStart);
+                return;
+            }
+            loadingNext = false;
+            loadingPrevious = false;
+            reachedStart = name == null;
+            reachedEnd = page.size() < PAGE_SIZE;
+            // Only the items that differ from those already displayed are notified
+            contacts.replaceAll(page);
+            contactsById.clear();
+            for (Contact contact : page) {
+                contactsById.put(contact.get_ID(), contact);
+            }
+            if (moveToStart && recyclerView != null) {
+                recyclerView.scrollToPosition(0);
+            }
+            if (loadedListener != null) {
+                loadedListener.run();
+            }
+        });
+    }
+
+    // Set the object to be notified each time the window is loaded from the database (null to stop)
+    public void setOnLoadedListener(Runnable listener) {
+        loadedListener = listener;
+    }
+
+    // Set the object to be notified when the sections of the contacts change (null to stop)
+    public void setOnSectionsChangedListener(OnSectionsChangedListener listener) {
+        sectionsListener = listener;
+        loadSections();
+    }
+
+    // Load the sections of the contacts and notify them.
+    // Changes made while they are loaded are gathered into a single new load
+    private void loadSections() {
+        if (sectionsListener == null) {
+            return;
+        }
+        if (loadingSections) {
+            sectionsChanged = true;
+            return;
+        }
+        loadingSections = true;
+        repository.getSections(sections -> {
+            loadingSections = false;
+            if (sectionsChanged) {
+                sectionsChanged = false;
+                loadSections();
+            } else if (sectionsListener != null && sections != null) {
+                sectionsListener.onSectionsChanged(sections);
+            }
+        });
+    }
+
+    // Apply the change made to a contact if it falls within the window
+    @Override
+    public void onContactChanged(CustomSqliteOpenHelper.ChangeType type, long id, Contact contact) {
+        contacts.beginBatchedUpdates();
+        applyChange(type, id, contact);
+        contacts.endBatchedUpdates();
+        // The change may add or remove a section
+        loadSections();
+    }
+
+    // Apply the changes committed together (by a batch of a bulk operation) at once,
+    // so the RecyclerView receives their notifications together
+    @Override
+    public void onContactsChanged(List<CustomSqliteOpenHelper.ContactChange> changes) {
+        contacts.beginBatchedUpdates();
+        for (CustomSqliteOpenHelper.ContactChange change : changes) {
+            applyChange(change.type, change.id, change.contact);
+        }
+        contacts.endBatchedUpdates();
+        // The changes may add or remove sections, which are loaded once for all of them
+        loadSections();
+    }
+
+    // Apply a change to the window within batched updates of the SortedList
+    private void applyChange(CustomSqliteOpenHelper.ChangeType type, long id, Contact contact) {
+        // Its photo may have changed (it is loaded again if the contact is rebound)
+        if (type != CustomSqliteOpenHelper.ChangeType.INSERT) {
+            thumbnails.invalidate(id);
+        }
+        final Contact existing = contactsById.get(id);
+        if (type != CustomSqliteOpenHelper.ChangeType.DELETE && isInWindow(contact)) {
+            if (existing != null) {
+                // Rebinds the item and moves it if its position changed
+                contacts.updateItemAt(contacts.indexOf(existing), contact);
+            } else {
+                contacts.add(contact);
+            }
+            contactsById.put(id, contact);
+        } else if (existing != null) {
+            // Deleted, or moved outside the window (it will be loaded with its page)
+            contacts.remove(existing);
+            contactsById.remove(id);
+        }
+    }
+
+    // Whether a contact falls between the first and last contacts of the window
+    private boolean isInWindow(Contact contact) {
+        if (contacts.size() == 0) {
+            return reachedStart && reachedEnd;
+        }
+        return (reachedStart || compareContacts(contact, contacts.get(0)) >= 0) &&
+                (reachedEnd || compareContacts(contact, contacts.get(contacts.size() - 1)) <= 0);
+    }
+
+    // Load new pages as the user scrolls towards either end of the window
     @Override
-    public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
-        View result = convertView;
-        ContactHolder holder;
-
-        // Reuse the View if it already exists
-        if (result == null) {
-            // Inflate the View to create it for the first time
-            result = LayoutInflater.from(getContext()).inflate(layout, null);
-
-            // Keep references for View elements in the layout
-            holder = new ContactHolder();
-            holder.tvName = result.findViewById(R.id.tvName);
-            holder.tvEmail = result.findViewById(R.id.tvEmail);
-            holder.tvPhone = result.findViewById(R.id.tvPhone);
-            // Associate the ViewHolder to the View
-            result.setTag(holder);
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        this.recyclerView = recyclerView;
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                final LinearLayoutManager manager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (manager == null) {
+                    return;
+                }
+                // The adapter cannot be modified while RecyclerView is computing its layout
+                if (dy > 0 && !reachedEnd && !loadingNext &&
+                        manager.findLastVisibleItemPosition() >= contacts.size() - PREFETCH_DISTANCE) {
+                    recyclerView.post(() -> loadNextPage());
+                } else if (dy < 0 && !reachedStart && !loadingPrevious &&
+                        manager.findFirstVisibleItemPosition() < PREFETCH_DISTANCE) {
+                    recyclerView.post(() -> loadPreviousPage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        this.recyclerView = null;
+    }
+
+    // Request the page following the last contact of the window
+    private void loadNextPage() {
+        if (reachedEnd || loadingNext || contacts.size() == 0) {
+            return;
+        }
+        final int current = generation;
+        final Contact last = contacts.get(contacts.size() - 1);
+        loadingNext = true;
+        repository.getContactsAfter(last.getName(), last.get_ID(), PAGE_SIZE, page -> {
+            if (current == generation) {
+                loadingNext = false;
+                if (page != null) {
+                    appendPage(page);
+                }
+            }
+        });
+    }
+
+    // Append a page at the end of the window and evict the first page if the window is too large
+    private void appendPage(List<Contact> page) {
+        reachedEnd = page.size() < PAGE_SIZE;
+        addPage(page);
+
+        // Evict the first page if the window is too large
+        if (contacts.size() > MAX_PAGES * PAGE_SIZE) {
+            contacts.beginBatchedUpdates();
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                contactsById.remove(contacts.removeItemAt(0).get_ID());
+            }
+            contacts.endBatchedUpdates();
+            reachedStart = false;
+        }
+    }
+
+    // Request the page preceding the first contact of the window
+    private void loadPreviousPage() {
+        if (reachedStart || loadingPrevious || contacts.size() == 0) {
+            return;
+        }
+        final int current = generation;
+        final Contact first = contacts.get(0);
+        loadingPrevious = true;
+        repository.getContactsBefore(first.getName(), first.get_ID(), PAGE_SIZE, page -> {
+            if (current == generation) {
+                loadingPrevious = false;
+                if (page != null) {
+                    prependPage(page);
+                }
+            }
+        });
+    }
+
+    // Prepend a page at the start of the window and evict the last page if the window is too large
+    private void prependPage(List<Contact> page) {
+        reachedStart = page.size() < PAGE_SIZE;
+        addPage(page);
+
+        // Evict the last page if the window is too large
+        if (contacts.size() > MAX_PAGES * PAGE_SIZE) {
+            contacts.beginBatchedUpdates();
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                contactsById.remove(contacts.removeItemAt(contacts.size() - 1).get_ID());
+            }
+            contacts.endBatchedUpdates();
+            reachedEnd = false;
+        }
+    }
+
+    // Add the contacts of a page to the window, skipping those already added by a change
+    // notified while the page was being loaded
+    private void addPage(List<Contact> page) {
+        contacts.beginBatchedUpdates();
+        for (Contact contact : page) {
+            if (!contactsById.containsKey(contact.get_ID())) {
+                contacts.add(contact);
+                contactsById.put(contact.get_ID(), contact);
+            }
         }
+        contacts.endBatchedUpdates();
+    }
 
-        Contact contact = (Contact) getItem(position);
-        // Retrieve the ViewHolder from the View
-        holder = (ContactHolder) result.getTag();
-        // Populate the View with information from the required position of the data source
+    // Creates a View to display a contact
+    @NonNull
+    @Override
+    public ContactHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ContactHolder(
+                LayoutInflater.from(parent.getContext()).inflate(layout, parent, false));
+    }
+
+    // Populates a View with the information from the required position of the data source.
+    @Override
+    public void onBindViewHolder(@NonNull ContactHolder holder, int position) {
+        final Contact contact = contacts.get(position);
         holder.tvName.setText(contact.getName());
         holder.tvEmail.setText(contact.getEmail());
         holder.tvPhone.setText(contact.getPhone());
+        thumbnails.bind(holder.ivPhoto, contact.get_ID());
+        holder.itemView.setOnClickListener(v -> listener.onContactClick(contact));
+    }
 
-        // Return the View
-        return result;
+    // Releases the thumbnail of a View that is no longer displayed, so its bitmap can be reused
+    @Override
+    public void onViewRecycled(@NonNull ContactHolder holder) {
+        super.onViewRecycled(holder);
+        thumbnails.unbind(holder.ivPhoto);
+    }
+
+    // Discard the thumbnails not displayed, to release memory
+    public void trimMemory() {
+        thumbnails.trim();
+    }
+
+    @Override
+    public int getItemCount() {
+        return contacts.size();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.adapters;
+
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.NonNull;
+import androidx.collection.LruCache;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import labs.dadm.l0405_databases.database.ContactRepository;
+
+// Displays the thumbnails of the contacts' photos in ImageViews. Thumbnails are read and decoded
+// in background, and the most recently used ones are kept in memory up to a maximum number of bytes.
+// A bitmap may be displayed by several views at once, so it is counted how many display it:
+// once it is evicted from the cache and no view displays it (their rows were rebound or recycled),
+// it goes to a small pool, and the next thumbnails are decoded into it, instead of allocating new ones.
+// It must only be used from the main thread.
+class ThumbnailCache {
+
+    // Maximum number of bitmaps kept to be reused
+    private static final int POOL_SIZE = 8;
+    // Maximum number of contacts remembered to have no photo
+    private static final int MAX_MISSING = 1000;
+
+    private final ContactRepository repository;
+    // Image displayed while the thumbnail is loaded, or if there is none
+    private final int placeholder;
+    // Thumbnails by contact ID, sized by the bytes of their pixels
+    private final LruCache<Long, Bitmap> cache;
+    // Contacts known to have no photo, so they are not read again
+    private final LruCache<Long, Boolean> missing = new LruCache<>(MAX_MISSING);
+    // Number of views displaying each bitmap
+    private final Map<Bitmap, Integer> displayed = new IdentityHashMap<>();
+    // Bitmaps evicted from the cache while they were displayed, to be reused once they are not
+    private final Map<Bitmap, Boolean> evicted = new IdentityHashMap<>();
+    // Bitmaps that can be reused
+    private final ArrayDeque<Bitmap> pool = new ArrayDeque<>();
+    // Loads in progress, by contact ID (a newer load replaces the object, discarding the older one)
+    private final Map<Long, Object> loading = new HashMap<>();
+    // Contact whose thumbnail each view should display, and the bitmap it displays (views that
+    // are no longer used are discarded with their holders, so they are weakly referenced)
+    private final Map<ImageView, Long> boundIds = new WeakHashMap<>();
+    private final Map<ImageView, Bitmap> boundBitmaps = new WeakHashMap<>();
+
+    ThumbnailCache(@NonNull ContactRepository repository, int maxBytes, @DrawableRes int placeholder) {
+        this.repository = repository;
+        this.placeholder = placeholder;
+        this.cache = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(@NonNull Long key, @NonNull Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, @NonNull Long key, @NonNull Bitmap oldValue, Bitmap newValue) {
+                if (displayed.containsKey(oldValue)) {
+                    ThumbnailCache.this.evicted.put(oldValue, true);
+                } else {
+                    release(oldValue);
+                }
+            }
+        };
+    }
+
+    // Display the thumbnail of the given contact in the view, loading it if required
+    void bind(@NonNull ImageView view, long id) {
+        unbind(view);
+        boundIds.put(view, id);
+        final Bitmap cached = cache.get(id);
+        if (cached != null) {
+            show(view, cached);
+            return;
+        }
+        if (missing.get(id) != null || loading.containsKey(id)) {
+            return;
+        }
+        final Object load = new Object();
+        loading.put(id, load);
+        final Bitmap reusable = pool.poll();
+        repository.loadThumbnail(id, reusable, bitmap -> {
+            // The bitmap from the pool goes back to it unless the thumbnail was decoded into it
+            if (reusable != null && reusable != bitmap) {
+                release(reusable);
+            }
+            if (loading.get(id) != load) {
+                // Invalidated while it was loaded
+                if (bitmap != null) {
+                    release(bitmap);
+                }
+                return;
+            }
+            loading.remove(id);
+            if (bitmap == null) {
+                missing.put(id, true);
+                return;
+            }
+            cache.put(id, bitmap);
+            // Display it in all the views still waiting for it
+            for (Map.Entry<ImageView, Long> entry : boundIds.entrySet()) {
+                if (entry.getValue() == id && !boundBitmaps.containsKey(entry.getKey())) {
+                    show(entry.getKey(), bitmap);
+                }
+            }
+        });
+    }
+
+    // Stop displaying a thumbnail in the view (its row is being rebound or recycled)
+    void unbind(@NonNull ImageView view) {
+        boundIds.remove(view);
+        final Bitmap bitmap = boundBitmaps.remove(view);
+        view.setImageResource(placeholder);
+        if (bitmap == null) {
+            return;
+        }
+        final int count = displayed.get(bitmap) - 1;
+        if (count > 0) {
+            displayed.put(bitmap, count);
+            return;
+        }
+        displayed.remove(bitmap);
+        if (evicted.remove(bitmap) != null) {
+            release(bitmap);
+        }
+    }
+
+    // Discard the thumbnail of the given contact, as its photo may have changed
+    void invalidate(long id) {
+        missing.remove(id);
+        loading.remove(id);
+        cache.remove(id);
+    }
+
+    // Discard all the thumbnails that are not displayed (e.g. when the system is running low on memory)
+    void trim() {
+        cache.evictAll();
+        for (Bitmap bitmap : pool) {
+            bitmap.recycle();
+        }
+        pool.clear();
+    }
+
+    // Display a bitmap in the view
+    private void show(ImageView view, Bitmap bitmap) {
+        view.setImageBitmap(bitmap);
+        boundBitmaps.put(view, bitmap);
+        final Integer count = displayed.get(bitmap);
+        displayed.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    // Keep a bitmap that is no longer cached nor displayed to be reused, or free its memory
+    private void release(Bitmap bitmap) {
+        if (pool.size() < POOL_SIZE && bitmap.isMutable()) {
+            pool.add(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import java.text.Collator;
+import java.text.Normalizer;
+import java.util.Locale;
+
+// Orders names alphabetically according to the rules of the default locale (accents and case
+// are taken into account as the language does), and generates the keys stored in the database
+// so that contacts can be listed in that order without sorting them each time:
+//  sort key: collation key of the name, as a hexadecimal string (so it can be bound as a
+//      query argument), whose binary order is the order of the names
+//  section: first letter of the name, without accents nor case, or # if it is not a letter
+// Collators are not thread safe, so they are only accessed while holding the class lock.
+public final class ContactCollation {
+
+    // Section of the names that do not start with a letter
+    public static final String OTHER_SECTION = "#";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // Locale of the current collators
+    private static Locale locale;
+    // Collator that tells letters apart by their accents, but not by their case
+    private static Collator collator;
+    // Collator that only tells different base letters apart, to find the section of a name
+    private static Collator primaryCollator;
+
+    // Prevents anyone from instantiating this class
+    private ContactCollation() {
+    }
+
+    // Compare two names in the same order as their sort keys
+    public static synchronized int compareNames(String name1, String name2) {
+        return getCollator().compare(name1, name2);
+    }
+
+    // Get the locale used to compare names and generate keys
+    static synchronized Locale getLocale() {
+        getCollator();
+        return locale;
+    }
+
+    // Generate the sort key of a name
+    static synchronized String getSortKey(String name) {
+        final byte[] key = getCollator().getCollationKey(name).toByteArray();
+        final char[] hex = new char[key.length * 2];
+        for (int i = 0; i < key.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(key[i] >> 4) & 0x0F];
+            hex[2 * i + 1] = HEX_DIGITS[key[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    // Get the section of a name: its first letter in uppercase, without its accent if the
+    // language considers it the same letter (so É goes with E in English, but Ñ keeps its own section in Spanish)
+    static synchronized String getSection(String name) {
+        final String trimmed = name.trim();
+        if (trimmed.isEmpty() || !Character.isLetter(trimmed.codePointAt(0))) {
+            return OTHER_SECTION;
+        }
+        getCollator();
+        final String letter = trimmed.substring(0, Character.charCount(trimmed.codePointAt(0)))
+                .toUpperCase(locale);
+        final String base = Normalizer.normalize(letter, Normalizer.Form.NFD).substring(0, 1);
+        return primaryCollator.compare(letter, base) == 0 ? base : letter;
+    }
+
+    // Get the collator for the default locale, creating new ones if it has changed
+    private static Collator getCollator() {
+        final Locale current = Locale.getDefault();
+        if (!current.equals(locale)) {
+            collator = Collator.getInstance(current);
+            collator.setStrength(Collator.SECONDARY);
+            primaryCollator = Collator.getInstance(current);
+            primaryCollator.setStrength(Collator.PRIMARY);
+            locale = current;
+        }
+        return collator;
+    }
+}
@@ -4,10 +4,21 @@
 
 package labs.dadm.l0405_databases.database;
 
+import android.content.ContentResolver;
+import android.net.Uri;
 import android.provider.BaseColumns;
 
 // Contracts define constants for names of URIs, tables and columns.
-class ContactContract {
+// The public constants describe the data that other apps can access through ContactProvider,
+// while the rest describe how it is stored and are only used by this package.
+public final class ContactContract {
+
+    // Authority of ContactProvider
+    public static final String AUTHORITY = "labs.dadm.l0405_databases.provider";
+    // Base URI of all the data provided
+    public static final Uri BASE_CONTENT_URI = Uri.parse(ContentResolver.SCHEME_CONTENT + "://" + AUTHORITY);
+    // Permission required to access ContactProvider
+    public static final String PERMISSION = "labs.dadm.l0405_databases.permission.ACCESS_CONTACTS";
 
     // Prevents anyone from instantiating this class
     private ContactContract() {
@@ -15,11 +26,94 @@ class ContactContract {
 
     // Contents for contacts table
     // By implementing BaseColumns it inherits a primary key called _ID
-    static class ContactEntry implements BaseColumns {
+    public static final class ContactEntry implements BaseColumns {
+        // Path of the contacts, and URI of all of them (append the ID to get the URI of a single one)
+        public static final String PATH = "contacts";
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH).build();
+        // MIME types of a list of contacts and of a single contact
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd." + AUTHORITY + "." + PATH;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd." + AUTHORITY + "." + PATH;
+        // Query parameter of CONTENT_URI to limit the number of contacts returned
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        public static final String COLUMN_NAME_ID = "_ID";
+        public static final String COLUMN_NAME_NAME = "name";
+        public static final String COLUMN_NAME_EMAIL = "email";
+        public static final String COLUMN_NAME_PHONE = "phone";
+        public static final String COLUMN_NAME_NOTES = "notes";
+        // Version of the contact, increased by each update (read-only).
+        // Including "version = ?" in the selection of an update only applies it if no one else changed the contact
+        public static final String COLUMN_NAME_VERSION = "version";
+
+        // Storage of the contacts, only used by this package
         static final String TABLE_NAME = "contacts_table";
-        static final String COLUMN_NAME_ID = "_ID";
-        static final String COLUMN_NAME_NAME = "name";
-        static final String COLUMN_NAME_EMAIL = "email";
-        static final String COLUMN_NAME_PHONE = "phone";
+        static final String COLUMN_NAME_EMAIL_KEY = "email_key";
+        static final String COLUMN_NAME_PHONE_KEY = "phone_key";
+        static final String COLUMN_NAME_SORT_KEY = "sort_key";
+        static final String COLUMN_NAME_SECTION = "section";
+        static final String COLUMN_NAME_DELETED = "deleted";
+        // Name of the file with the full photo (in the photo directory of the database), or null
+        static final String COLUMN_NAME_PHOTO = "photo";
+
+        static final String INDEX_NAME_NAME = "contacts_name_index";
+        static final String INDEX_NAME_EMAIL = "contacts_email_index";
+        static final String INDEX_NAME_PHONE = "contacts_phone_index";
+        static final String INDEX_NAME_EMAIL_KEY = "contacts_email_key_index";
+        static final String INDEX_NAME_PHONE_KEY = "contacts_phone_key_index";
+        static final String INDEX_NAME_SORT_KEY = "contacts_sort_key_index";
+        static final String INDEX_NAME_SECTION = "contacts_section_index";
+
+        // Prevents anyone from instantiating this class
+        private ContactEntry() {
+        }
+    }
+
+    // Contents for the table of settings the stored data depends on, as key-value pairs
+    static class MetadataEntry {
+        static final String TABLE_NAME = "contacts_metadata";
+        static final String COLUMN_NAME_KEY = "key";
+        static final String COLUMN_NAME_VALUE = "value";
+
+        // Locale used to generate the sort keys of the contacts
+        static final String KEY_SORT_LOCALE = "sort_locale";
+    }
+
+    // Contents for the table of thumbnails of the contacts' photos, kept apart from the
+    // contacts table so that reading contacts does not read any image
+    static class ThumbnailEntry {
+        static final String TABLE_NAME = "contacts_thumbnails";
+        static final String COLUMN_NAME_CONTACT_ID = "contact_id";
+        static final String COLUMN_NAME_DATA = "data";
+
+        static final String TRIGGER_NAME_AFTER_DELETE = "contacts_thumbnails_after_delete";
+    }
+
+    // Contents for the journal of changes made to the contacts, filled by triggers so that every
+    // change is recorded whoever makes it. Sequence numbers only increase (even after entries
+    // are removed), and each entry only records which contact changed: the contact is sent
+    // as it is when the change is synchronized (see ContactSync)
+    static class JournalEntry {
+        static final String TABLE_NAME = "contacts_journal";
+        static final String COLUMN_NAME_SEQUENCE = "seq";
+        static final String COLUMN_NAME_CONTACT_ID = "contact_id";
+
+        static final String INDEX_NAME_CONTACT_ID = "contacts_journal_contact_id_index";
+        static final String TRIGGER_NAME_AFTER_INSERT = "contacts_journal_after_insert";
+        static final String TRIGGER_NAME_AFTER_UPDATE = "contacts_journal_after_update";
+        static final String TRIGGER_NAME_AFTER_DELETE = "contacts_journal_after_delete";
+    }
+
+    // Contents for the full-text search table, which indexes the name, email,
+    // and phone columns of the contacts table (its docid is the _ID of the contact)
+    static class ContactSearchEntry {
+        static final String TABLE_NAME = "contacts_fts";
+        static final String COLUMN_NAME_DOCID = "docid";
+
+        static final String TRIGGER_NAME_BEFORE_UPDATE = "contacts_fts_before_update";
+        static final String TRIGGER_NAME_BEFORE_DELETE = "contacts_fts_before_delete";
+        static final String TRIGGER_NAME_AFTER_UPDATE = "contacts_fts_after_update";
+        static final String TRIGGER_NAME_AFTER_INSERT = "contacts_fts_after_insert";
     }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import java.io.Closeable;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+// Streams the contacts resulting from a query without creating objects for each row.
+// The same Row object is handed out for every row: its text is copied into reusable
+// character buffers, which only grow when a longer value is found.
+// Rows must be copied with Row.toContact() if they are needed after moving to the next one.
+// The cursor must be closed once it is no longer required.
+public class ContactCursor implements Closeable {
+
+    // Positions of the columns in the cursor
+    static final int COLUMN_ID = 0;
+    static final int COLUMN_NAME = 1;
+    static final int COLUMN_EMAIL = 2;
+    static final int COLUMN_PHONE = 3;
+    static final int COLUMN_VERSION = 4;
+
+    // Cursor resulting from the query
+    private final Cursor cursor;
+    // View over the current row, reused for all of them
+    private final Row row = new Row();
+
+    // Mutable view over the current row of the cursor
+    public static class Row {
+        private long id;
+        private long version;
+        private final CharArrayBuffer name = new CharArrayBuffer(64);
+        private final CharArrayBuffer email = new CharArrayBuffer(64);
+        private final CharArrayBuffer phone = new CharArrayBuffer(32);
+
+        private Row() {
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        // Characters of the name are in data[0..sizeCopied)
+        public CharArrayBuffer getName() {
+            return name;
+        }
+
+        // Characters of the email are in data[0..sizeCopied)
+        public CharArrayBuffer getEmail() {
+            return email;
+        }
+
+        // Characters of the phone are in data[0..sizeCopied)
+        public CharArrayBuffer getPhone() {
+            return phone;
+        }
+
+        // Copy the current row into the given Contact object
+        public void copyTo(Contact contact) {
+            contact.set_ID(id);
+            contact.setVersion(version);
+            contact.setName(new String(name.data, 0, name.sizeCopied));
+            contact.setEmail(new String(email.data, 0, email.sizeCopied));
+            contact.setPhone(new String(phone.data, 0, phone.sizeCopied));
+        }
+
+        // Create a new Contact object with the data of the current row
+        public Contact toContact() {
+            final Contact contact = new Contact(
+                    new String(name.data, 0, name.sizeCopied),
+                    new String(email.data, 0, email.sizeCopied),
+                    new String(phone.data, 0, phone.sizeCopied));
+            contact.set_ID(id);
+            contact.setVersion(version);
+            return contact;
+        }
+    }
+
+    // Interface to go through the contacts one row at a time.
+    // Returns false to stop
+    public interface Visitor {
+        boolean visit(Row row);
+    }
+
+    // The cursor must include _ID, name, email, phone, and version, in this order
+    ContactCursor(Cursor cursor) {
+        this.cursor = cursor;
+    }
+
+    // Number of rows in the cursor
+    public int getCount() {
+        return cursor.getCount();
+    }
+
+    // Move to the next row and update the view over it.
+    // Returns false once there are no more rows
+    public boolean moveToNext() {
+        if (!cursor.moveToNext()) {
+            return false;
+        }
+        row.id = cursor.getLong(COLUMN_ID);
+        row.version = cursor.getLong(COLUMN_VERSION);
+        cursor.copyStringToBuffer(COLUMN_NAME, row.name);
+        cursor.copyStringToBuffer(COLUMN_EMAIL, row.email);
+        cursor.copyStringToBuffer(COLUMN_PHONE, row.phone);
+        return true;
+    }
+
+    // Get the view over the current row (the same object for every row)
+    public Row getRow() {
+        return row;
+    }
+
+    // Go through all the remaining rows until the visitor asks to stop
+    public void forEach(Visitor visitor) {
+        while (moveToNext()) {
+            if (!visitor.visit(row)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        cursor.close();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import java.util.Locale;
+
+// Generates the normalized keys used to detect duplicated contacts,
+// so that different ways of writing the same phone or email are compared equal
+final class ContactKeys {
+
+    // Prevents anyone from instantiating this class
+    private ContactKeys() {
+    }
+
+    // Normalize a phone number in E.164 style: only digits, preceded by '+' if the
+    // number includes its country code (written as '+' or the international prefix 00).
+    // Numbers without country code keep their digits only, as the country cannot be inferred.
+    // Returns null if there are no digits, so empty phones are never considered duplicates
+    static String normalizePhone(String phone) {
+        if (phone == null) {
+            return null;
+        }
+        final StringBuilder builder = new StringBuilder(phone.length() + 1);
+        boolean international = false;
+        for (int i = 0; i < phone.length(); i++) {
+            final char c = phone.charAt(i);
+            if (c >= '0' && c <= '9') {
+                builder.append(c);
+            } else if (c == '+' && builder.length() == 0) {
+                international = true;
+            }
+        }
+        // 00 is the international prefix used by most countries
+        if (!international && builder.length() > 2 && builder.charAt(0) == '0' && builder.charAt(1) == '0') {
+            builder.delete(0, 2);
+            international = true;
+        }
+        if (builder.length() == 0) {
+            return null;
+        }
+        return international ? builder.insert(0, '+').toString() : builder.toString();
+    }
+
+    // Normalize an email address: trimmed and lowercased.
+    // Returns null if it is empty, so empty emails are never considered duplicates
+    static String normalizeEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        final String key = email.trim().toLowerCase(Locale.ROOT);
+        return key.isEmpty() ? null : key;
+    }
+}
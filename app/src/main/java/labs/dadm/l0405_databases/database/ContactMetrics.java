@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Records the latency of the operations performed by CustomSqliteOpenHelper, the rows they
+// read or write, and whether they were executed on the main thread.
+// Latencies are counted into fixed histogram buckets with atomic counters, so recording an
+// operation takes a few increments and no locks or allocations, and it can be left on in release builds.
+// Each power of two (in microseconds) is split into 4 buckets, so percentiles are within 25% of the real value.
+public class ContactMetrics {
+
+    // Operations measured
+    public enum Operation {
+        OPEN, GET_CONTACTS, GET_PAGE, GET_CONTACT, SEARCH, QUERY, FIND_DUPLICATES,
+        ADD, UPDATE, DELETE, ADD_BATCH, UPDATE_BATCH, DELETE_BATCH, COMPACT, SYNC
+    }
+
+    // Name of the file (in the app's files directory) where metrics are usually written
+    public static final String METRICS_FILE = "contact_metrics.json";
+
+    // Tag for the warnings logged
+    private static final String TAG = "ContactMetrics";
+    // Number of buckets of each histogram: up to 2^31 microseconds (about 35 minutes)
+    static final int BUCKETS = 120;
+    // Default latency (milliseconds) above which operations are logged as slow
+    private static final long DEFAULT_SLOW_THRESHOLD = 50;
+
+    // Statistics of each operation
+    private final Stats[] stats = new Stats[Operation.values().length];
+    // Latency (nanoseconds) above which operations are logged as slow
+    private volatile long slowThresholdNanos = DEFAULT_SLOW_THRESHOLD * 1000000;
+
+    // Statistics of a single operation
+    private static class Stats {
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong mainThread = new AtomicLong();
+        final AtomicLong slow = new AtomicLong();
+    }
+
+    ContactMetrics() {
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new Stats();
+        }
+    }
+
+    // Set the latency (milliseconds) above which operations are logged as slow
+    public void setSlowOperationThreshold(long millis) {
+        slowThresholdNanos = millis * 1000000;
+    }
+
+    // Record an operation that started at the given System.nanoTime() and read or wrote the given rows
+    void record(Operation operation, long startNanos, int rows) {
+        final long elapsed = System.nanoTime() - startNanos;
+        final boolean onMainThread = Looper.myLooper() == Looper.getMainLooper();
+        final Stats stats = this.stats[operation.ordinal()];
+
+        stats.histogram.incrementAndGet(getBucket(elapsed));
+        stats.count.incrementAndGet();
+        stats.totalNanos.addAndGet(elapsed);
+        stats.rows.addAndGet(rows);
+        long max = stats.maxNanos.get();
+        while (elapsed > max && !stats.maxNanos.compareAndSet(max, elapsed)) {
+            max = stats.maxNanos.get();
+        }
+        if (onMainThread) {
+            stats.mainThread.incrementAndGet();
+        }
+        if (elapsed > slowThresholdNanos) {
+            stats.slow.incrementAndGet();
+            Log.w(TAG, operation + " took " + elapsed / 1000000 + " ms (" + rows + " rows" +
+                    (onMainThread ? ", on the main thread)" : ")"));
+        }
+    }
+
+    // Get the number of times the operation was performed
+    public long getCount(Operation operation) {
+        return stats[operation.ordinal()].count.get();
+    }
+
+    // Get the total number of rows read or written by the operation
+    public long getRowCount(Operation operation) {
+        return stats[operation.ordinal()].rows.get();
+    }
+
+    // Get the number of times the operation was performed on the main thread
+    public long getMainThreadCount(Operation operation) {
+        return stats[operation.ordinal()].mainThread.get();
+    }
+
+    // Get the number of times the operation took longer than the slow threshold
+    public long getSlowCount(Operation operation) {
+        return stats[operation.ordinal()].slow.get();
+    }
+
+    // Get the maximum latency of the operation (nanoseconds)
+    public long getMaxNanos(Operation operation) {
+        return stats[operation.ordinal()].maxNanos.get();
+    }
+
+    // Get the mean latency of the operation (nanoseconds), or 0 if it was never performed
+    public long getMeanNanos(Operation operation) {
+        final Stats stats = this.stats[operation.ordinal()];
+        final long count = stats.count.get();
+        return count == 0 ? 0 : stats.totalNanos.get() / count;
+    }
+
+    // Get the given percentile (0-100) of the latency of the operation (nanoseconds),
+    // as the upper bound of the histogram bucket where it falls, or 0 if it was never performed
+    public long getPercentileNanos(Operation operation, int percentile) {
+        final AtomicLongArray histogram = stats[operation.ordinal()].histogram;
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return getBucketLimit(i + 1) * 1000;
+            }
+        }
+        return getBucketLimit(BUCKETS) * 1000;
+    }
+
+    // Discard all the recorded statistics
+    public void reset() {
+        for (Stats stats : this.stats) {
+            for (int i = 0; i < BUCKETS; i++) {
+                stats.histogram.set(i, 0);
+            }
+            stats.count.set(0);
+            stats.totalNanos.set(0);
+            stats.maxNanos.set(0);
+            stats.rows.set(0);
+            stats.mainThread.set(0);
+            stats.slow.set(0);
+        }
+    }
+
+    // Get the statistics of all the operations performed as a JSON object
+    public JSONObject toJson() throws JSONException {
+        final JSONArray operations = new JSONArray();
+        for (Operation operation : Operation.values()) {
+            if (getCount(operation) == 0) {
+                continue;
+            }
+            final JSONObject result = new JSONObject();
+            result.put("operation", operation.name());
+            result.put("count", getCount(operation));
+            result.put("rows", getRowCount(operation));
+            result.put("mainThread", getMainThreadCount(operation));
+            result.put("slow", getSlowCount(operation));
+            result.put("meanNanos", getMeanNanos(operation));
+            result.put("maxNanos", getMaxNanos(operation));
+            result.put("p50Nanos", getPercentileNanos(operation, 50));
+            result.put("p95Nanos", getPercentileNanos(operation, 95));
+            result.put("p99Nanos", getPercentileNanos(operation, 99));
+            operations.put(result);
+        }
+        final JSONObject report = new JSONObject();
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("slowThresholdNanos", slowThresholdNanos);
+        report.put("operations", operations);
+        return report;
+    }
+
+    // Write the statistics of all the operations performed as JSON into the given file
+    public void writeTo(File file) throws IOException, JSONException {
+        final String json = toJson().toString(2);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(json);
+        }
+    }
+
+    // Get the histogram bucket for the given latency: values below 4 microseconds have their own
+    // bucket, and each following power of two is split into 4 buckets by its next two bits
+    static int getBucket(long nanos) {
+        final long micros = nanos / 1000;
+        if (micros < 4) {
+            return (int) Math.max(0, micros);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        final int bucket = 4 * (exponent - 1) + (int) ((micros >>> (exponent - 2)) & 3);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    // Get the lowest latency (microseconds) counted into the given bucket
+    static long getBucketLimit(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        return (4L + bucket % 4) << (bucket / 4 - 1);
+    }
+}
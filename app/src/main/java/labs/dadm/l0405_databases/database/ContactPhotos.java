@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Scales, encodes, and decodes the photos of the contacts:
+//  photos are stored as JPEG files of at most MAX_PHOTO_SIZE pixels on their longest side
+//  thumbnails are square JPEG images of THUMBNAIL_SIZE pixels, small enough to be stored in the database
+// Thumbnails are decoded as RGB_565 (photos have no transparency), so each one takes half the memory,
+// and into a given bitmap if possible, so bitmaps no longer displayed can be reused.
+final class ContactPhotos {
+
+    // Maximum width or height (pixels) of the stored photos
+    static final int MAX_PHOTO_SIZE = 1024;
+    // Width and height (pixels) of the thumbnails
+    static final int THUMBNAIL_SIZE = 96;
+
+    // Quality of the JPEG compression (0-100)
+    private static final int PHOTO_QUALITY = 90;
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    // Prevents anyone from instantiating this class
+    private ContactPhotos() {
+    }
+
+    // Decode the image with the given URI, scaled down to at most MAX_PHOTO_SIZE pixels.
+    // Only the pixels required are decoded, so large images do not fill the memory
+    static Bitmap decodePhoto(ContentResolver resolver, Uri uri) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream input = resolver.openInputStream(uri)) {
+            BitmapFactory.decodeStream(input, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + uri);
+        }
+        // Largest power of two that keeps the image at least as large as required
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= MAX_PHOTO_SIZE) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        final Bitmap decoded;
+        try (InputStream input = resolver.openInputStream(uri)) {
+            decoded = BitmapFactory.decodeStream(input, null, options);
+        }
+        if (decoded == null) {
+            throw new IOException("Image could not be decoded: " + uri);
+        }
+        return scale(decoded, MAX_PHOTO_SIZE);
+    }
+
+    // Store the photo as a JPEG file. It is written to a temporary file that then replaces it,
+    // so it is never left half written
+    static void writePhoto(Bitmap photo, File file) throws IOException {
+        final File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Directory could not be created: " + directory);
+        }
+        final File temporary = new File(file.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            photo.compress(Bitmap.CompressFormat.JPEG, PHOTO_QUALITY, output);
+            output.getFD().sync();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Photo could not be stored: " + file);
+        }
+    }
+
+    // Generate the thumbnail of a photo: its central square, scaled to THUMBNAIL_SIZE pixels,
+    // and compressed as JPEG
+    static byte[] createThumbnail(Bitmap photo) {
+        final int side = Math.min(photo.getWidth(), photo.getHeight());
+        final Bitmap square = Bitmap.createBitmap(photo,
+                (photo.getWidth() - side) / 2, (photo.getHeight() - side) / 2, side, side);
+        final Bitmap thumbnail = Bitmap.createScaledBitmap(square, THUMBNAIL_SIZE, THUMBNAIL_SIZE, true);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, output);
+        if (square != photo) {
+            square.recycle();
+        }
+        if (thumbnail != square && thumbnail != photo) {
+            thumbnail.recycle();
+        }
+        return output.toByteArray();
+    }
+
+    // Decode a thumbnail, into the given bitmap if it is not null and it can be reused.
+    // Returns null if the data is not a valid image
+    static Bitmap decodeThumbnail(byte[] data, Bitmap reusable) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        // Decoded bitmaps can be reused to decode other thumbnails later
+        options.inMutable = true;
+        if (reusable != null && reusable.isMutable() && !reusable.isRecycled()) {
+            options.inBitmap = reusable;
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } catch (IllegalArgumentException e) {
+                // The bitmap cannot hold this image (older versions require the same size)
+                options.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    // Scale the image down so its longest side is at most the given size (the original one is recycled)
+    private static Bitmap scale(Bitmap image, int maxSize) {
+        final int longest = Math.max(image.getWidth(), image.getHeight());
+        if (longest <= maxSize) {
+            return image;
+        }
+        final Bitmap scaled = Bitmap.createScaledBitmap(image,
+                Math.max(1, image.getWidth() * maxSize / longest),
+                Math.max(1, image.getHeight() * maxSize / longest),
+                true);
+        if (scaled != image) {
+            image.recycle();
+        }
+        return scaled;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+// Gives other apps (holding ContactContract.PERMISSION) access to the contacts, through the
+// URIs defined in ContactContract:
+//  ContactEntry.CONTENT_URI: all the contacts (a limit can be given as query parameter)
+//  ContactEntry.CONTENT_URI/ID: a single contact
+// Queries are executed by SQLite with the given projection, selection, and order (which can only use
+// the public columns), but writes go through CustomSqliteOpenHelper, so keys, caches, and listeners
+// are kept up to date.
+// Batches of operations are applied within a single transaction, so either all or none of them take effect.
+public class ContactProvider extends ContentProvider {
+
+    // Codes of the URIs
+    private static final int CONTACTS = 1;
+    private static final int CONTACT_ID = 2;
+
+    private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        uriMatcher.addURI(ContactContract.AUTHORITY, ContactContract.ContactEntry.PATH, CONTACTS);
+        uriMatcher.addURI(ContactContract.AUTHORITY, ContactContract.ContactEntry.PATH + "/#", CONTACT_ID);
+    }
+
+    // Columns used to read the contacts to be updated (notes are kept unless they are given)
+    private static final String[] CONTACT_PROJECTION = {
+            ContactContract.ContactEntry.COLUMN_NAME_ID,
+            ContactContract.ContactEntry.COLUMN_NAME_NAME,
+            ContactContract.ContactEntry.COLUMN_NAME_EMAIL,
+            ContactContract.ContactEntry.COLUMN_NAME_PHONE,
+            ContactContract.ContactEntry.COLUMN_NAME_VERSION};
+    // Columns used to read the contacts to be deleted
+    private static final String[] ID_PROJECTION = {ContactContract.ContactEntry.COLUMN_NAME_ID};
+
+    private CustomSqliteOpenHelper helper;
+    // Notifies observers of CONTENT_URI on the main thread, once for all the changes made in a row
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable notifyChange = this::notifyChange;
+
+    public ContactProvider() {
+    }
+
+    // Create a provider over the given database (used by benchmarks, without a Context)
+    ContactProvider(CustomSqliteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    @Override
+    public boolean onCreate() {
+        if (helper == null) {
+            helper = CustomSqliteOpenHelper.getInstance(getContext());
+        }
+        // Changes are notified whether they are made through the provider or the app itself
+        helper.addOnContactChangedListener(new CustomSqliteOpenHelper.OnContactChangedListener() {
+            @Override
+            public void onContactChanged(CustomSqliteOpenHelper.ChangeType type, long id, Contact contact) {
+                scheduleNotifyChange();
+            }
+
+            @Override
+            public void onContactsChanged(List<CustomSqliteOpenHelper.ContactChange> changes) {
+                scheduleNotifyChange();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch (uriMatcher.match(uri)) {
+            case CONTACTS:
+                return ContactContract.ContactEntry.CONTENT_TYPE;
+            case CONTACT_ID:
+                return ContactContract.ContactEntry.CONTENT_ITEM_TYPE;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        String limit = null;
+        switch (uriMatcher.match(uri)) {
+            case CONTACTS:
+                limit = uri.getQueryParameter(ContactContract.ContactEntry.QUERY_PARAMETER_LIMIT);
+                if (limit != null && !limit.matches("\\d+")) {
+                    throw new IllegalArgumentException("Invalid limit: " + limit);
+                }
+                break;
+            case CONTACT_ID:
+                selection = getSelection(uri, selection);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown URI: " + uri);
+        }
+        final Cursor cursor = helper.query(projection, selection, selectionArgs, sortOrder, limit);
+        final Context context = getContext();
+        if (context != null) {
+            cursor.setNotificationUri(context.getContentResolver(), uri);
+        }
+        return cursor;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        checkContactsUri(uri);
+        final long id = helper.addContact(toContact(values));
+        return id == -1 ? null : ContentUris.withAppendedId(ContactContract.ContactEntry.CONTENT_URI, id);
+    }
+
+    // Insert all the contacts within a single transaction
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        checkContactsUri(uri);
+        final List<Contact> contacts = new ArrayList<>(values.length);
+        for (ContentValues value : values) {
+            contacts.add(toContact(value));
+        }
+        int inserted = 0;
+        for (long id : helper.addContacts(contacts)) {
+            if (id != -1) {
+                inserted++;
+            }
+        }
+        return inserted;
+    }
+
+    // Update the contacts matching the selection. They are read and written within the same
+    // transaction, so no other change can be made in between
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        final String where = getSelection(uri, selection);
+        checkColumns(values);
+        return runInTransaction(() -> {
+            final List<Contact> contacts = new ArrayList<>();
+            try (Cursor cursor = helper.query(CONTACT_PROJECTION, where, selectionArgs, null, null)) {
+                while (cursor.moveToNext()) {
+                    final Contact contact = new Contact(
+                            cursor.getString(ContactCursor.COLUMN_NAME),
+                            cursor.getString(ContactCursor.COLUMN_EMAIL),
+                            cursor.getString(ContactCursor.COLUMN_PHONE));
+                    contact.set_ID(cursor.getLong(ContactCursor.COLUMN_ID));
+                    contact.setVersion(cursor.getLong(ContactCursor.COLUMN_VERSION));
+                    contacts.add(applyValues(values, contact));
+                }
+            }
+            return helper.updateContacts(contacts);
+        });
+    }
+
+    // Delete the contacts matching the selection, within a single transaction
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final String where = getSelection(uri, selection);
+        return runInTransaction(() -> {
+            final long[] ids;
+            try (Cursor cursor = helper.query(ID_PROJECTION, where, selectionArgs, null, null)) {
+                ids = new long[cursor.getCount()];
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    ids[i] = cursor.getLong(0);
+                }
+            }
+            return helper.deleteContacts(ids);
+        });
+    }
+
+    // Apply all the operations within a single transaction: if any of them fails, none is applied
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        try {
+            return helper.runInTransaction(() -> super.applyBatch(operations));
+        } catch (OperationApplicationException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new OperationApplicationException(e.getMessage());
+        }
+    }
+
+    // Notify the observers once the changes made in a row are finished
+    private void scheduleNotifyChange() {
+        handler.removeCallbacks(notifyChange);
+        handler.post(notifyChange);
+    }
+
+    // Notify the observers that the contacts have changed
+    private void notifyChange() {
+        final Context context = getContext();
+        if (context != null) {
+            context.getContentResolver().notifyChange(ContactContract.ContactEntry.CONTENT_URI, null);
+        }
+    }
+
+    // Execute operations that cannot throw checked exceptions within a single transaction
+    private int runInTransaction(Callable<Integer> operations) {
+        try {
+            return helper.runInTransaction(operations);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Throw an exception unless the URI refers to all the contacts
+    private static void checkContactsUri(Uri uri) {
+        if (uriMatcher.match(uri) != CONTACTS) {
+            throw new IllegalArgumentException("Unsupported URI: " + uri);
+        }
+    }
+
+    // Get the selection of the contacts the URI refers to, combined with the given one
+    private static String getSelection(Uri uri, String selection) {
+        switch (uriMatcher.match(uri)) {
+            case CONTACTS:
+                return selection;
+            case CONTACT_ID:
+                final String byId = ContactContract.ContactEntry.COLUMN_NAME_ID + " = " + ContentUris.parseId(uri);
+                return selection == null || selection.isEmpty() ? byId : byId + " AND (" + selection + ")";
+            default:
+                throw new IllegalArgumentException("Unknown URI: " + uri);
+        }
+    }
+
+    // Throw an exception if the values include columns that cannot be written
+    private static void checkColumns(ContentValues values) {
+        for (String column : values.keySet()) {
+            if (!ContactContract.ContactEntry.COLUMN_NAME_NAME.equals(column) &&
+                    !ContactContract.ContactEntry.COLUMN_NAME_EMAIL.equals(column) &&
+                    !ContactContract.ContactEntry.COLUMN_NAME_PHONE.equals(column) &&
+                    !ContactContract.ContactEntry.COLUMN_NAME_NOTES.equals(column)) {
+                throw new IllegalArgumentException("Unknown column: " + column);
+            }
+        }
+    }
+
+    // Create a new contact with the given values. The name is required, the rest are optional
+    private static Contact toContact(ContentValues values) {
+        checkColumns(values);
+        if (values.getAsString(ContactContract.ContactEntry.COLUMN_NAME_NAME) == null) {
+            throw new IllegalArgumentException("Contact name is required");
+        }
+        return applyValues(values, new Contact(null, "", ""));
+    }
+
+    // Replace the data of the contact with the given values (missing ones are kept)
+    private static Contact applyValues(ContentValues values, Contact contact) {
+        if (values.containsKey(ContactContract.ContactEntry.COLUMN_NAME_NAME)) {
+            final String name = values.getAsString(ContactContract.ContactEntry.COLUMN_NAME_NAME);
+            if (name == null) {
+                throw new IllegalArgumentException("Contact name is required");
+            }
+            contact.setName(name);
+        }
+        if (values.containsKey(ContactContract.ContactEntry.COLUMN_NAME_EMAIL)) {
+            final String email = values.getAsString(ContactContract.ContactEntry.COLUMN_NAME_EMAIL);
+            contact.setEmail(email == null ? "" : email);
+        }
+        if (values.containsKey(ContactContract.ContactEntry.COLUMN_NAME_PHONE)) {
+            final String phone = values.getAsString(ContactContract.ContactEntry.COLUMN_NAME_PHONE);
+            contact.setPhone(phone == null ? "" : phone);
+        }
+        if (values.containsKey(ContactContract.ContactEntry.COLUMN_NAME_NOTES)) {
+            final String notes = values.getAsString(ContactContract.ContactEntry.COLUMN_NAME_NOTES);
+            contact.setNotes(notes == null ? "" : notes);
+        }
+        return contact;
+    }
+}
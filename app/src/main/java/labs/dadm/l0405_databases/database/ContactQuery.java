@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Filter over the contacts, executed by CustomSqliteOpenHelper.findContacts():
+//  new ContactQuery().startsWith(ContactQuery.NAME, "Jo").orderBy(ContactQuery.NAME, true).limit(20)
+// Columns are typed, so values of the wrong type do not compile, and values are never part of the SQL
+// but bound as arguments. Queries with the same conditions therefore generate the same SQL, whatever
+// their values, and the statement compiled for the first one is reused by the rest (see setStatementCacheSize()).
+// For the same reason, the limit is an argument, and the values of IN are padded up to a power of two.
+// All the conditions must hold. Deleted contacts are always excluded.
+// Conditions on ID and phone, and ordering by name, use the indexes of the table (see ContactQueryPlanTest);
+// the rest check every contact. equalTo(EMAIL) compares the case, unlike the index on email, and
+// startsWith(NAME) has no index since the one on name was replaced by the sort key (version 5).
+public final class ContactQuery {
+
+    // Column of the contacts that can be filtered and ordered, holding values of type T
+    public static final class Column<T> {
+        // Name of the column, and of the one used to order by it
+        final String name;
+        final String sortName;
+
+        private Column(String name, String sortName) {
+            this.name = name;
+            this.sortName = sortName;
+        }
+    }
+
+    // Columns that can be filtered and ordered. Names are ordered by their sort key
+    // (alphabetically, according to the locale)
+    public static final Column<Long> ID = new Column<>(
+            ContactContract.ContactEntry.COLUMN_NAME_ID, ContactContract.ContactEntry.COLUMN_NAME_ID);
+    public static final Column<String> NAME = new Column<>(
+            ContactContract.ContactEntry.COLUMN_NAME_NAME, ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY);
+    public static final Column<String> EMAIL = new Column<>(
+            ContactContract.ContactEntry.COLUMN_NAME_EMAIL, ContactContract.ContactEntry.COLUMN_NAME_EMAIL);
+    public static final Column<String> PHONE = new Column<>(
+            ContactContract.ContactEntry.COLUMN_NAME_PHONE, ContactContract.ContactEntry.COLUMN_NAME_PHONE);
+    public static final Column<Long> VERSION = new Column<>(
+            ContactContract.ContactEntry.COLUMN_NAME_VERSION, ContactContract.ContactEntry.COLUMN_NAME_VERSION);
+
+    // Maximum number of values of an IN condition (SQLite allows up to 999 arguments by default)
+    public static final int MAX_IN_VALUES = 512;
+
+    // Character escaping the wildcards of LIKE patterns
+    private static final char LIKE_ESCAPE = '\\';
+
+    private final StringBuilder where = new StringBuilder();
+    private final StringBuilder orderBy = new StringBuilder();
+    private final List<String> args = new ArrayList<>();
+    private CustomSqliteOpenHelper.Projection projection = CustomSqliteOpenHelper.Projection.SUMMARY;
+    private int limit = -1;
+
+    // Keep only the contacts whose column has the given value
+    public <T> ContactQuery equalTo(Column<T> column, T value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value of " + column.name + " cannot be null");
+        }
+        addCondition(column.name + " = ?");
+        args.add(String.valueOf(value));
+        return this;
+    }
+
+    // Keep only the contacts whose column starts with the given text (ignoring the case of ASCII letters)
+    public ContactQuery startsWith(Column<String> column, String prefix) {
+        addCondition(column.name + " LIKE ? ESCAPE '" + LIKE_ESCAPE + "'");
+        args.add(escapeLike(prefix) + "%");
+        return this;
+    }
+
+    // Keep only the contacts whose column has any of the given values (at most MAX_IN_VALUES)
+    public <T> ContactQuery in(Column<T> column, Collection<? extends T> values) {
+        if (values.isEmpty() || values.size() > MAX_IN_VALUES) {
+            throw new IllegalArgumentException("IN requires 1 to " + MAX_IN_VALUES + " values: " + values.size());
+        }
+        final StringBuilder condition = new StringBuilder(column.name).append(" IN (");
+        String last = null;
+        for (T value : values) {
+            if (value == null) {
+                throw new IllegalArgumentException("Values of " + column.name + " cannot be null");
+            }
+            last = String.valueOf(value);
+            args.add(last);
+        }
+        // Repeating the last value up to the next power of two does not change the result,
+        // but lists of similar sizes share the same SQL
+        final int padded = values.size() == 1 ? 1 : Integer.highestOneBit(values.size() - 1) << 1;
+        for (int i = values.size(); i < padded; i++) {
+            args.add(last);
+        }
+        for (int i = 0; i < padded; i++) {
+            condition.append(i == 0 ? "?" : ", ?");
+        }
+        addCondition(condition.append(')').toString());
+        return this;
+    }
+
+    // Order the contacts by the column (in the order this is called for each column).
+    // Contacts with the same values are ordered by ID
+    public ContactQuery orderBy(Column<?> column, boolean ascending) {
+        if (orderBy.length() > 0) {
+            orderBy.append(", ");
+        }
+        orderBy.append(column.sortName).append(ascending ? " ASC" : " DESC");
+        return this;
+    }
+
+    // Return at most the given number of contacts
+    public ContactQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    // Read the given columns of the contacts (SUMMARY by default)
+    public ContactQuery projection(CustomSqliteOpenHelper.Projection projection) {
+        this.projection = projection;
+        return this;
+    }
+
+    CustomSqliteOpenHelper.Projection getProjection() {
+        return projection;
+    }
+
+    // Generate the SQL sentence reading the given columns of the contacts matching the query
+    String getSql(String[] columns) {
+        final StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]);
+        }
+        sql.append(" FROM ").append(ContactContract.ContactEntry.TABLE_NAME)
+                .append(" WHERE ").append(ContactContract.ContactEntry.COLUMN_NAME_DELETED).append(" = 0")
+                .append(where);
+        if (orderBy.length() > 0) {
+            sql.append(" ORDER BY ").append(orderBy)
+                    .append(", ").append(ContactContract.ContactEntry.COLUMN_NAME_ID);
+        }
+        if (limit >= 0) {
+            sql.append(" LIMIT ?");
+        }
+        return sql.toString();
+    }
+
+    // Get the arguments to be bound to the SQL sentence, in order
+    String[] getArgs() {
+        final String[] result = args.toArray(new String[limit >= 0 ? args.size() + 1 : args.size()]);
+        if (limit >= 0) {
+            result[args.size()] = String.valueOf(limit);
+        }
+        return result;
+    }
+
+    // Add a condition that must hold
+    private void addCondition(String condition) {
+        where.append(" AND ").append(condition);
+    }
+
+    // Escape the wildcards of a LIKE pattern, so the text is matched as it is
+    private static String escapeLike(String text) {
+        final StringBuilder escaped = new StringBuilder(text.length() + 4);
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '%' || c == '_' || c == LIKE_ESCAPE) {
+                escaped.append(LIKE_ESCAPE);
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+// Accesses the database on background threads, so the main user interface is not blocked.
+// All writes are performed in order by a single thread, while reads are performed concurrently
+// by a pool of threads (write-ahead logging lets them run while a write is in progress).
+// Results are delivered to callbacks on the main thread.
+// Each Activity should create its own repository and cancel it when destroyed,
+// so that no results are delivered to it afterwards.
+public class ContactRepository {
+
+    // Tag for the errors logged
+    private static final String TAG = "ContactRepository";
+    // Number of threads reading from the database concurrently
+    private static final int READER_THREADS = 3;
+    // Time without changes (milliseconds) after which the snapshot of the first contacts is updated
+    private static final long SNAPSHOT_DELAY = 1000;
+
+    // Types of writes
+    private static final int WRITE_ADD = 0;
+    private static final int WRITE_UPDATE = 1;
+    private static final int WRITE_DELETE = 2;
+
+    // Thread performing all the writes, shared by all repositories
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor();
+    // Threads performing reads, shared by all repositories
+    private static final ExecutorService readers = Executors.newFixedThreadPool(READER_THREADS);
+    // Thread synchronizing the contacts with a server, so waiting for the network does not delay reads or writes
+    private static final ExecutorService syncer = Executors.newSingleThreadExecutor();
+    // Writes to existing contacts still waiting in the queue, by contact ID
+    private static final Map<Long, PendingWrite> pendingWrites = new HashMap<>();
+    // Snapshot of the first contacts, displayed on launch before the database is opened
+    private static ContactSnapshot snapshot = null;
+    // Handler to postpone updating the snapshot until changes stop
+    private static final Handler snapshotHandler = new Handler(Looper.getMainLooper());
+    // Task updating the snapshot from the database
+    private static Runnable snapshotUpdate = null;
+
+    // Hold reference to the database
+    private final CustomSqliteOpenHelper helper;
+    // Resolver to read the images chosen as photos
+    private final ContentResolver resolver;
+    // Handler to deliver results on the main thread
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Reads not completed yet, so they can be cancelled
+    private final Set<Future<?>> pendingReads = new HashSet<>();
+    // Whether results should no longer be delivered
+    private volatile boolean cancelled = false;
+    // Object registered in the database to forward the changes made to contacts to the main thread
+    private CustomSqliteOpenHelper.OnContactChangedListener changeForwarder = null;
+
+    // Interface to receive the result of an operation on the main thread
+    public interface Callback<T> {
+        void onResult(T result);
+
+        // Receive the error that made a read fail (it is already logged).
+        // By default the callback receives null, like the rest of operations that fail
+        default void onError(Exception error) {
+            onResult(null);
+        }
+    }
+
+    // The database is not opened here, but by the first operation, in background
+    public ContactRepository(Context context) {
+        helper = CustomSqliteOpenHelper.getInstance(context.getApplicationContext());
+        resolver = context.getApplicationContext().getContentResolver();
+        synchronized (ContactRepository.class) {
+            if (snapshot == null) {
+                snapshot = new ContactSnapshot(new File(context.getFilesDir(), ContactSnapshot.FILE_NAME));
+                final CustomSqliteOpenHelper database = helper;
+                snapshotUpdate = () -> readers.execute(() -> updateSnapshot(database, snapshot.read()));
+                // Keep the snapshot up to date with the changes made to contacts.
+                // The changes committed together (a batch of a bulk operation) postpone it once
+                helper.addOnContactChangedListener(new CustomSqliteOpenHelper.OnContactChangedListener() {
+                    @Override
+                    public void onContactChanged(CustomSqliteOpenHelper.ChangeType type, long id, Contact contact) {
+                        scheduleSnapshotUpdate();
+                    }
+
+                    @Override
+                    public void onContactsChanged(List<CustomSqliteOpenHelper.ContactChange> changes) {
+                        scheduleSnapshotUpdate();
+                    }
+                });
+            }
+        }
+    }
+
+    // Get the first contacts (in alphabetical order) stored in the snapshot, so they can be
+    // displayed before the database is opened. The snapshot is a small memory-mapped file read
+    // on the calling thread. It is then checked against the database in background, and updated if required
+    public List<Contact> readSnapshot() {
+        final List<Contact> contacts = snapshot.read();
+        readers.execute(() -> updateSnapshot(helper, contacts));
+        return contacts;
+    }
+
+    // Update the snapshot once SNAPSHOT_DELAY passes without further changes
+    private static void scheduleSnapshotUpdate() {
+        snapshotHandler.removeCallbacks(snapshotUpdate);
+        snapshotHandler.postDelayed(snapshotUpdate, SNAPSHOT_DELAY);
+    }
+
+    // Write the first contacts in the database as the snapshot if they differ from those in it
+    private static void updateSnapshot(CustomSqliteOpenHelper helper, List<Contact> stored) {
+        final List<Contact> contacts = helper.getContactsAfter(null, 0, ContactSnapshot.SIZE);
+        if (!ContactSnapshot.matches(stored, contacts)) {
+            try {
+                snapshot.write(contacts);
+            } catch (IOException e) {
+                Log.e(TAG, "Snapshot could not be written", e);
+            }
+        }
+    }
+
+    // Stop delivering results and cancel the pending reads.
+    // Pending writes are still performed, so no data is lost, but their results are not delivered
+    public void cancel() {
+        cancelled = true;
+        setOnContactChangedListener(null);
+        synchronized (pendingReads) {
+            for (Future<?> future : pendingReads) {
+                future.cancel(false);
+            }
+            pendingReads.clear();
+        }
+    }
+
+    // Set the object to be notified, on the main thread, of the changes made to contacts (null to stop).
+    // The changes committed together are posted at once, so the main thread handles them together
+    public void setOnContactChangedListener(CustomSqliteOpenHelper.OnContactChangedListener listener) {
+        if (changeForwarder != null) {
+            helper.removeOnContactChangedListener(changeForwarder);
+            changeForwarder = null;
+        }
+        if (listener != null) {
+            changeForwarder = new CustomSqliteOpenHelper.OnContactChangedListener() {
+                @Override
+                public void onContactChanged(CustomSqliteOpenHelper.ChangeType type, long id, Contact contact) {
+                    mainHandler.post(() -> {
+                        if (!cancelled) {
+                            listener.onContactChanged(type, id, contact);
+                        }
+                    });
+                }
+
+                @Override
+                public void onContactsChanged(List<CustomSqliteOpenHelper.ContactChange> changes) {
+                    mainHandler.post(() -> {
+                        if (!cancelled) {
+                            listener.onContactsChanged(changes);
+                        }
+                    });
+                }
+            };
+            helper.addOnContactChangedListener(changeForwarder);
+        }
+    }
+
+    // Get all the contacts stored in the database
+    public Future<?> getContacts(Callback<List<Contact>> callback) {
+        return read(helper::getContacts, callback);
+    }
+
+    // Get the page of contacts following the given (name, _ID) key (see CustomSqliteOpenHelper)
+    public Future<?> getContactsAfter(String name, long id, int limit, Callback<List<Contact>> callback) {
+        return read(() -> helper.getContactsAfter(name, id, limit), callback);
+    }
+
+    // Get the page of contacts preceding the given (name, _ID) key (see CustomSqliteOpenHelper)
+    public Future<?> getContactsBefore(String name, long id, int limit, Callback<List<Contact>> callback) {
+        return read(() -> helper.getContactsBefore(name, id, limit), callback);
+    }
+
+    // Get the sections (first letters) of the names of the stored contacts (see CustomSqliteOpenHelper)
+    public Future<?> getSections(Callback<List<String>> callback) {
+        return read(helper::getSections, callback);
+    }
+
+    // Get the contact with the given ID, with all its columns, or null if it does not exist (see CustomSqliteOpenHelper)
+    public Future<?> getContact(long id, Callback<Contact> callback) {
+        return read(() -> helper.getContact(id), callback);
+    }
+
+    // Get the contacts best matching the given query (see CustomSqliteOpenHelper)
+    public Future<?> searchContacts(String query, int limit, Callback<List<Contact>> callback) {
+        return read(() -> helper.searchContacts(query, limit), callback);
+    }
+
+    // Insert a new contact into the database.
+    // The ID of the inserted Contact is set before it is delivered to the callback
+    public void addContact(Contact contact, Callback<Contact> callback) {
+        writer.execute(new PendingWrite(this, WRITE_ADD, contact, callback));
+    }
+
+    // Update the data of a given contact from the database.
+    // If an update of the same contact is still waiting in the queue, it is replaced by this one.
+    // The callback receives null if the contact no longer exists (or a delete of it is waiting
+    // in the queue) or it was changed since it was read
+    public void updateContact(Contact contact, Callback<Contact> callback) {
+        updateContact(contact, null, callback);
+    }
+
+    // Update the data of a given contact from the database, solving the conflicts found with
+    // the given resolver (see CustomSqliteOpenHelper.updateContact()).
+    // The callback receives the contact as stored, or null if it could not be updated
+    public void updateContact(Contact contact, CustomSqliteOpenHelper.ConflictResolver resolver,
+                              Callback<Contact> callback) {
+        enqueueWrite(WRITE_UPDATE, contact, resolver, callback);
+    }
+
+    // Delete a given contact from the database.
+    // Any update of the same contact still waiting in the queue is discarded (its callbacks receive null)
+    public void deleteContact(Contact contact, Callback<Contact> callback) {
+        enqueueWrite(WRITE_DELETE, contact, null, callback);
+    }
+
+    // Enqueue a write to an existing contact, merging it with any pending write to the same contact:
+    //  an update replaces a pending update (the last one wins, but every callback receives the result)
+    //  a delete replaces a pending update, or is merged with a pending delete
+    //  an update after a pending delete fails, so the contact is not written again once deleted
+    private void enqueueWrite(int type, Contact contact, CustomSqliteOpenHelper.ConflictResolver resolver,
+                              Callback<Contact> callback) {
+        synchronized (pendingWrites) {
+            final PendingWrite pending = pendingWrites.get(contact.get_ID());
+            if (pending != null && pending.type == WRITE_DELETE) {
+                if (type == WRITE_UPDATE) {
+                    // Delivered once the delete is performed, as the writer runs tasks in order
+                    writer.execute(() -> deliver(callback, null));
+                } else {
+                    pending.add(this, callback);
+                }
+                return;
+            }
+            if (pending != null) {
+                if (type == WRITE_DELETE) {
+                    // The callbacks of the discarded updates receive null
+                    pending.discarded = pending.callbacks.size();
+                }
+                pending.type = type;
+                pending.contact = contact;
+                pending.resolver = resolver;
+                pending.add(this, callback);
+                return;
+            }
+            final PendingWrite write = new PendingWrite(this, type, contact, callback);
+            write.resolver = resolver;
+            pendingWrites.put(contact.get_ID(), write);
+            writer.execute(write);
+        }
+    }
+
+    // Set the image with the given URI as the photo of the contact (null to remove it).
+    // It is decoded, scaled, and stored on the writer thread, so it is ordered with the rest of writes.
+    // The callback receives the contact, or null if the photo could not be stored
+    public void setContactPhoto(Contact contact, Uri uri, Callback<Contact> callback) {
+        writer.execute(() -> {
+            boolean stored = false;
+            try {
+                final Bitmap photo = uri == null ? null : ContactPhotos.decodePhoto(resolver, uri);
+                stored = helper.setContactPhoto(contact.get_ID(), photo);
+                if (photo != null) {
+                    photo.recycle();
+                }
+            } catch (IOException | SecurityException e) {
+                Log.e(TAG, "Photo could not be stored from " + uri, e);
+            }
+            deliver(callback, stored ? contact : null);
+        });
+    }
+
+    // Load the thumbnail of the contact's photo, decoded in background into the given bitmap if
+    // it can be reused (null to allocate a new one). The callback receives null if there is no thumbnail
+    public Future<?> loadThumbnail(long id, Bitmap reusable, Callback<Bitmap> callback) {
+        return read(() -> {
+            final byte[] thumbnail = helper.getThumbnail(id);
+            return thumbnail == null ? null : ContactPhotos.decodeThumbnail(thumbnail, reusable);
+        }, callback);
+    }
+
+    // Send the changes made to the contacts since the last synchronization to the server at the
+    // given URL, in background (see ContactSync). The callback receives null if it failed
+    public void sync(URL endpoint, Callback<ContactSync.SyncResult> callback) {
+        syncer.execute(() -> {
+            ContactSync.SyncResult result = null;
+            try {
+                result = new ContactSync(helper, endpoint).sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Contacts could not be synchronized with " + endpoint, e);
+            }
+            deliver(callback, result);
+        });
+    }
+
+    // Write the metrics of the operations performed on the database into the given file, in background
+    public void writeMetrics(File file) {
+        readers.execute(() -> {
+            try {
+                helper.getMetrics().writeTo(file);
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Metrics could not be written to " + file, e);
+            }
+        });
+    }
+
+    // Perform a read on the pool of threads and deliver its result on the main thread.
+    // If it fails, the error is delivered to the callback, and also reported by the returned Future
+    private <T> Future<?> read(Callable<T> query, Callback<T> callback) {
+        final Future<?>[] future = new Future<?>[1];
+        synchronized (pendingReads) {
+            future[0] = readers.submit(() -> {
+                try {
+                    deliver(callback, query.call());
+                    return null;
+                } catch (Exception e) {
+                    Log.e(TAG, "Contacts could not be read", e);
+                    deliverError(callback, e);
+                    throw e;
+                } finally {
+                    synchronized (pendingReads) {
+                        pendingReads.remove(future[0]);
+                    }
+                }
+            });
+            pendingReads.add(future[0]);
+        }
+        return future[0];
+    }
+
+    // Deliver a result on the main thread, unless the repository has been cancelled
+    private <T> void deliver(Callback<T> callback, T result) {
+        if (callback != null && !cancelled) {
+            mainHandler.post(() -> {
+                if (!cancelled) {
+                    callback.onResult(result);
+                }
+            });
+        }
+    }
+
+    // Deliver the error of a failed read on the main thread, unless the repository has been cancelled
+    private <T> void deliverError(Callback<T> callback, Exception error) {
+        if (callback != null && !cancelled) {
+            mainHandler.post(() -> {
+                if (!cancelled) {
+                    callback.onError(error);
+                }
+            });
+        }
+    }
+
+    // Write waiting in the queue, together with the callbacks to be notified of its result
+    private static class PendingWrite implements Runnable {
+
+        int type;
+        Contact contact;
+        CustomSqliteOpenHelper.ConflictResolver resolver;
+        // Number of callbacks (the first ones) of updates discarded by a delete
+        int discarded = 0;
+        final List<ContactRepository> repositories = new ArrayList<>();
+        final List<Callback<Contact>> callbacks = new ArrayList<>();
+
+        PendingWrite(ContactRepository repository, int type, Contact contact, Callback<Contact> callback) {
+            this.type = type;
+            this.contact = contact;
+            add(repository, callback);
+        }
+
+        void add(ContactRepository repository, Callback<Contact> callback) {
+            repositories.add(repository);
+            callbacks.add(callback);
+        }
+
+        @Override
+        public void run() {
+            final int type;
+            final Contact contact;
+            final CustomSqliteOpenHelper.ConflictResolver resolver;
+            final int discarded;
+            // Once started, later writes to the same contact are enqueued again
+            synchronized (pendingWrites) {
+                if (this.type != WRITE_ADD) {
+                    pendingWrites.remove(this.contact.get_ID());
+                }
+                type = this.type;
+                contact = this.contact;
+                resolver = this.resolver;
+                discarded = this.discarded;
+            }
+
+            final CustomSqliteOpenHelper helper = repositories.get(0).helper;
+            Contact result = contact;
+            switch (type) {
+                case WRITE_ADD:
+                    contact.set_ID(helper.addContact(contact));
+                    break;
+                case WRITE_UPDATE:
+                    if (helper.updateContact(contact, resolver) != CustomSqliteOpenHelper.UpdateResult.UPDATED) {
+                        result = null;
+                    }
+                    break;
+                case WRITE_DELETE:
+                    helper.deleteContact(contact);
+                    break;
+            }
+
+            for (int i = 0; i < callbacks.size(); i++) {
+                repositories.get(i).deliver(callbacks.get(i), i < discarded ? null : result);
+            }
+        }
+    }
+}
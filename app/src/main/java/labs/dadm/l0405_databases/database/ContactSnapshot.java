@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+// Compact copy of the first contacts in alphabetical order, stored in a file of its own,
+// so they can be displayed on launch before the database is opened (and created or upgraded).
+// The file is memory-mapped to be read, so the operating system copies it straight from its
+// page cache, and written to a temporary file that then replaces it, so it is never left half written.
+// Its format is:
+//  int: MAGIC
+//  int: FORMAT_VERSION
+//  string: locale of the order of the contacts
+//  int: number of contacts
+//  for each contact: long (ID), string (name), string (email), string (phone)
+// where each string is an int with its length in bytes followed by its UTF-8 bytes.
+class ContactSnapshot {
+
+    // Name of the file (in the app's files directory) where the snapshot is usually stored
+    static final String FILE_NAME = "contacts_snapshot.bin";
+    // Maximum number of contacts stored (a screen of contacts)
+    static final int SIZE = 50;
+
+    // Identifies the file as a snapshot of contacts
+    private static final int MAGIC = 0x434E5453;
+    // Version of the format, to discard files written by older versions of the app
+    private static final int FORMAT_VERSION = 1;
+
+    // File where the snapshot is stored
+    private final File file;
+
+    ContactSnapshot(File file) {
+        this.file = file;
+    }
+
+    // Read the contacts stored in the snapshot.
+    // Returns an empty list if there is no snapshot, it cannot be read, or it was stored for another locale
+    List<Contact> read() {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        try (FileInputStream input = new FileInputStream(file)) {
+            final FileChannel channel = input.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION ||
+                    !ContactCollation.getLocale().toString().equals(readString(buffer))) {
+                return Collections.emptyList();
+            }
+            final int count = Math.min(buffer.getInt(), SIZE);
+            final List<Contact> contacts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final long id = buffer.getLong();
+                final Contact contact = new Contact(readString(buffer), readString(buffer), readString(buffer));
+                contact.set_ID(id);
+                contacts.add(contact);
+            }
+            return contacts;
+        } catch (IOException | RuntimeException e) {
+            // A corrupted snapshot is simply ignored, as the contacts will be read from the database
+            return Collections.emptyList();
+        }
+    }
+
+    // Store the given contacts (at most SIZE) as the new snapshot
+    synchronized void write(List<Contact> contacts) throws IOException {
+        final File temporary = new File(file.getPath() + ".tmp");
+        final int count = Math.min(contacts.size(), SIZE);
+        try (FileOutputStream stream = new FileOutputStream(temporary)) {
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            writeString(output, ContactCollation.getLocale().toString());
+            output.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                final Contact contact = contacts.get(i);
+                output.writeLong(contact.get_ID());
+                writeString(output, contact.getName());
+                writeString(output, contact.getEmail());
+                writeString(output, contact.getPhone());
+            }
+            output.flush();
+            // Make sure the data is on disk before it replaces the previous snapshot
+            stream.getFD().sync();
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Snapshot could not be replaced: " + file);
+        }
+    }
+
+    // Whether the snapshot holds the same data as the given first contacts
+    static boolean matches(List<Contact> snapshot, List<Contact> contacts) {
+        final int count = Math.min(contacts.size(), SIZE);
+        if (snapshot.size() != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            final Contact stored = snapshot.get(i);
+            final Contact contact = contacts.get(i);
+            if (stored.get_ID() != contact.get_ID() ||
+                    !stored.getName().equals(contact.getName()) ||
+                    !stored.getEmail().equals(contact.getEmail()) ||
+                    !stored.getPhone().equals(contact.getPhone())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Read a string written by writeString()
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalStateException("Invalid string length: " + length);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Write a string as its length in bytes followed by its UTF-8 bytes
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+// Sends the changes made to the contacts to a server, reading them from the journal kept by
+// CustomSqliteOpenHelper, so only the contacts changed since the last synchronization are sent.
+// Changes are sent in order, in batches, each one as a POST request with the contacts as they are now:
+//  {"changes": [{"seq": 12, "id": 3, "op": "upsert", "name": "...", "email": "...", "phone": "...",
+//                "notes": "...", "version": 4}, {"seq": 15, "id": 5, "op": "delete"}]}
+// The server answers with the sequence number up to which it has stored the changes: {"ack": 15}.
+// Acknowledged changes are removed from the journal, so an interrupted synchronization resumes
+// from the first change not acknowledged. The server may thus receive a change again
+// (if its answer is lost), and must apply them as upserts and deletes by ID.
+// Requests that fail because of the network or the server (5xx, 429) are retried with exponential backoff.
+public class ContactSync {
+
+    // Tag for the warnings logged
+    private static final String TAG = "ContactSync";
+    // Default maximum number of journal entries read for each request
+    private static final int DEFAULT_BATCH_SIZE = 200;
+    // Default maximum number of times each request is sent
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    // Default time (milliseconds) before the first retry, doubled by each one
+    private static final long DEFAULT_INITIAL_BACKOFF = 1000;
+    // Maximum time (milliseconds) between retries
+    private static final long MAX_BACKOFF = 60000;
+    // Time (milliseconds) to connect to the server, and to wait for its answer
+    private static final int TIMEOUT = 15000;
+    // HTTP status of a server rejecting requests until the client slows down
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final CustomSqliteOpenHelper helper;
+    // URL the changes are posted to
+    private final URL endpoint;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long initialBackoff;
+    // Spreads the retries of several clients, so they do not hit the server at once
+    private final Random random = new Random();
+
+    // Result of a synchronization
+    public static class SyncResult {
+        // Requests acknowledged by the server
+        public final int batches;
+        // Changes of contacts sent (each contact is sent once per batch, however many times it changed)
+        public final int changes;
+        // Bytes of the bodies of all the requests (including retries) and of the answers
+        public final long bytesSent;
+        public final long bytesReceived;
+        // Requests sent again after a failure
+        public final int retries;
+        // Entries removed from the journal once acknowledged
+        public final int compacted;
+        // Time taken (nanoseconds)
+        public final long durationNanos;
+
+        SyncResult(int batches, int changes, long bytesSent, long bytesReceived,
+                   int retries, int compacted, long durationNanos) {
+            this.batches = batches;
+            this.changes = changes;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.retries = retries;
+            this.compacted = compacted;
+            this.durationNanos = durationNanos;
+        }
+    }
+
+    // Changes read from the journal to be sent in a single request
+    private static class Batch {
+        final JSONArray changes = new JSONArray();
+        // Number of journal entries read, and the sequence numbers of the first and last ones
+        int entries;
+        long firstSequence = -1;
+        long lastSequence = -1;
+    }
+
+    // Bytes transferred and retries, over all the requests of a synchronization
+    private static class Transfer {
+        long bytesSent;
+        long bytesReceived;
+        int retries;
+    }
+
+    public ContactSync(CustomSqliteOpenHelper helper, URL endpoint) {
+        this(helper, endpoint, DEFAULT_BATCH_SIZE, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF);
+    }
+
+    // Create a synchronization with the given batch size and retry policy (used by benchmarks)
+    ContactSync(CustomSqliteOpenHelper helper, URL endpoint, int batchSize, int maxAttempts, long initialBackoff) {
+        this.helper = helper;
+        this.endpoint = endpoint;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+    }
+
+    // Send all the changes in the journal, batch by batch, until none is left (changes made while
+    // synchronizing may be sent too). It blocks, so it must not be called on the main thread
+    public synchronized SyncResult sync() throws IOException {
+        final long start = System.nanoTime();
+        final Transfer transfer = new Transfer();
+        int batches = 0;
+        int changes = 0;
+        int compacted = 0;
+        Batch batch;
+        while ((batch = readBatch()).changes.length() > 0) {
+            final byte[] body;
+            try {
+                body = new JSONObject().put("changes", batch.changes).toString().getBytes(StandardCharsets.UTF_8);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+            final long ack = post(body, transfer);
+            if (ack < batch.firstSequence) {
+                // Nothing would be removed from the journal, so the same batch would be sent forever
+                throw new ProtocolException("No change acknowledged by " + endpoint + " (ack " + ack + ")");
+            }
+            // Changes not read yet cannot have been stored by the server
+            compacted += helper.acknowledgeJournal(Math.min(ack, batch.lastSequence));
+            batches++;
+            changes += batch.changes.length();
+            if (batch.entries < batchSize && ack >= batch.lastSequence) {
+                // The journal was empty after this batch, so contacts changing continuously do not keep it going
+                break;
+            }
+        }
+        helper.getMetrics().record(ContactMetrics.Operation.SYNC, start, changes);
+        final SyncResult result = new SyncResult(batches, changes, transfer.bytesSent,
+                transfer.bytesReceived, transfer.retries, compacted, System.nanoTime() - start);
+        Log.i(TAG, "Synchronized " + changes + " changes in " + batches + " batches: " +
+                transfer.bytesSent + " bytes sent, " + transfer.bytesReceived + " received, " +
+                transfer.retries + " retries");
+        return result;
+    }
+
+    // Read the oldest entries in the journal, each contact as it is now, only once
+    // (at the position of its latest change)
+    private Batch readBatch() {
+        final Batch batch = new Batch();
+        final Map<Long, JSONObject> byContact = new LinkedHashMap<>();
+        try (Cursor cursor = helper.queryJournal(batchSize)) {
+            while (cursor.moveToNext()) {
+                final long sequence = cursor.getLong(CustomSqliteOpenHelper.JOURNAL_COLUMN_SEQUENCE);
+                final long id = cursor.getLong(CustomSqliteOpenHelper.JOURNAL_COLUMN_CONTACT_ID);
+                if (batch.firstSequence == -1) {
+                    batch.firstSequence = sequence;
+                }
+                batch.lastSequence = sequence;
+                batch.entries++;
+                byContact.remove(id);
+                byContact.put(id, toChange(cursor, sequence, id));
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        for (JSONObject change : byContact.values()) {
+            batch.changes.put(change);
+        }
+        return batch;
+    }
+
+    // Generate the change of a contact read from the journal: deleted if it no longer exists
+    // (or it is waiting to be purged), or its current data otherwise
+    private static JSONObject toChange(Cursor cursor, long sequence, long id) throws JSONException {
+        final JSONObject change = new JSONObject();
+        change.put("seq", sequence);
+        change.put("id", id);
+        if (cursor.isNull(CustomSqliteOpenHelper.JOURNAL_COLUMN_DELETED) ||
+                cursor.getInt(CustomSqliteOpenHelper.JOURNAL_COLUMN_DELETED) != 0) {
+            change.put("op", "delete");
+            return change;
+        }
+        change.put("op", "upsert");
+        change.put("name", cursor.getString(CustomSqliteOpenHelper.JOURNAL_COLUMN_NAME));
+        change.put("email", cursor.getString(CustomSqliteOpenHelper.JOURNAL_COLUMN_EMAIL));
+        change.put("phone", cursor.getString(CustomSqliteOpenHelper.JOURNAL_COLUMN_PHONE));
+        change.put("notes", cursor.getString(CustomSqliteOpenHelper.JOURNAL_COLUMN_NOTES));
+        change.put("version", cursor.getLong(CustomSqliteOpenHelper.JOURNAL_COLUMN_VERSION));
+        return change;
+    }
+
+    // Post the body until the server acknowledges it, waiting longer after each failure
+    // (up to maxAttempts). Returns the sequence number acknowledged
+    private long post(byte[] body, Transfer transfer) throws IOException {
+        long backoff = initialBackoff;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return send(body, transfer);
+            } catch (IOException e) {
+                // Requests rejected by the server, or invalid answers, would fail again
+                if (attempt >= maxAttempts || e instanceof ProtocolException) {
+                    throw e;
+                }
+                // Wait between half and all of the backoff
+                final long delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+                Log.w(TAG, "Attempt " + attempt + " to synchronize failed, retrying in " + delay + " ms", e);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Synchronization interrupted");
+                }
+                transfer.retries++;
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+    }
+
+    // Post the body once. Returns the sequence number acknowledged.
+    // Throws ProtocolException if the request should not be sent again
+    private long send(byte[] body, Transfer transfer) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body);
+            }
+            transfer.bytesSent += body.length;
+
+            final int status = connection.getResponseCode();
+            if (status >= HttpURLConnection.HTTP_INTERNAL_ERROR || status == HTTP_TOO_MANY_REQUESTS) {
+                throw new IOException("Server error " + status + " from " + endpoint);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new ProtocolException("Request rejected by " + endpoint + " (" + status + ")");
+            }
+            final byte[] answer;
+            try (InputStream input = connection.getInputStream()) {
+                answer = readAll(input);
+            }
+            transfer.bytesReceived += answer.length;
+            try {
+                return new JSONObject(new String(answer, StandardCharsets.UTF_8)).getLong("ack");
+            } catch (JSONException e) {
+                throw new ProtocolException("Invalid answer from " + endpoint + ": " + e.getMessage());
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    // Read the whole stream
+    private static byte[] readAll(InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
@@ -4,14 +4,45 @@
 
 package labs.dadm.l0405_databases.database;
 
-import android.content.ContentValues;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
 
+import androidx.collection.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import labs.dadm.l0405_databases.pojo.Contact;
 
@@ -32,9 +63,472 @@ public class CustomSqliteOpenHelper extends SQLiteOpenHelper {
     // SQL sentence to remove the contacts table
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + ContactContract.ContactEntry.TABLE_NAME;
+    // SQL sentence to remove the full-text search table (its triggers are removed with the contacts table)
+    private static final String SQL_DELETE_SEARCH_ENTRIES =
+            "DROP TABLE IF EXISTS " + ContactContract.ContactSearchEntry.TABLE_NAME;
+    // SQL sentence to remove the metadata table
+    private static final String SQL_DELETE_METADATA_ENTRIES =
+            "DROP TABLE IF EXISTS " + ContactContract.MetadataEntry.TABLE_NAME;
+
+    // SQL sentences to create the indexes on (version 2)
+    //  name, case insensitive, and _id to list contacts alphabetically without sorting them
+    //  email, case insensitive, to look up contacts by their email address
+    //  phone to look up contacts by their phone number
+    private static final String SQL_CREATE_NAME_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ContactContract.ContactEntry.INDEX_NAME_NAME + " ON " +
+                    ContactContract.ContactEntry.TABLE_NAME + " (" +
+                    ContactContract.ContactEntry.COLUMN_NAME_NAME + " COLLATE NOCASE, " +
+                    ContactContract.ContactEntry._ID + ")";
+    private static final String SQL_CREATE_EMAIL_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ContactContract.ContactEntry.INDEX_NAME_EMAIL + " ON " +
+                    ContactContract.ContactEntry.TABLE_NAME + " (" +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL + " COLLATE NOCASE)";
+    private static final String SQL_CREATE_PHONE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ContactContract.ContactEntry.INDEX_NAME_PHONE + " ON " +
+                    ContactContract.ContactEntry.TABLE_NAME + " (" +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE + ")";
+
+    // SQL sentence to create the full-text search table (version 3).
+    // It is an external content table, so the text is not duplicated: only its index is stored.
+    // Prefix indexes of 2 and 3 characters speed up type-ahead queries
+    private static final String SQL_CREATE_SEARCH_ENTRIES =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + ContactContract.ContactSearchEntry.TABLE_NAME +
+                    " USING fts4(content=\"" + ContactContract.ContactEntry.TABLE_NAME + "\", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_NAME + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE + ", " +
+                    "prefix=\"2,3\")";
+
+    // SQL sentences to create the triggers that keep the full-text search table
+    // in sync with the contacts table: old entries are removed before updating or
+    // deleting a contact, and new ones are added after inserting or updating it.
+    // Updates only fire the triggers when the indexed columns are set (since version 5),
+    // so updating the keys of the contacts does not reindex them
+    private static final String SQL_CREATE_SEARCH_TRIGGER_BEFORE_UPDATE =
+            "CREATE TRIGGER IF NOT EXISTS " + ContactContract.ContactSearchEntry.TRIGGER_NAME_BEFORE_UPDATE +
+                    " BEFORE UPDATE OF " + getSearchColumns() + " ON " +
+                    ContactContract.ContactEntry.TABLE_NAME + " BEGIN " +
+                    getSearchDeleteStatement() + " END";
+    private static final String SQL_CREATE_SEARCH_TRIGGER_BEFORE_DELETE =
+            "CREATE TRIGGER IF NOT EXISTS " + ContactContract.ContactSearchEntry.TRIGGER_NAME_BEFORE_DELETE +
+                    " BEFORE DELETE ON " + ContactContract.ContactEntry.TABLE_NAME + " BEGIN " +
+                    getSearchDeleteStatement() + " END";
+    private static final String SQL_CREATE_SEARCH_TRIGGER_AFTER_UPDATE =
+            "CREATE TRIGGER IF NOT EXISTS " + ContactContract.ContactSearchEntry.TRIGGER_NAME_AFTER_UPDATE +
+                    " AFTER UPDATE OF " + getSearchColumns() + " ON " +
+                    ContactContract.ContactEntry.TABLE_NAME + " BEGIN " +
+                    getSearchInsertStatement() + " END";
+    private static final String SQL_CREATE_SEARCH_TRIGGER_AFTER_INSERT =
+            "CREATE TRIGGER IF NOT EXISTS " + ContactContract.ContactSearchEntry.TRIGGER_NAME_AFTER_INSERT +
+                    " AFTER INSERT ON " + ContactContract.ContactEntry.TABLE_NAME + " BEGIN " +
+                    getSearchInsertStatement() + " END";
+
+    // SQL sentence to index the contacts already stored in the full-text search table
+    private static final String SQL_REBUILD_SEARCH_ENTRIES =
+            "INSERT INTO " + ContactContract.ContactSearchEntry.TABLE_NAME + "(" +
+                    ContactContract.ContactSearchEntry.TABLE_NAME + ") VALUES('rebuild')";
+
+    // Condition selecting the contacts that are not deleted (see SQL_ADD_DELETED), included in every query
+    private static final String SQL_NOT_DELETED =
+            ContactContract.ContactEntry.COLUMN_NAME_DELETED + " = 0";
+
+    // SQL sentence to search for contacts. matchinfo() returns, for each term of the query
+    // and each column, the number of hits in this row and in all rows (to rank the results)
+    private static final String SQL_SEARCH_ENTRIES =
+            "SELECT c." + ContactContract.ContactEntry.COLUMN_NAME_ID + ", c." +
+                    ContactContract.ContactEntry.COLUMN_NAME_NAME + ", c." +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL + ", c." +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE + ", c." +
+                    ContactContract.ContactEntry.COLUMN_NAME_VERSION + ", " +
+                    "matchinfo(" + ContactContract.ContactSearchEntry.TABLE_NAME + ", 'pcx') FROM " +
+                    ContactContract.ContactSearchEntry.TABLE_NAME + " JOIN " +
+                    ContactContract.ContactEntry.TABLE_NAME + " c ON c." +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " = " +
+                    ContactContract.ContactSearchEntry.TABLE_NAME + "." +
+                    ContactContract.ContactSearchEntry.COLUMN_NAME_DOCID + " WHERE " +
+                    ContactContract.ContactSearchEntry.TABLE_NAME + " MATCH ? AND c." + SQL_NOT_DELETED;
+
+    // Weight of a hit in each searchable column (name, email, phone) when ranking results
+    private static final double[] SEARCH_COLUMN_WEIGHTS = {3.0, 1.0, 1.0};
+    // Pattern to extract the words of a search query
+    private static final Pattern SEARCH_TERM = Pattern.compile("[\\p{L}\\p{N}]+");
+
+    // SQL sentences to add the normalized keys used to detect duplicated contacts (version 4)
+    //  String: phone_key (E.164 style), null if there is no phone
+    //  String: email_key (trimmed and lowercased), null if there is no email
+    // and to index them
+    private static final String SQL_ADD_PHONE_KEY =
+            "ALTER TABLE " + ContactContract.ContactEntry.TABLE_NAME + " ADD COLUMN " +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE_KEY + " TEXT";
+    private static final String SQL_ADD_EMAIL_KEY =
+            "ALTER TABLE " + ContactContract.ContactEntry.TABLE_NAME + " ADD COLUMN " +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL_KEY + " TEXT";
+    private static final String SQL_CREATE_PHONE_KEY_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ContactContract.ContactEntry.INDEX_NAME_PHONE_KEY + " ON " +
+                    ContactContract.ContactEntry.TABLE_NAME + " (" +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE_KEY + ")";
+    private static final String SQL_CREATE_EMAIL_KEY_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ContactContract.ContactEntry.INDEX_NAME_EMAIL_KEY + " ON " +
+                    ContactContract.ContactEntry.TABLE_NAME + " (" +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL_KEY + ")";
+    // SQL sentence to set the normalized keys of the contact with the given ID
+    private static final String SQL_UPDATE_KEYS =
+            "UPDATE " + ContactContract.ContactEntry.TABLE_NAME + " SET " +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL_KEY + " = ?, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE_KEY + " = ? WHERE " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " = ?";
+
+    // SQL sentences to find the groups of contacts sharing the same normalized email or phone.
+    // Each group is returned as a comma-separated list of IDs. The indexes on the keys
+    // provide the rows already grouped, so no sorting is required
+    static final String SQL_FIND_DUPLICATED_EMAILS =
+            getFindDuplicatesStatement(ContactContract.ContactEntry.COLUMN_NAME_EMAIL_KEY);
+    static final String SQL_FIND_DUPLICATED_PHONES =
+            getFindDuplicatesStatement(ContactContract.ContactEntry.COLUMN_NAME_PHONE_KEY);
+
+    // SQL sentences to add the keys used to list contacts alphabetically (version 5)
+    //  String: sort_key (collation key of the name, see ContactCollation)
+    //  String: section (first letter of the name)
+    // the table storing the locale of the sort keys, and the indexes on
+    //  sort_key and _id to list contacts in alphabetical order without sorting them
+    //  section to get the sections without reading all the contacts
+    // The index on name is no longer used to list contacts, so it is removed
+    private static final String SQL_ADD_SORT_KEY =
+            "ALTER TABLE " + ContactContract.ContactEntry.TABLE_NAME + " ADD COLUMN " +
+                    ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY + " TEXT";
+    private static final String SQL_ADD_SECTION =
+            "ALTER TABLE " + ContactContract.ContactEntry.TABLE_NAME + " ADD COLUMN " +
+                    ContactContract.ContactEntry.COLUMN_NAME_SECTION + " TEXT";
+    private static final String SQL_CREATE_METADATA_ENTRIES =
+            "CREATE TABLE IF NOT EXISTS " + ContactContract.MetadataEntry.TABLE_NAME + " (" +
+                    ContactContract.MetadataEntry.COLUMN_NAME_KEY + " TEXT PRIMARY KEY NOT NULL, " +
+                    ContactContract.MetadataEntry.COLUMN_NAME_VALUE + " TEXT)";
+    private static final String SQL_CREATE_SORT_KEY_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ContactContract.ContactEntry.INDEX_NAME_SORT_KEY + " ON " +
+                    ContactContract.ContactEntry.TABLE_NAME + " (" +
+                    ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY + ", " +
+                    ContactContract.ContactEntry._ID + ")";
+    private static final String SQL_CREATE_SECTION_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ContactContract.ContactEntry.INDEX_NAME_SECTION + " ON " +
+                    ContactContract.ContactEntry.TABLE_NAME + " (" +
+                    ContactContract.ContactEntry.COLUMN_NAME_SECTION + ")";
+    private static final String SQL_DELETE_NAME_INDEX =
+            "DROP INDEX IF EXISTS " + ContactContract.ContactEntry.INDEX_NAME_NAME;
+    // SQL sentences to remove the triggers on updates, to create them again only for the indexed columns
+    private static final String SQL_DELETE_SEARCH_TRIGGER_BEFORE_UPDATE =
+            "DROP TRIGGER IF EXISTS " + ContactContract.ContactSearchEntry.TRIGGER_NAME_BEFORE_UPDATE;
+    private static final String SQL_DELETE_SEARCH_TRIGGER_AFTER_UPDATE =
+            "DROP TRIGGER IF EXISTS " + ContactContract.ContactSearchEntry.TRIGGER_NAME_AFTER_UPDATE;
+    // SQL sentence to set the sort key and section of the contact with the given ID
+    private static final String SQL_UPDATE_SORT_KEYS =
+            "UPDATE " + ContactContract.ContactEntry.TABLE_NAME + " SET " +
+                    ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY + " = ?, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_SECTION + " = ? WHERE " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " = ?";
+    // SQL sentence to set the value of a metadata key
+    private static final String SQL_SET_METADATA =
+            "INSERT OR REPLACE INTO " + ContactContract.MetadataEntry.TABLE_NAME + " (" +
+                    ContactContract.MetadataEntry.COLUMN_NAME_KEY + ", " +
+                    ContactContract.MetadataEntry.COLUMN_NAME_VALUE + ") VALUES (?, ?)";
+    // SQL sentence to get the sections of the stored contacts (the index on section provides them)
+    static final String SQL_GET_SECTIONS =
+            "SELECT DISTINCT " + ContactContract.ContactEntry.COLUMN_NAME_SECTION + " FROM " +
+                    ContactContract.ContactEntry.TABLE_NAME + " WHERE " + SQL_NOT_DELETED;
+
+    // SQL sentence to add the tombstone of deleted contacts (version 6)
+    //  Integer not null: deleted (1 from the moment the contact is deleted until it is purged)
+    private static final String SQL_ADD_DELETED =
+            "ALTER TABLE " + ContactContract.ContactEntry.TABLE_NAME + " ADD COLUMN " +
+                    ContactContract.ContactEntry.COLUMN_NAME_DELETED + " INTEGER NOT NULL DEFAULT 0";
+
+    // SQL sentence to add the version of the contacts, to detect concurrent updates (version 7)
+    //  Integer not null: version (1 when inserted, increased by each update)
+    private static final String SQL_ADD_VERSION =
+            "ALTER TABLE " + ContactContract.ContactEntry.TABLE_NAME + " ADD COLUMN " +
+                    ContactContract.ContactEntry.COLUMN_NAME_VERSION + " INTEGER NOT NULL DEFAULT 1";
+
+    // SQL sentence to add the notes about the contacts (version 8)
+    //  String not null: notes (only read when a contact is opened, see Projection)
+    private static final String SQL_ADD_NOTES =
+            "ALTER TABLE " + ContactContract.ContactEntry.TABLE_NAME + " ADD COLUMN " +
+                    ContactContract.ContactEntry.COLUMN_NAME_NOTES + " TEXT NOT NULL DEFAULT ''";
+
+    // SQL sentences to add the photos of the contacts (version 9):
+    //  String: photo (name of the file with the full photo, null if there is none)
+    // the table of their thumbnails, and the trigger removing the thumbnails of purged contacts
+    private static final String SQL_ADD_PHOTO =
+            "ALTER TABLE " + ContactContract.ContactEntry.TABLE_NAME + " ADD COLUMN " +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHOTO + " TEXT";
+    private static final String SQL_CREATE_THUMBNAIL_ENTRIES =
+            "CREATE TABLE IF NOT EXISTS " + ContactContract.ThumbnailEntry.TABLE_NAME + " (" +
+                    ContactContract.ThumbnailEntry.COLUMN_NAME_CONTACT_ID + " INTEGER PRIMARY KEY NOT NULL, " +
+                    ContactContract.ThumbnailEntry.COLUMN_NAME_DATA + " BLOB NOT NULL)";
+    private static final String SQL_CREATE_THUMBNAIL_TRIGGER_AFTER_DELETE =
+            "CREATE TRIGGER IF NOT EXISTS " + ContactContract.ThumbnailEntry.TRIGGER_NAME_AFTER_DELETE +
+                    " AFTER DELETE ON " + ContactContract.ContactEntry.TABLE_NAME + " BEGIN DELETE FROM " +
+                    ContactContract.ThumbnailEntry.TABLE_NAME + " WHERE " +
+                    ContactContract.ThumbnailEntry.COLUMN_NAME_CONTACT_ID + " = old." +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + "; END";
+    // SQL sentence to remove the table of thumbnails
+    private static final String SQL_DELETE_THUMBNAIL_ENTRIES =
+            "DROP TABLE IF EXISTS " + ContactContract.ThumbnailEntry.TABLE_NAME;
+    // SQL sentence to set the photo of the contact with the given ID, which is a change of the contact
+    private static final String SQL_SET_PHOTO =
+            "UPDATE " + ContactContract.ContactEntry.TABLE_NAME + " SET " +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHOTO + " = ?, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_VERSION + " = " +
+                    ContactContract.ContactEntry.COLUMN_NAME_VERSION + " + 1 WHERE " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " = ? AND " + SQL_NOT_DELETED;
+    // SQL sentences to set and remove the thumbnail of the contact with the given ID
+    private static final String SQL_SET_THUMBNAIL =
+            "INSERT OR REPLACE INTO " + ContactContract.ThumbnailEntry.TABLE_NAME + " (" +
+                    ContactContract.ThumbnailEntry.COLUMN_NAME_CONTACT_ID + ", " +
+                    ContactContract.ThumbnailEntry.COLUMN_NAME_DATA + ") VALUES (?, ?)";
+    private static final String SQL_DELETE_THUMBNAIL =
+            "DELETE FROM " + ContactContract.ThumbnailEntry.TABLE_NAME + " WHERE " +
+                    ContactContract.ThumbnailEntry.COLUMN_NAME_CONTACT_ID + " = ?";
+
+    // SQL sentences to create the journal of changes (version 10):
+    //  autoincremental integer primary key: seq (never reused, even after removing the last entries)
+    //  Integer not null: contact_id
+    // indexed by contact to find superseded changes, and the triggers recording a change each time
+    // a contact is inserted, updated (its version increases), deleted, or purged without being deleted.
+    // Computing keys or sort keys does not change the version, so it is not recorded
+    private static final String SQL_CREATE_JOURNAL_ENTRIES =
+            "CREATE TABLE IF NOT EXISTS " + ContactContract.JournalEntry.TABLE_NAME + " (" +
+                    ContactContract.JournalEntry.COLUMN_NAME_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    ContactContract.JournalEntry.COLUMN_NAME_CONTACT_ID + " INTEGER NOT NULL)";
+    private static final String SQL_CREATE_JOURNAL_CONTACT_ID_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ContactContract.JournalEntry.INDEX_NAME_CONTACT_ID + " ON " +
+                    ContactContract.JournalEntry.TABLE_NAME + " (" +
+                    ContactContract.JournalEntry.COLUMN_NAME_CONTACT_ID + ")";
+    private static final String SQL_CREATE_JOURNAL_TRIGGER_AFTER_INSERT =
+            "CREATE TRIGGER IF NOT EXISTS " + ContactContract.JournalEntry.TRIGGER_NAME_AFTER_INSERT +
+                    " AFTER INSERT ON " + ContactContract.ContactEntry.TABLE_NAME + " BEGIN " +
+                    getJournalInsertStatement("new") + " END";
+    private static final String SQL_CREATE_JOURNAL_TRIGGER_AFTER_UPDATE =
+            "CREATE TRIGGER IF NOT EXISTS " + ContactContract.JournalEntry.TRIGGER_NAME_AFTER_UPDATE +
+                    " AFTER UPDATE OF " + ContactContract.ContactEntry.COLUMN_NAME_VERSION + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_DELETED + " ON " +
+                    ContactContract.ContactEntry.TABLE_NAME + " WHEN old." + SQL_NOT_DELETED + " BEGIN " +
+                    getJournalInsertStatement("new") + " END";
+    private static final String SQL_CREATE_JOURNAL_TRIGGER_AFTER_DELETE =
+            "CREATE TRIGGER IF NOT EXISTS " + ContactContract.JournalEntry.TRIGGER_NAME_AFTER_DELETE +
+                    " AFTER DELETE ON " + ContactContract.ContactEntry.TABLE_NAME + " WHEN old." + SQL_NOT_DELETED +
+                    " BEGIN " + getJournalInsertStatement("old") + " END";
+    // SQL sentence to record the existing contacts as changes, so they are synchronized once
+    private static final String SQL_FILL_JOURNAL_ENTRIES =
+            "INSERT INTO " + ContactContract.JournalEntry.TABLE_NAME + " (" +
+                    ContactContract.JournalEntry.COLUMN_NAME_CONTACT_ID + ") SELECT " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " FROM " +
+                    ContactContract.ContactEntry.TABLE_NAME + " WHERE " + SQL_NOT_DELETED + " ORDER BY " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID;
+    // SQL sentence to remove the journal of changes
+    private static final String SQL_DELETE_JOURNAL_ENTRIES =
+            "DROP TABLE IF EXISTS " + ContactContract.JournalEntry.TABLE_NAME;
+    // SQL sentence to read the oldest changes in the journal, with the contact as it is now
+    // (all its columns are null if it was purged)
+    private static final String SQL_GET_JOURNAL =
+            "SELECT " + ContactContract.JournalEntry.TABLE_NAME + "." + ContactContract.JournalEntry.COLUMN_NAME_SEQUENCE + ", " +
+                    ContactContract.JournalEntry.TABLE_NAME + "." + ContactContract.JournalEntry.COLUMN_NAME_CONTACT_ID + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_NAME + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_NOTES + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_VERSION + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_DELETED + " FROM " +
+                    ContactContract.JournalEntry.TABLE_NAME + " LEFT JOIN " +
+                    ContactContract.ContactEntry.TABLE_NAME + " ON " +
+                    ContactContract.ContactEntry.TABLE_NAME + "." + ContactContract.ContactEntry.COLUMN_NAME_ID + " = " +
+                    ContactContract.JournalEntry.TABLE_NAME + "." + ContactContract.JournalEntry.COLUMN_NAME_CONTACT_ID +
+                    " ORDER BY " + ContactContract.JournalEntry.TABLE_NAME + "." +
+                    ContactContract.JournalEntry.COLUMN_NAME_SEQUENCE + " LIMIT ?";
+    // Positions of the columns read from the journal
+    static final int JOURNAL_COLUMN_SEQUENCE = 0;
+    static final int JOURNAL_COLUMN_CONTACT_ID = 1;
+    static final int JOURNAL_COLUMN_NAME = 2;
+    static final int JOURNAL_COLUMN_EMAIL = 3;
+    static final int JOURNAL_COLUMN_PHONE = 4;
+    static final int JOURNAL_COLUMN_NOTES = 5;
+    static final int JOURNAL_COLUMN_VERSION = 6;
+    static final int JOURNAL_COLUMN_DELETED = 7;
+    // SQL sentence to remove the changes acknowledged, up to a given sequence number
+    private static final String SQL_ACKNOWLEDGE_JOURNAL =
+            "DELETE FROM " + ContactContract.JournalEntry.TABLE_NAME + " WHERE " +
+                    ContactContract.JournalEntry.COLUMN_NAME_SEQUENCE + " <= ?";
+    // SQL sentence to remove the changes followed by a later change of the same contact,
+    // as the contact is only sent once, as it is when the latest change is synchronized
+    private static final String SQL_COALESCE_JOURNAL =
+            "DELETE FROM " + ContactContract.JournalEntry.TABLE_NAME + " WHERE " +
+                    ContactContract.JournalEntry.COLUMN_NAME_SEQUENCE + " < (SELECT MAX(latest." +
+                    ContactContract.JournalEntry.COLUMN_NAME_SEQUENCE + ") FROM " +
+                    ContactContract.JournalEntry.TABLE_NAME + " AS latest WHERE latest." +
+                    ContactContract.JournalEntry.COLUMN_NAME_CONTACT_ID + " = " +
+                    ContactContract.JournalEntry.TABLE_NAME + "." + ContactContract.JournalEntry.COLUMN_NAME_CONTACT_ID + ")";
+
+    // SQL sentence to insert a new contact (autoincremental id)
+    private static final String SQL_INSERT_ENTRY =
+            "INSERT INTO " + ContactContract.ContactEntry.TABLE_NAME + " (" +
+                    ContactContract.ContactEntry.COLUMN_NAME_NAME + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL_KEY + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE_KEY + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_SECTION + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_NOTES + ") VALUES (?, ?, ?, ?, ?, ?, ?, COALESCE(?, ''))";
+    // Position of the notes argument in the insert sentence
+    private static final int INSERT_NOTES_INDEX = 8;
+
+    // SQL sentence to update the data of the contact with the given ID, and increase its version.
+    // It is only applied if the contact still has the given version (unless it is 0), so an update
+    // based on data that someone else has changed since it was read does not overwrite that change.
+    // Notes are kept if they were not loaded (null)
+    private static final String SQL_UPDATE_ENTRY =
+            "UPDATE " + ContactContract.ContactEntry.TABLE_NAME + " SET " +
+                    ContactContract.ContactEntry.COLUMN_NAME_NAME + " = ?, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL + " = ?, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE + " = ?, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_EMAIL_KEY + " = ?, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_PHONE_KEY + " = ?, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY + " = ?, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_SECTION + " = ?, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_NOTES + " = COALESCE(?10, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_NOTES + "), " +
+                    ContactContract.ContactEntry.COLUMN_NAME_VERSION + " = " +
+                    ContactContract.ContactEntry.COLUMN_NAME_VERSION + " + 1 WHERE " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " = ?8 AND " + SQL_NOT_DELETED + " AND (?9 = 0 OR " +
+                    ContactContract.ContactEntry.COLUMN_NAME_VERSION + " = ?9)";
+    // Positions of the ID, expected version, and notes arguments in the update sentence
+    private static final int UPDATE_ID_INDEX = 8;
+    private static final int UPDATE_VERSION_INDEX = 9;
+    private static final int UPDATE_NOTES_INDEX = 10;
+
+    // SQL sentence to delete the contact with the given ID.
+    // It is only marked as deleted, and purged later in background (see compact())
+    private static final String SQL_DELETE_ENTRY =
+            "UPDATE " + ContactContract.ContactEntry.TABLE_NAME + " SET " +
+                    ContactContract.ContactEntry.COLUMN_NAME_DELETED + " = 1 WHERE " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " = ? AND " + SQL_NOT_DELETED;
+
+    // Maximum number of rows written in each batch of a bulk operation.
+    // It also bounds the number of arguments bound to a single statement
+    // (SQLite allows up to 999 by default)
+    private static final int BATCH_SIZE = 500;
+
+    // SQL sentence to purge a batch of contacts marked as deleted
+    private static final String SQL_PURGE_ENTRIES =
+            "DELETE FROM " + ContactContract.ContactEntry.TABLE_NAME + " WHERE " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " IN (SELECT " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " FROM " +
+                    ContactContract.ContactEntry.TABLE_NAME + " WHERE " +
+                    ContactContract.ContactEntry.COLUMN_NAME_DELETED + " = 1 LIMIT " + BATCH_SIZE + ")";
+
+    // Order in which contacts are listed: alphabetically (according to the default locale),
+    // and by ID for contacts with the same name. It matches the index on sort_key
+    static final String SORT_ORDER =
+            ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY + ", " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID;
+    // Reverse order, to read the contacts preceding a given one
+    static final String REVERSE_SORT_ORDER =
+            ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY + " DESC, " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " DESC";
+
+    // Selections of the contacts following and preceding a (sort key, _ID) key, with the sort key twice.
+    // The first condition lets SQLite seek the index on sort_key to the key
+    static final String SQL_AFTER_KEY =
+            ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY + " >= ? AND (" +
+                    ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY + " > ? OR " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " > ?)";
+    static final String SQL_BEFORE_KEY =
+            ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY + " <= ? AND (" +
+                    ContactContract.ContactEntry.COLUMN_NAME_SORT_KEY + " < ? OR " +
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " < ?)";
+    // Selections of the contact with a given ID, and of those with a given email (case insensitive,
+    // as its index) or phone
+    static final String SQL_BY_ID =
+            ContactContract.ContactEntry.COLUMN_NAME_ID + " = ?";
+    static final String SQL_BY_EMAIL =
+            ContactContract.ContactEntry.COLUMN_NAME_EMAIL + " = ? COLLATE NOCASE";
+    static final String SQL_BY_PHONE =
+            ContactContract.ContactEntry.COLUMN_NAME_PHONE + " = ?";
+
+    // Columns read for each projection (see Projection), in the order expected by queryContacts()
+    static final String[] SUMMARY_COLUMNS = {
+            ContactContract.ContactEntry.COLUMN_NAME_ID,
+            ContactContract.ContactEntry.COLUMN_NAME_NAME,
+            ContactContract.ContactEntry.COLUMN_NAME_EMAIL,
+            ContactContract.ContactEntry.COLUMN_NAME_PHONE,
+            ContactContract.ContactEntry.COLUMN_NAME_VERSION};
+    private static final String[] FULL_COLUMNS = {
+            ContactContract.ContactEntry.COLUMN_NAME_ID,
+            ContactContract.ContactEntry.COLUMN_NAME_NAME,
+            ContactContract.ContactEntry.COLUMN_NAME_EMAIL,
+            ContactContract.ContactEntry.COLUMN_NAME_PHONE,
+            ContactContract.ContactEntry.COLUMN_NAME_VERSION,
+            ContactContract.ContactEntry.COLUMN_NAME_NOTES};
+
+    // Columns that can be queried from outside this package (see ContactContract), both when
+    // no projection is given and as the allowed ones (with both spellings of the ID)
+    private static final String[] PUBLIC_PROJECTION = {
+            ContactContract.ContactEntry.COLUMN_NAME_ID,
+            ContactContract.ContactEntry.COLUMN_NAME_NAME,
+            ContactContract.ContactEntry.COLUMN_NAME_EMAIL,
+            ContactContract.ContactEntry.COLUMN_NAME_PHONE,
+            ContactContract.ContactEntry.COLUMN_NAME_VERSION,
+            ContactContract.ContactEntry.COLUMN_NAME_NOTES};
+    private static final Map<String, String> PUBLIC_COLUMNS = new HashMap<>();
+
+    static {
+        for (String column : PUBLIC_PROJECTION) {
+            PUBLIC_COLUMNS.put(column, column);
+        }
+        PUBLIC_COLUMNS.put(ContactContract.ContactEntry._ID, ContactContract.ContactEntry.COLUMN_NAME_ID);
+    }
+
+    // SQL words that the selection and order of query() can include, besides the public columns
+    private static final Set<String> QUERY_KEYWORDS = new HashSet<>(Arrays.asList(
+            "and", "or", "not", "is", "null", "like", "glob", "escape", "in", "between",
+            "collate", "nocase", "asc", "desc"));
+    // Tokens of a selection or order checked by query(): string and numeric literals, which are skipped,
+    // and identifiers, either quoted (group 1 to 3) or not (group 4)
+    private static final Pattern QUERY_TOKEN = Pattern.compile(
+            "'(?:[^']|'')*'|0[xX][0-9a-fA-F]+|\\d+(?:\\.\\d*)?(?:[eE][+-]?\\d+)?|" +
+                    "\"((?:[^\"]|\"\")*)\"|`([^`]*)`|\\[([^\\]]*)]|([A-Za-z_][A-Za-z0-9_$]*)");
+
+    // Default number of contacts kept in the cache of contacts read by ID
+    private static final int DEFAULT_CACHE_SIZE = 100;
+
+    // Default number of statements compiled by each connection to the database that are kept
+    // to be reused (Android allows up to 100)
+    private static final int DEFAULT_STATEMENT_CACHE_SIZE = 50;
+
+    // Default number of pages in the write-ahead log that trigger an automatic checkpoint
+    private static final int DEFAULT_CHECKPOINT_THRESHOLD = 1000;
+    // Time without writes (milliseconds) after which the write-ahead log is checkpointed when idle
+    private static final long IDLE_CHECKPOINT_DELAY = 5000;
+
+    // Time without deletes (milliseconds) after which deleted contacts are purged
+    private static final long COMPACTION_DELAY = 30000;
+    // Fraction of free pages in the database file above which they are released to the file system
+    private static final double VACUUM_THRESHOLD = 0.1;
+    // Fraction of free pages above which the whole file is rebuilt, which also defragments it
+    private static final double FULL_VACUUM_THRESHOLD = 0.3;
+    // Value of PRAGMA auto_vacuum when free pages can be released incrementally
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // Time (milliseconds) after which a photo file not referenced by any contact is removed.
+    // Files are written before the contact references them, so recent ones may still be in use
+    private static final long ORPHAN_PHOTO_AGE = 3600000;
+
+    // Maximum number of times an update is retried after resolving a conflict
+    private static final int MAX_UPDATE_RETRIES = 10;
+
+    // Tag for the warnings logged
+    private static final String TAG = "CustomSqliteOpenHelper";
 
     // Database version
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 10;
     // Database name
     private static final String DATABASE_NAME = "contacts_database";
 
@@ -49,6 +543,128 @@ public class CustomSqliteOpenHelper extends SQLiteOpenHelper {
         return ourInstance;
     }
 
+    // Create a helper object managing a separate database file, outside the singleton.
+    // It lets benchmarks and tests work on their own data without touching the user's contacts
+    static CustomSqliteOpenHelper createInstance(Context context, String name) {
+        return new CustomSqliteOpenHelper(context, name, null, DATABASE_VERSION);
+    }
+
+    // Directory where the photos of the contacts are stored (one per database file)
+    private final File photoDirectory;
+
+    // Connection to the database, kept open while the singleton is alive
+    // so that it is not reopened (and its schema checked) on every operation
+    private volatile SQLiteDatabase database;
+    // Locale of the sort keys stored in the database, once checked after opening it
+    private volatile Locale sortLocale;
+
+    // Statements compiled once when the connection is opened and rebound on each call
+    private SQLiteStatement insertStatement;
+    private SQLiteStatement updateStatement;
+    private SQLiteStatement deleteStatement;
+
+    // Object to be notified each time a batch of a bulk operation is written
+    private OnBatchWrittenListener batchListener;
+    // Objects to be notified each time a contact is inserted, updated, or deleted
+    private final List<OnContactChangedListener> changeListeners = new CopyOnWriteArrayList<>();
+    // Changes made within the transaction of runInTransaction(), notified once it is committed
+    private List<ContactChange> transactionChanges = null;
+
+    // Least recently used contacts read by ID. They are copied on the way in and out,
+    // so callers cannot modify the cached objects
+    private final LruCache<Long, Contact> contactCache = new LruCache<>(DEFAULT_CACHE_SIZE);
+    // Number of changes applied to the cache, to discard contacts read before a change
+    private volatile long cacheChanges = 0;
+
+    // Latency, rows, and thread of the operations performed
+    private final ContactMetrics metrics = new ContactMetrics();
+
+    // Number of compiled statements each connection keeps to be reused (applied when the database is opened)
+    private volatile int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+    // SQL of the queries of findContacts() most recently executed, as many as statements are kept by
+    // the connections, to estimate whether a query could reuse a compiled statement (the SQL of those
+    // found in it) or had to be compiled again (the rest). The value is not used.
+    // It is only an estimate: the connections also keep the statements of other operations, and
+    // each connection (several with write-ahead logging) has its own cache
+    private final LruCache<String, Boolean> recentQueries = new LruCache<>(DEFAULT_STATEMENT_CACHE_SIZE);
+
+    // Policies to copy the content of the write-ahead log back into the database file:
+    //  AUTOMATIC: SQLite does it once the log reaches the configured number of pages
+    //  MANUAL: only when checkpoint() is explicitly called
+    //  ON_IDLE: in the background, once no writes have been performed for a while
+    public enum CheckpointPolicy {AUTOMATIC, MANUAL, ON_IDLE}
+
+    // Write-ahead logging configuration (applied when the database is opened)
+    private boolean writeAheadLogging = true;
+    private CheckpointPolicy checkpointPolicy = CheckpointPolicy.AUTOMATIC;
+    private int checkpointThreshold = DEFAULT_CHECKPOINT_THRESHOLD;
+
+    // Background thread to checkpoint the write-ahead log and compact the database when idle
+    private Handler maintenanceHandler;
+    private final Runnable idleCheckpoint = this::checkpoint;
+    private final Runnable idleCompaction = this::compact;
+    // Bytes released from the database file by all the compactions
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    // Updates not applied because the contact had been changed since it was read
+    private final AtomicLong updateConflicts = new AtomicLong();
+
+    // Interface to be notified of the number of rows written by each batch of a bulk operation
+    public interface OnBatchWrittenListener {
+        void onBatchWritten(int rows, long elapsedNanos);
+    }
+
+    // Types of changes made to a contact
+    public enum ChangeType {INSERT, UPDATE, DELETE}
+
+    // Change made to a contact: its type, the ID of the contact, and the data written (null when it is deleted)
+    public static class ContactChange {
+        public final ChangeType type;
+        public final long id;
+        public final Contact contact;
+
+        ContactChange(ChangeType type, long id, Contact contact) {
+            this.type = type;
+            this.id = id;
+            this.contact = contact;
+        }
+    }
+
+    // Columns read for each contact:
+    //  SUMMARY: the ones displayed in the list (_ID, name, email, phone, and version)
+    //  FULL: all of them, including large ones like notes, for a contact being opened
+    // Lists of contacts are read as SUMMARY, so their memory (and cursor windows) do not grow
+    // with every column added to the table. Contacts read as SUMMARY have null notes
+    public enum Projection {SUMMARY, FULL}
+
+    // Results of updating a contact:
+    //  UPDATED: the data was written
+    //  CONFLICT: the contact was changed by someone else since it was read, so it was not written
+    //  NOT_FOUND: the contact does not exist (or it was deleted)
+    public enum UpdateResult {UPDATED, CONFLICT, NOT_FOUND}
+
+    // Interface to solve the conflicts found when updating a contact, so the update can be retried.
+    // It receives the contact currently stored and the one that could not be written, and returns
+    // the data to be written instead (its ID and version are set by the helper), or null to give up.
+    // It is called without holding any lock, so it can take its time
+    public interface ConflictResolver {
+        Contact resolve(Contact current, Contact attempted);
+    }
+
+    // Interface to be notified of the changes made to contacts once they are stored.
+    // The contact holds the data written (null when it is deleted).
+    // The changes committed together by each batch of a bulk operation are notified at once, in order,
+    // so they can be applied together. It is called on the thread that made the change
+    public interface OnContactChangedListener {
+        void onContactChanged(ChangeType type, long id, Contact contact);
+
+        // Receive the changes committed together. By default they are received one by one
+        default void onContactsChanged(List<ContactChange> changes) {
+            for (ContactChange change : changes) {
+                onContactChanged(change.type, change.id, change.contact);
+            }
+        }
+    }
+
     // Create a helper object to manage a database with parameters
     // context
     // filename of the database, or null for in-memory database
@@ -56,44 +672,914 @@ public class CustomSqliteOpenHelper extends SQLiteOpenHelper {
     // version of the database (upgrades/downgrades existing ones)
     private CustomSqliteOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
         super(context, name, factory, version);
+        photoDirectory = new File(context.getFilesDir(), (name == null ? "memory" : name) + "_photos");
+    }
+
+    // This method is called every time the database is opened, before it is created or upgraded.
+    // Write-ahead logging lets readers on other threads access the database while a single
+    // writer is modifying it, as the Android connection pool then opens several read connections
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setMaxSqlCacheSize(statementCacheSize);
+        // Free pages can be released without rebuilding the whole file.
+        // It only applies to new databases, and to existing ones once they are vacuumed
+        runPragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+        if (writeAheadLogging) {
+            db.enableWriteAheadLogging();
+            // A threshold of 0 disables automatic checkpoints
+            runPragma(db, "PRAGMA wal_autocheckpoint = " +
+                    (checkpointPolicy == CheckpointPolicy.AUTOMATIC ? checkpointThreshold : 0));
+        } else {
+            db.disableWriteAheadLogging();
+        }
     }
 
     // This method is only called to create the database the first time it is accessed
     @Override
     public void onCreate(SQLiteDatabase db) {
-        // SQL query to create a contacts_table table
+        // SQL query to create a contacts_table table (version 1)
         db.execSQL(SQL_CREATE_ENTRIES);
+        // Apply the same steps as existing databases to reach the current version
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
-    // This method is only called when the database needs to be upgraded,
-    // so it has been left blank
+    // This method is only called when the database needs to be upgraded.
+    // Each version is reached through its own step, preserving the data stored,
+    // so databases can be upgraded from any previous version
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            switch (version) {
+                case 2:
+                    // Indexes on name, email, and phone
+                    db.execSQL(SQL_CREATE_NAME_INDEX);
+                    db.execSQL(SQL_CREATE_EMAIL_INDEX);
+                    db.execSQL(SQL_CREATE_PHONE_INDEX);
+                    break;
+                case 3:
+                    // Full-text search table, kept in sync by triggers, and indexing existing contacts
+                    db.execSQL(SQL_CREATE_SEARCH_ENTRIES);
+                    db.execSQL(SQL_CREATE_SEARCH_TRIGGER_BEFORE_UPDATE);
+                    db.execSQL(SQL_CREATE_SEARCH_TRIGGER_BEFORE_DELETE);
+                    db.execSQL(SQL_CREATE_SEARCH_TRIGGER_AFTER_UPDATE);
+                    db.execSQL(SQL_CREATE_SEARCH_TRIGGER_AFTER_INSERT);
+                    db.execSQL(SQL_REBUILD_SEARCH_ENTRIES);
+                    break;
+                case 4:
+                    // Normalized keys to detect duplicates, computed for existing contacts, and their indexes
+                    db.execSQL(SQL_ADD_PHONE_KEY);
+                    db.execSQL(SQL_ADD_EMAIL_KEY);
+                    fillKeys(db);
+                    db.execSQL(SQL_CREATE_PHONE_KEY_INDEX);
+                    db.execSQL(SQL_CREATE_EMAIL_KEY_INDEX);
+                    break;
+                case 5:
+                    // Sort keys and sections, computed for existing contacts, and their indexes.
+                    // Triggers are restricted first, so computing the keys does not reindex the contacts
+                    db.execSQL(SQL_DELETE_SEARCH_TRIGGER_BEFORE_UPDATE);
+                    db.execSQL(SQL_DELETE_SEARCH_TRIGGER_AFTER_UPDATE);
+                    db.execSQL(SQL_CREATE_SEARCH_TRIGGER_BEFORE_UPDATE);
+                    db.execSQL(SQL_CREATE_SEARCH_TRIGGER_AFTER_UPDATE);
+                    db.execSQL(SQL_ADD_SORT_KEY);
+                    db.execSQL(SQL_ADD_SECTION);
+                    db.execSQL(SQL_CREATE_METADATA_ENTRIES);
+                    fillSortKeys(db);
+                    db.execSQL(SQL_CREATE_SORT_KEY_INDEX);
+                    db.execSQL(SQL_CREATE_SECTION_INDEX);
+                    db.execSQL(SQL_DELETE_NAME_INDEX);
+                    break;
+                case 6:
+                    // Tombstone of deleted contacts
+                    db.execSQL(SQL_ADD_DELETED);
+                    break;
+                case 7:
+                    // Version of the contacts (existing ones start at 1)
+                    db.execSQL(SQL_ADD_VERSION);
+                    break;
+                case 8:
+                    // Notes about the contacts
+                    db.execSQL(SQL_ADD_NOTES);
+                    break;
+                case 9:
+                    // Photos of the contacts, and their thumbnails
+                    db.execSQL(SQL_ADD_PHOTO);
+                    db.execSQL(SQL_CREATE_THUMBNAIL_ENTRIES);
+                    db.execSQL(SQL_CREATE_THUMBNAIL_TRIGGER_AFTER_DELETE);
+                    break;
+                case 10:
+                    // Journal of changes, kept by triggers, starting with the existing contacts
+                    db.execSQL(SQL_CREATE_JOURNAL_ENTRIES);
+                    db.execSQL(SQL_CREATE_JOURNAL_CONTACT_ID_INDEX);
+                    db.execSQL(SQL_CREATE_JOURNAL_TRIGGER_AFTER_INSERT);
+                    db.execSQL(SQL_CREATE_JOURNAL_TRIGGER_AFTER_UPDATE);
+                    db.execSQL(SQL_CREATE_JOURNAL_TRIGGER_AFTER_DELETE);
+                    db.execSQL(SQL_FILL_JOURNAL_ENTRIES);
+                    break;
+            }
+        }
+    }
+
+    // Compute the normalized keys of all the existing contacts
+    private static void fillKeys(SQLiteDatabase db) {
+        final SQLiteStatement statement = db.compileStatement(SQL_UPDATE_KEYS);
+        final Cursor cursor = db.query(
+                ContactContract.ContactEntry.TABLE_NAME,
+                new String[]{ContactContract.ContactEntry.COLUMN_NAME_ID,
+                        ContactContract.ContactEntry.COLUMN_NAME_EMAIL,
+                        ContactContract.ContactEntry.COLUMN_NAME_PHONE},
+                null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            bindNullable(statement, 1, ContactKeys.normalizeEmail(cursor.getString(1)));
+            bindNullable(statement, 2, ContactKeys.normalizePhone(cursor.getString(2)));
+            statement.bindLong(3, cursor.getLong(0));
+            statement.executeUpdateDelete();
+        }
+        cursor.close();
+        statement.close();
+    }
+
+    // Compute the sort keys and sections of all the existing contacts for the default locale,
+    // and store the locale used
+    private static void fillSortKeys(SQLiteDatabase db) {
+        final SQLiteStatement statement = db.compileStatement(SQL_UPDATE_SORT_KEYS);
+        final Cursor cursor = db.query(
+                ContactContract.ContactEntry.TABLE_NAME,
+                new String[]{ContactContract.ContactEntry.COLUMN_NAME_ID,
+                        ContactContract.ContactEntry.COLUMN_NAME_NAME},
+                null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            final String name = cursor.getString(1);
+            statement.bindString(1, ContactCollation.getSortKey(name));
+            statement.bindString(2, ContactCollation.getSection(name));
+            statement.bindLong(3, cursor.getLong(0));
+            statement.executeUpdateDelete();
+        }
+        cursor.close();
+        statement.close();
+        db.execSQL(SQL_SET_METADATA, new Object[]{
+                ContactContract.MetadataEntry.KEY_SORT_LOCALE, ContactCollation.getLocale().toString()});
+    }
+
+    // Compute the sort keys again if they were generated for a locale other than the default one
+    private static void checkSortKeys(SQLiteDatabase db) {
+        final Cursor cursor = db.query(
+                ContactContract.MetadataEntry.TABLE_NAME,
+                new String[]{ContactContract.MetadataEntry.COLUMN_NAME_VALUE},
+                ContactContract.MetadataEntry.COLUMN_NAME_KEY + " = ?",
+                new String[]{ContactContract.MetadataEntry.KEY_SORT_LOCALE},
+                null, null, null);
+        final String stored = cursor.moveToFirst() ? cursor.getString(0) : null;
+        cursor.close();
+        if (!ContactCollation.getLocale().toString().equals(stored)) {
+            db.beginTransaction();
+            try {
+                fillSortKeys(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    // This method is only called when the database has a newer version than the app
+    // (the app was downgraded), so its data cannot be preserved
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL(SQL_DELETE_JOURNAL_ENTRIES);
+        db.execSQL(SQL_DELETE_THUMBNAIL_ENTRIES);
+        db.execSQL(SQL_DELETE_METADATA_ENTRIES);
+        db.execSQL(SQL_DELETE_SEARCH_ENTRIES);
         db.execSQL(SQL_DELETE_ENTRIES);
         onCreate(db);
     }
 
+    // Get the long-lived connection to the database, opening it (and compiling
+    // the cached statements) the first time it is required.
+    // The sort keys are computed again the first time it is required after the locale changes.
+    // Readers do not lock the helper once it is open, so they are not blocked by writers
+    private SQLiteDatabase getDatabase() {
+        final SQLiteDatabase current = database;
+        if (current != null && current.isOpen() && Locale.getDefault().equals(sortLocale)) {
+            return current;
+        }
+        synchronized (this) {
+            if (database == null || !database.isOpen()) {
+                // The time to open includes creating or upgrading the database
+                final long start = System.nanoTime();
+                // Get access to the database in write mode (it can also be read)
+                final SQLiteDatabase opened = getWritableDatabase();
+                insertStatement = opened.compileStatement(SQL_INSERT_ENTRY);
+                updateStatement = opened.compileStatement(SQL_UPDATE_ENTRY);
+                deleteStatement = opened.compileStatement(SQL_DELETE_ENTRY);
+                database = opened;
+                metrics.record(ContactMetrics.Operation.OPEN, start, 0);
+            }
+            if (!Locale.getDefault().equals(sortLocale)) {
+                final Locale locale = Locale.getDefault();
+                checkSortKeys(database);
+                sortLocale = locale;
+            }
+            return database;
+        }
+    }
+
+    // Configure write-ahead logging and the policy to checkpoint it.
+    // The threshold (in pages) is only used by the AUTOMATIC policy.
+    // It applies when the database is opened, so it must be configured before the helper is first used
+    // (or after it is explicitly closed): closing the connection here could break readers using it,
+    // as they do not lock the helper
+    public synchronized void configureWriteAheadLogging(
+            boolean enabled, CheckpointPolicy policy, int threshold) {
+        if (database != null) {
+            throw new IllegalStateException("Write-ahead logging must be configured before the database is opened");
+        }
+        writeAheadLogging = enabled;
+        checkpointPolicy = policy;
+        checkpointThreshold = threshold;
+    }
+
+    // Copy the content of the write-ahead log back into the database file.
+    // PASSIVE mode does not wait for (nor block) readers and writers
+    public void checkpoint() {
+        if (writeAheadLogging) {
+            runPragma(getDatabase(), "PRAGMA wal_checkpoint(PASSIVE)");
+        }
+    }
+
+    // Postpone the checkpoint of the write-ahead log until no writes are performed for a while
+    private synchronized void scheduleIdleCheckpoint() {
+        if (writeAheadLogging && checkpointPolicy == CheckpointPolicy.ON_IDLE) {
+            final Handler handler = getMaintenanceHandler();
+            handler.removeCallbacks(idleCheckpoint);
+            handler.postDelayed(idleCheckpoint, IDLE_CHECKPOINT_DELAY);
+        }
+    }
+
+    // Postpone purging deleted contacts until no deletes are performed for a while
+    private void scheduleCompaction() {
+        final Handler handler = getMaintenanceHandler();
+        handler.removeCallbacks(idleCompaction);
+        handler.postDelayed(idleCompaction, COMPACTION_DELAY);
+    }
+
+    // Get the handler of the background thread maintaining the database, starting it the first time
+    private synchronized Handler getMaintenanceHandler() {
+        if (maintenanceHandler == null) {
+            final HandlerThread thread = new HandlerThread("DatabaseMaintenanceThread");
+            thread.start();
+            maintenanceHandler = new Handler(thread.getLooper());
+        }
+        return maintenanceHandler;
+    }
+
+    // Purge the contacts marked as deleted, in batches so writers are not blocked for long,
+    // and release the free pages of the database file if they are a large fraction of it:
+    // incrementally if the file supports it, or rebuilding the whole file (VACUUM) otherwise
+    // or when the file is too fragmented. A full VACUUM also enables incremental vacuums on
+    // databases created before they were supported.
+    // Returns the number of bytes released from the database file
+    public long compact() {
+        final long start = System.nanoTime();
+        final SQLiteDatabase database = getDatabase();
+        int purged = 0;
+        int rows;
+        do {
+            rows = purgeBatch(database);
+            purged += rows;
+        } while (rows == BATCH_SIZE);
+        coalesceJournal(database);
+
+        final long pageSize = DatabaseUtils.longForQuery(database, "PRAGMA page_size", null);
+        final long pagesBefore = DatabaseUtils.longForQuery(database, "PRAGMA page_count", null);
+        final long freePages = DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+        final long autoVacuum = DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum", null);
+        final double freeRatio = pagesBefore == 0 ? 0 : (double) freePages / pagesBefore;
+        try {
+            if (freeRatio >= FULL_VACUUM_THRESHOLD ||
+                    (freeRatio >= VACUUM_THRESHOLD && autoVacuum != AUTO_VACUUM_INCREMENTAL)) {
+                synchronized (this) {
+                    database.execSQL("VACUUM");
+                }
+            } else if (freeRatio >= VACUUM_THRESHOLD) {
+                synchronized (this) {
+                    runPragma(database, "PRAGMA incremental_vacuum");
+                }
+            }
+        } catch (SQLiteException e) {
+            // VACUUM requires as much free storage as the database file takes, so it is tried again next time
+            Log.w(TAG, "Database could not be vacuumed", e);
+        }
+        // The file only shrinks once the vacuumed pages are copied from the write-ahead log.
+        // TRUNCATE waits for readers to finish, and then empties the log too
+        if (writeAheadLogging) {
+            synchronized (this) {
+                runPragma(database, "PRAGMA wal_checkpoint(TRUNCATE)");
+            }
+        }
+        deleteOrphanPhotos();
+
+        final long pagesAfter = DatabaseUtils.longForQuery(database, "PRAGMA page_count", null);
+        final long reclaimed = Math.max(0, pagesBefore - pagesAfter) * pageSize;
+        reclaimedBytes.addAndGet(reclaimed);
+        metrics.record(ContactMetrics.Operation.COMPACT, start, purged);
+        return reclaimed;
+    }
+
+    // Purge a batch of contacts marked as deleted. Returns the number of contacts purged
+    private synchronized int purgeBatch(SQLiteDatabase database) {
+        final SQLiteStatement statement = database.compileStatement(SQL_PURGE_ENTRIES);
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    // Remove the changes in the journal superseded by a later change of the same contact,
+    // so the journal does not grow beyond the number of contacts while it is not synchronized
+    private synchronized void coalesceJournal(SQLiteDatabase database) {
+        database.execSQL(SQL_COALESCE_JOURNAL);
+    }
+
+    // Read the oldest changes in the journal (up to the given number), with the data of each
+    // contact as it is now. The columns are given by the JOURNAL_COLUMN_* positions
+    Cursor queryJournal(int limit) {
+        return getDatabase().rawQuery(SQL_GET_JOURNAL, new String[]{String.valueOf(limit)});
+    }
+
+    // Remove the changes in the journal up to the given sequence number (included), once the
+    // server has acknowledged them. Returns the number of changes removed
+    synchronized int acknowledgeJournal(long sequence) {
+        final SQLiteStatement statement = getDatabase().compileStatement(SQL_ACKNOWLEDGE_JOURNAL);
+        try {
+            statement.bindLong(1, sequence);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+            scheduleIdleCheckpoint();
+        }
+    }
+
+    // Get the number of changes in the journal not synchronized yet
+    public long getPendingChangeCount() {
+        return DatabaseUtils.queryNumEntries(getDatabase(), ContactContract.JournalEntry.TABLE_NAME);
+    }
+
+    // Remove the photo files no longer referenced by any contact (replaced, or of purged contacts),
+    // unless they were written recently
+    private void deleteOrphanPhotos() {
+        final File[] files = photoDirectory.listFiles();
+        if (files == null || files.length == 0) {
+            return;
+        }
+        final Set<String> referenced = new HashSet<>();
+        final Cursor cursor = getDatabase().query(
+                ContactContract.ContactEntry.TABLE_NAME,
+                new String[]{ContactContract.ContactEntry.COLUMN_NAME_PHOTO},
+                ContactContract.ContactEntry.COLUMN_NAME_PHOTO + " IS NOT NULL",
+                null, null, null, null);
+        while (cursor.moveToNext()) {
+            referenced.add(cursor.getString(0));
+        }
+        cursor.close();
+        final long limit = System.currentTimeMillis() - ORPHAN_PHOTO_AGE;
+        for (File file : files) {
+            if (!referenced.contains(file.getName()) && file.lastModified() < limit) {
+                file.delete();
+            }
+        }
+    }
+
+    // Get the size of the database files, their free pages, the deleted contacts not purged yet,
+    // and the bytes released by compactions
+    public StorageStats getStorageStats() {
+        final SQLiteDatabase database = getDatabase();
+        final File file = new File(database.getPath());
+        final File log = new File(database.getPath() + "-wal");
+        return new StorageStats(
+                file.length() + log.length(),
+                DatabaseUtils.longForQuery(database, "PRAGMA page_size", null),
+                DatabaseUtils.longForQuery(database, "PRAGMA page_count", null),
+                DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null),
+                DatabaseUtils.queryNumEntries(database, ContactContract.ContactEntry.TABLE_NAME,
+                        ContactContract.ContactEntry.COLUMN_NAME_DELETED + " = 1"),
+                reclaimedBytes.get());
+    }
+
+    // Storage used by the database
+    public static class StorageStats {
+        // Size in bytes of the database file and its write-ahead log
+        public final long fileSize;
+        // Size in bytes of each page
+        public final long pageSize;
+        // Pages in the database file, and how many of them are free
+        public final long pageCount;
+        public final long freePages;
+        // Contacts marked as deleted that are not purged yet
+        public final long deletedContacts;
+        // Bytes released from the database file by all the compactions
+        public final long reclaimedBytes;
+
+        StorageStats(long fileSize, long pageSize, long pageCount, long freePages,
+                     long deletedContacts, long reclaimedBytes) {
+            this.fileSize = fileSize;
+            this.pageSize = pageSize;
+            this.pageCount = pageCount;
+            this.freePages = freePages;
+            this.deletedContacts = deletedContacts;
+            this.reclaimedBytes = reclaimedBytes;
+        }
+    }
+
+    // Execute a PRAGMA sentence. rawQuery() is used as some PRAGMAs return a row,
+    // which is not allowed by execSQL()
+    private static void runPragma(SQLiteDatabase db, String pragma) {
+        final Cursor cursor = db.rawQuery(pragma, null);
+        cursor.moveToFirst();
+        cursor.close();
+    }
+
+    // Release the cached statements and close the long-lived connection.
+    // The connection is opened again on the next operation.
+    @Override
+    public synchronized void close() {
+        if (insertStatement != null) {
+            insertStatement.close();
+            updateStatement.close();
+            deleteStatement.close();
+            insertStatement = null;
+            updateStatement = null;
+            deleteStatement = null;
+        }
+        database = null;
+        sortLocale = null;
+        super.close();
+    }
+
     // Get List<HashMap<String,String>> object with all the contacts stored
     // in the database to generate the data source to be later linked to a ListView:
     public List<Contact> getContacts() {
-        final List<Contact> result = new ArrayList<>();
-        Contact contact;
+        return getContacts(Projection.SUMMARY);
+    }
 
-        // Get access to the database in read mode
-        final SQLiteDatabase database = getReadableDatabase();
-        // Query the table to get the name, email, and phone for all existing entries
-        final Cursor cursor = database.query(
-                ContactContract.ContactEntry.TABLE_NAME,
-                new String[]{ContactContract.ContactEntry.COLUMN_NAME_ID,
-                        ContactContract.ContactEntry.COLUMN_NAME_NAME,
-                        ContactContract.ContactEntry.COLUMN_NAME_EMAIL,
-                        ContactContract.ContactEntry.COLUMN_NAME_PHONE},
-                null,
-                null,
-                null,
+    // Get all the contacts stored in the database, in alphabetical order, with the given columns
+    public List<Contact> getContacts(Projection projection) {
+        final long start = System.nanoTime();
+        final List<Contact> result = queryContacts(projection, null, null, SORT_ORDER, null);
+        metrics.record(ContactMetrics.Operation.GET_CONTACTS, start, result.size());
+        return result;
+    }
+
+    // Get the page of (at most) limit contacts that follow the given (name, _ID) key
+    // in alphabetical order, or the first page if name is null.
+    // Keyset pagination seeks directly to the key instead of skipping OFFSET rows
+    public List<Contact> getContactsAfter(String name, long id, int limit) {
+        final long start = System.nanoTime();
+        final List<Contact> result;
+        if (name == null) {
+            result = queryContacts(null, null, SORT_ORDER, String.valueOf(limit));
+        } else {
+            final String sortKey = ContactCollation.getSortKey(name);
+            result = queryContacts(
+                    SQL_AFTER_KEY,
+                    new String[]{sortKey, sortKey, String.valueOf(id)},
+                    SORT_ORDER,
+                    String.valueOf(limit));
+        }
+        metrics.record(ContactMetrics.Operation.GET_PAGE, start, result.size());
+        return result;
+    }
+
+    // Get the page of (at most) limit contacts that precede the given (name, _ID) key
+    // in alphabetical order. The page is returned in alphabetical order too
+    public List<Contact> getContactsBefore(String name, long id, int limit) {
+        final long start = System.nanoTime();
+        final String sortKey = ContactCollation.getSortKey(name);
+        final List<Contact> result = queryContacts(
+                SQL_BEFORE_KEY,
+                new String[]{sortKey, sortKey, String.valueOf(id)},
+                REVERSE_SORT_ORDER,
+                String.valueOf(limit));
+        // Rows were read backwards from the key, so restore the alphabetical order
+        Collections.reverse(result);
+        metrics.record(ContactMetrics.Operation.GET_PAGE, start, result.size());
+        return result;
+    }
+
+    // Get the sections (first letters) of the names of the stored contacts, in alphabetical order.
+    // The section of names not starting with a letter (ContactCollation.OTHER_SECTION) goes first.
+    // Passing a section as name to getContactsAfter() gets the first page of that section
+    public List<String> getSections() {
+        final List<String> result = new ArrayList<>();
+        final Cursor cursor = getDatabase().rawQuery(SQL_GET_SECTIONS, null);
+        while (cursor.moveToNext()) {
+            result.add(cursor.getString(0));
+        }
+        cursor.close();
+        Collections.sort(result, (section1, section2) -> {
+            if (section1.equals(section2)) {
+                return 0;
+            } else if (ContactCollation.OTHER_SECTION.equals(section1)) {
+                return -1;
+            } else if (ContactCollation.OTHER_SECTION.equals(section2)) {
+                return 1;
+            }
+            return ContactCollation.compareNames(section1, section2);
+        });
+        return result;
+    }
+
+    // Get the contact with the given ID, with all its columns (see Projection.FULL),
+    // or null if it does not exist. Contacts are read from the cache if possible
+    public Contact getContact(long id) {
+        final long start = System.nanoTime();
+        final Contact cached = contactCache.get(id);
+        if (cached != null) {
+            metrics.record(ContactMetrics.Operation.GET_CONTACT, start, 1);
+            return new Contact(cached);
+        }
+
+        final long changes = cacheChanges;
+        final List<Contact> result = queryContacts(
+                Projection.FULL,
+                SQL_BY_ID,
+                new String[]{String.valueOf(id)},
                 null,
-                ContactContract.ContactEntry.COLUMN_NAME_NAME,
                 null);
+        metrics.record(ContactMetrics.Operation.GET_CONTACT, start, result.size());
+        if (result.isEmpty()) {
+            return null;
+        }
+        // Do not cache the contact if it changed while it was being read
+        synchronized (contactCache) {
+            if (changes == cacheChanges) {
+                contactCache.put(id, new Contact(result.get(0)));
+            }
+        }
+        return result.get(0);
+    }
+
+    // Set the maximum number of contacts kept in the cache
+    public void setContactCacheSize(int size) {
+        contactCache.resize(size);
+    }
+
+    // Get the number of contacts read by ID that were found in the cache
+    public int getContactCacheHitCount() {
+        return contactCache.hitCount();
+    }
+
+    // Get the number of contacts read by ID that had to be read from the database
+    public int getContactCacheMissCount() {
+        return contactCache.missCount();
+    }
+
+    // Get the number of contacts removed from the cache to make room for others
+    public int getContactCacheEvictionCount() {
+        return contactCache.evictionCount();
+    }
+
+    // Set the number of compiled statements each connection keeps to be reused (1 to 100).
+    // Queries whose SQL is not found among them are compiled again
+    public void setStatementCacheSize(int size) {
+        if (size < 1 || size > SQLiteDatabase.MAX_SQL_CACHE_SIZE) {
+            throw new IllegalArgumentException("Invalid statement cache size: " + size);
+        }
+        statementCacheSize = size;
+        recentQueries.resize(size);
+        final SQLiteDatabase current = database;
+        if (current != null && current.isOpen()) {
+            current.setMaxSqlCacheSize(size);
+        }
+    }
+
+    // Get the estimated number of queries of findContacts() that could reuse a compiled statement,
+    // as their SQL was among the most recent ones (SQLite does not report the hits of its cache)
+    public int getEstimatedStatementCacheHitCount() {
+        return recentQueries.hitCount();
+    }
+
+    // Get the estimated number of queries of findContacts() that had to be compiled
+    public int getEstimatedStatementCacheMissCount() {
+        return recentQueries.missCount();
+    }
+
+    // Get the estimated fraction (0-1) of queries of findContacts() that could reuse a compiled statement
+    public double getEstimatedStatementCacheHitRate() {
+        final int hits = recentQueries.hitCount();
+        final int total = hits + recentQueries.missCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    // Get the latency, rows, and thread of the operations performed on the database
+    public ContactMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Keep the cache up to date with a change made to a contact.
+    // New contacts are not cached until they are read, so bulk inserts do not flush the cache
+    private void updateCache(ChangeType type, long id, Contact contact) {
+        synchronized (contactCache) {
+            cacheChanges++;
+            // remove() does not count as a hit or miss, unlike get()
+            final Contact cached = contactCache.remove(id);
+            if (cached != null && type == ChangeType.UPDATE) {
+                final Contact updated = new Contact(contact);
+                // Notes that were not loaded were not updated either
+                if (updated.getNotes() == null) {
+                    updated.setNotes(cached.getNotes());
+                }
+                contactCache.put(id, updated);
+            }
+        }
+    }
+
+    // Get the contacts whose email address matches the given one (case insensitive)
+    public List<Contact> findByEmail(String email) {
+        return queryContacts(
+                SQL_BY_EMAIL,
+                new String[]{email},
+                SORT_ORDER,
+                null);
+    }
+
+    // Get the contacts whose phone number matches the given one
+    public List<Contact> findByPhone(String phone) {
+        return queryContacts(
+                SQL_BY_PHONE,
+                new String[]{phone},
+                SORT_ORDER,
+                null);
+    }
+
+    // Find the groups of contacts that are duplicates of each other, as they share
+    // the same normalized email or phone (directly or through other contacts of the group).
+    // Returns the IDs of the contacts of each group, in ascending order
+    public List<long[]> findDuplicates() {
+        final long start = System.nanoTime();
+        // Join the groups found by email and by phone that have contacts in common
+        final Map<Long, Long> parents = new HashMap<>();
+        for (String sql : new String[]{SQL_FIND_DUPLICATED_EMAILS, SQL_FIND_DUPLICATED_PHONES}) {
+            final Cursor cursor = getDatabase().rawQuery(sql, null);
+            while (cursor.moveToNext()) {
+                final String[] ids = cursor.getString(0).split(",");
+                final long first = Long.parseLong(ids[0]);
+                for (int i = 1; i < ids.length; i++) {
+                    union(parents, first, Long.parseLong(ids[i]));
+                }
+            }
+            cursor.close();
+        }
+
+        // Gather the IDs of each group, identified by its root
+        final Map<Long, List<Long>> groups = new TreeMap<>();
+        for (Long id : parents.keySet()) {
+            final Long root = find(parents, id);
+            List<Long> group = groups.get(root);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(root, group);
+            }
+            group.add(id);
+        }
+        final List<long[]> result = new ArrayList<>(groups.size());
+        for (List<Long> group : groups.values()) {
+            final long[] ids = new long[group.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = group.get(i);
+            }
+            Arrays.sort(ids);
+            result.add(ids);
+        }
+        metrics.record(ContactMetrics.Operation.FIND_DUPLICATES, start, parents.size());
+        return result;
+    }
+
+    // Get the root of the group containing the given ID (union-find with path halving)
+    private static Long find(Map<Long, Long> parents, Long id) {
+        Long parent = parents.get(id);
+        if (parent == null) {
+            parents.put(id, id);
+            return id;
+        }
+        while (!parent.equals(id)) {
+            final Long grandparent = parents.get(parent);
+            parents.put(id, grandparent);
+            id = grandparent;
+            parent = parents.get(id);
+        }
+        return id;
+    }
+
+    // Join the groups containing the given IDs
+    private static void union(Map<Long, Long> parents, long id1, long id2) {
+        final Long root1 = find(parents, id1);
+        final Long root2 = find(parents, id2);
+        if (!root1.equals(root2)) {
+            parents.put(root2, root1);
+        }
+    }
+
+    // Merge the given contacts into the one to keep, within a single transaction:
+    // its empty email and phone are completed with those of the merged contacts
+    // (in the given order), and then the merged contacts are deleted.
+    // Returns the resulting contact, or null if the contact to keep does not exist
+    public synchronized Contact mergeContacts(long keepId, long... mergeIds) {
+        final Contact kept = getContact(keepId);
+        if (kept == null) {
+            return null;
+        }
+        final SQLiteDatabase database = getDatabase();
+        final List<ContactChange> changes = new ArrayList<>(mergeIds.length + 1);
+
+        database.beginTransaction();
+        try {
+            for (long id : mergeIds) {
+                if (id == keepId) {
+                    continue;
+                }
+                final Contact merged = getContact(id);
+                if (merged == null) {
+                    continue;
+                }
+                if (kept.getEmail().isEmpty()) {
+                    kept.setEmail(merged.getEmail());
+                }
+                if (kept.getPhone().isEmpty()) {
+                    kept.setPhone(merged.getPhone());
+                }
+                deleteStatement.bindLong(1, id);
+                deleteStatement.executeUpdateDelete();
+                changes.add(new ContactChange(ChangeType.DELETE, id, null));
+            }
+            bindContact(updateStatement, kept);
+            updateStatement.bindLong(UPDATE_ID_INDEX, keepId);
+            // The helper is locked, so the contact cannot change since it was read
+            updateStatement.bindLong(UPDATE_VERSION_INDEX, 0);
+            bindNullable(updateStatement, UPDATE_NOTES_INDEX, kept.getNotes());
+            updateStatement.executeUpdateDelete();
+            kept.setVersion(readVersion(keepId));
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            updateStatement.clearBindings();
+            deleteStatement.clearBindings();
+        }
+        scheduleIdleCheckpoint();
+        scheduleCompaction();
+        // Changes are notified together once the transaction is committed
+        changes.add(new ContactChange(ChangeType.UPDATE, keepId, kept));
+        notifyContactsChanged(changes);
+        return kept;
+    }
+
+    // Get (at most) limit contacts whose name, email, or phone contain words starting
+    // with every word of the query, ranked by relevance (hits in the name count more)
+    public List<Contact> searchContacts(String query, int limit) {
+        final List<Contact> result = new ArrayList<>();
+        final String match = getSearchMatch(query);
+        if (match == null || limit <= 0) {
+            return result;
+        }
+        final long start = System.nanoTime();
+
+        // Keep the best results found so far, with the worst one on top of the queue
+        final PriorityQueue<ScoredContact> best = new PriorityQueue<>();
+        final Cursor cursor = getDatabase().rawQuery(SQL_SEARCH_ENTRIES, new String[]{match});
+        while (cursor.moveToNext()) {
+            final double score = getSearchScore(cursor.getBlob(5));
+            // Only create the Contact object if it is among the best results
+            if (best.size() < limit || score > best.peek().score) {
+                final Contact contact = new Contact(
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        cursor.getString(3));
+                contact.set_ID(cursor.getLong(0));
+                contact.setVersion(cursor.getLong(4));
+                best.add(new ScoredContact(contact, score));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        cursor.close();
+
+        // Extract the results from the worst to the best one, and reverse them
+        while (!best.isEmpty()) {
+            result.add(best.poll().contact);
+        }
+        Collections.reverse(result);
+        metrics.record(ContactMetrics.Operation.SEARCH, start, result.size());
+        return result;
+    }
+
+    // Generate the full-text search expression for the given query: every word must
+    // appear as a prefix of any word in the name, email, or phone. Returns null if there are no words
+    private static String getSearchMatch(String query) {
+        if (query == null) {
+            return null;
+        }
+        final StringBuilder builder = new StringBuilder();
+        final Matcher matcher = SEARCH_TERM.matcher(query);
+        while (matcher.find()) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(matcher.group()).append('*');
+        }
+        return builder.length() > 0 ? builder.toString() : null;
+    }
+
+    // Compute the relevance of a row from the result of matchinfo(..., 'pcx'):
+    // number of terms (p), number of columns (c), and then for each term and column
+    // the hits in this row, the hits in all rows, and the rows with hits.
+    // Terms that are rare in the whole table contribute more to the score
+    private static double getSearchScore(byte[] matchInfo) {
+        final ByteBuffer buffer = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+        final int terms = buffer.getInt(0);
+        final int columns = buffer.getInt(4);
+        double score = 0;
+        for (int term = 0; term < terms; term++) {
+            for (int column = 0; column < columns; column++) {
+                final int offset = 8 + 12 * (term * columns + column);
+                final int hitsThisRow = buffer.getInt(offset);
+                final int hitsAllRows = buffer.getInt(offset + 4);
+                if (hitsThisRow > 0) {
+                    score += SEARCH_COLUMN_WEIGHTS[column] * hitsThisRow / hitsAllRows;
+                }
+            }
+        }
+        return score;
+    }
+
+    // Contact found by a search, together with its relevance
+    private static class ScoredContact implements Comparable<ScoredContact> {
+        final Contact contact;
+        final double score;
+
+        ScoredContact(Contact contact, double score) {
+            this.contact = contact;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(ScoredContact other) {
+            return Double.compare(score, other.score);
+        }
+    }
+
+    // Open a cursor to stream all the contacts stored in the database, in alphabetical order,
+    // without creating objects for each row. It must be closed once it is no longer required
+    public ContactCursor openContactCursor() {
+        return new ContactCursor(queryContactsCursor(null, null, SORT_ORDER, null));
+    }
+
+    // Go through all the contacts stored in the database, in alphabetical order,
+    // until the visitor asks to stop. The row handed to the visitor is reused for every contact
+    public void forEachContact(ContactCursor.Visitor visitor) {
+        try (ContactCursor cursor = openContactCursor()) {
+            cursor.forEach(visitor);
+        }
+    }
+
+    // Get the number of contacts stored in the database, without reading them
+    public long getContactCount() {
+        return DatabaseUtils.queryNumEntries(getDatabase(), ContactContract.ContactEntry.TABLE_NAME, SQL_NOT_DELETED);
+    }
+
+    // Read the contacts matching the query (see ContactQuery). Its values are bound as arguments,
+    // so every query with the same conditions reuses the statement compiled for the first one
+    public List<Contact> findContacts(ContactQuery query) {
+        final long start = System.nanoTime();
+        final Projection projection = query.getProjection();
+        final String sql = query.getSql(projection == Projection.FULL ? FULL_COLUMNS : SUMMARY_COLUMNS);
+        if (recentQueries.get(sql) == null) {
+            recentQueries.put(sql, true);
+        }
+        final List<Contact> result = readContacts(getDatabase().rawQuery(sql, query.getArgs()), projection);
+        metrics.record(ContactMetrics.Operation.QUERY, start, result.size());
+        return result;
+    }
+
+    // Query the table to get the ID, name, email, phone, and version of the entries matching the
+    // given selection, and generate the list of Contact objects
+    private List<Contact> queryContacts(String selection, String[] selectionArgs, String orderBy, String limit) {
+        return queryContacts(Projection.SUMMARY, selection, selectionArgs, orderBy, limit);
+    }
+
+    // Query the table to get the columns of the given projection of the entries matching the
+    // given selection, and generate the list of Contact objects
+    private List<Contact> queryContacts(
+            Projection projection, String selection, String[] selectionArgs, String orderBy, String limit) {
+        return readContacts(queryContactsCursor(projection, selection, selectionArgs, orderBy, limit), projection);
+    }
+
+    // Generate the list of Contact objects from the columns of the given projection
+    // (in the order of SUMMARY_COLUMNS or FULL_COLUMNS), and close the cursor
+    private static List<Contact> readContacts(Cursor cursor, Projection projection) {
+        final List<Contact> result = new ArrayList<>();
+        Contact contact;
+
         // Go through the resulting cursor
         while (cursor.moveToNext()) {
             // Create Contact object for the given entry in the database
@@ -102,59 +1588,680 @@ public class CustomSqliteOpenHelper extends SQLiteOpenHelper {
                     cursor.getString(2),
                     cursor.getString(3));
             contact.set_ID(cursor.getLong(0));
+            contact.setVersion(cursor.getLong(4));
+            if (projection == Projection.FULL) {
+                contact.setNotes(cursor.getString(5));
+            }
             // Add the object to the result list
             result.add(contact);
         }
-        // Close the cursor and database
+        // Close the cursor (the database is kept open)
         cursor.close();
-        database.close();
         return result;
     }
 
+    // Query the table to get the ID, name, email, phone, and version (in this order) of the entries
+    // matching the given selection. Deleted contacts are always excluded
+    private Cursor queryContactsCursor(String selection, String[] selectionArgs, String orderBy, String limit) {
+        return queryContactsCursor(Projection.SUMMARY, selection, selectionArgs, orderBy, limit);
+    }
+
+    // Query the table to get the columns of the given projection (in the order of SUMMARY_COLUMNS
+    // or FULL_COLUMNS) of the entries matching the given selection. Deleted contacts are always excluded
+    private Cursor queryContactsCursor(
+            Projection projection, String selection, String[] selectionArgs, String orderBy, String limit) {
+        return getDatabase().rawQuery(getContactsQuery(projection, selection, orderBy, limit), selectionArgs);
+    }
+
+    // Generate the SQL sentence querying the columns of the given projection (in the order of SUMMARY_COLUMNS
+    // or FULL_COLUMNS) of the entries matching the given selection. Deleted contacts are always excluded
+    static String getContactsQuery(Projection projection, String selection, String orderBy, String limit) {
+        return SQLiteQueryBuilder.buildQueryString(
+                false,
+                ContactContract.ContactEntry.TABLE_NAME,
+                projection == Projection.FULL ? FULL_COLUMNS : SUMMARY_COLUMNS,
+                selection == null ? SQL_NOT_DELETED : SQL_NOT_DELETED + " AND (" + selection + ")",
+                null,
+                null,
+                orderBy,
+                limit);
+    }
+
     // Insert a new contact into the database.
     // Returns the ID of the inserted Contact.
-    public long addContact(Contact contact) {
-        // Get access to the database in write mode
-        final SQLiteDatabase database = getWritableDatabase();
+    public synchronized long addContact(Contact contact) {
+        final long start = System.nanoTime();
+        // Make sure the database is open and the statements compiled
+        getDatabase();
         // Insert the new contact into the table (autoincremental id)
-        final ContentValues values = new ContentValues();
-        values.put(ContactContract.ContactEntry.COLUMN_NAME_NAME, contact.getName());
-        values.put(ContactContract.ContactEntry.COLUMN_NAME_EMAIL, contact.getEmail());
-        values.put(ContactContract.ContactEntry.COLUMN_NAME_PHONE, contact.getPhone());
-        final long id = database
-                .insert(ContactContract.ContactEntry.TABLE_NAME, null, values);
-        // Close the database
-        database.close();
+        bindContact(insertStatement, contact);
+        bindNullable(insertStatement, INSERT_NOTES_INDEX, contact.getNotes());
+        final long id = insertStatement.executeInsert();
+        insertStatement.clearBindings();
+        scheduleIdleCheckpoint();
+        metrics.record(ContactMetrics.Operation.ADD, start, id == -1 ? 0 : 1);
+        if (id != -1) {
+            // New contacts start at version 1 (default value of the column)
+            contact.setVersion(1);
+            if (contact.getNotes() == null) {
+                contact.setNotes("");
+            }
+            notifyContactChanged(ChangeType.INSERT, id, contact);
+        }
         // Return the ID for the newly added Contact
         return id;
     }
 
-    // Update the data of a given contact from the database
-    public void updateContact(Contact contact) {
-        // Get access to the database in write mode
-        final SQLiteDatabase database = getWritableDatabase();
-        // Update the data from the contact identified by the given name
-        final ContentValues values = new ContentValues();
-        values.put(ContactContract.ContactEntry.COLUMN_NAME_NAME, contact.getName());
-        values.put(ContactContract.ContactEntry.COLUMN_NAME_EMAIL, contact.getEmail());
-        values.put(ContactContract.ContactEntry.COLUMN_NAME_PHONE, contact.getPhone());
-        database.update(ContactContract.ContactEntry.TABLE_NAME,
-                values,
-                ContactContract.ContactEntry.COLUMN_NAME_ID + "=?",
-                new String[]{String.valueOf(contact.get_ID())});
-        // Close the database
-        database.close();
+    // Update the data of a given contact from the database, provided that it has not been
+    // changed since it was read (its version is the stored one, or 0 to overwrite it anyway).
+    // Once updated, the contact holds its new version
+    public synchronized UpdateResult updateContact(Contact contact) {
+        final long start = System.nanoTime();
+        // Make sure the database is open and the statements compiled
+        getDatabase();
+        // Update the data from the contact identified by the given ID
+        bindContact(updateStatement, contact);
+        updateStatement.bindLong(UPDATE_ID_INDEX, contact.get_ID());
+        updateStatement.bindLong(UPDATE_VERSION_INDEX, contact.getVersion());
+        bindNullable(updateStatement, UPDATE_NOTES_INDEX, contact.getNotes());
+        final int rows = updateStatement.executeUpdateDelete();
+        updateStatement.clearBindings();
+        scheduleIdleCheckpoint();
+        metrics.record(ContactMetrics.Operation.UPDATE, start, rows);
+        if (rows > 0) {
+            contact.setVersion(getNextVersion(contact));
+            notifyContactChanged(ChangeType.UPDATE, contact.get_ID(), contact);
+            return UpdateResult.UPDATED;
+        }
+        // Only an update with a known version can fail because of someone else
+        if (contact.getVersion() != 0 && readVersion(contact.get_ID()) != 0) {
+            updateConflicts.incrementAndGet();
+            return UpdateResult.CONFLICT;
+        }
+        return UpdateResult.NOT_FOUND;
+    }
+
+    // Update the data of a given contact from the database, solving the conflicts found with
+    // the given resolver. Each time the contact has been changed since it was read, the resolver
+    // gets the current one to merge both, and the update is retried with the result.
+    // The helper is not locked while resolving, so other writers can go on meanwhile.
+    // Once updated, the contact holds the data written and its new version
+    public UpdateResult updateContact(Contact contact, ConflictResolver resolver) {
+        UpdateResult result = updateContact(contact);
+        for (int retry = 0; result == UpdateResult.CONFLICT && resolver != null && retry < MAX_UPDATE_RETRIES; retry++) {
+            // Read from the database, as the cache could lag behind changes made by others
+            final List<Contact> current = queryContacts(
+                    Projection.FULL,
+                    ContactContract.ContactEntry.COLUMN_NAME_ID + " = ?",
+                    new String[]{String.valueOf(contact.get_ID())},
+                    null,
+                    null);
+            if (current.isEmpty()) {
+                return UpdateResult.NOT_FOUND;
+            }
+            final Contact merged = resolver.resolve(new Contact(current.get(0)), new Contact(contact));
+            if (merged == null) {
+                return UpdateResult.CONFLICT;
+            }
+            contact.setName(merged.getName());
+            contact.setEmail(merged.getEmail());
+            contact.setPhone(merged.getPhone());
+            contact.setNotes(merged.getNotes());
+            contact.setVersion(current.get(0).getVersion());
+            result = updateContact(contact);
+        }
+        return result;
+    }
+
+    // Get a resolver that keeps the changes made by both writers: each field of the contact
+    // that was changed with respect to the given one (the contact as it was read before changing it)
+    // is written, while the rest keep their current value
+    public static ConflictResolver mergeChanges(Contact base) {
+        final Contact original = new Contact(base);
+        return (current, attempted) -> {
+            if (!attempted.getName().equals(original.getName())) {
+                current.setName(attempted.getName());
+            }
+            if (!attempted.getEmail().equals(original.getEmail())) {
+                current.setEmail(attempted.getEmail());
+            }
+            if (!attempted.getPhone().equals(original.getPhone())) {
+                current.setPhone(attempted.getPhone());
+            }
+            // Notes that were not loaded were not changed
+            if (attempted.getNotes() != null && !attempted.getNotes().equals(original.getNotes())) {
+                current.setNotes(attempted.getNotes());
+            }
+            return current;
+        };
+    }
+
+    // Get the number of updates not applied because the contact had been changed since it was read
+    public long getUpdateConflictCount() {
+        return updateConflicts.get();
+    }
+
+    // Get the version of a contact just updated (with the helper still locked):
+    // the next one if it was known, or the stored one otherwise
+    private long getNextVersion(Contact contact) {
+        return contact.getVersion() != 0 ? contact.getVersion() + 1 : readVersion(contact.get_ID());
+    }
+
+    // Get the version of the contact with the given ID, or 0 if it does not exist
+    private long readVersion(long id) {
+        final Cursor cursor = getDatabase().query(
+                ContactContract.ContactEntry.TABLE_NAME,
+                new String[]{ContactContract.ContactEntry.COLUMN_NAME_VERSION},
+                ContactContract.ContactEntry.COLUMN_NAME_ID + " = ? AND " + SQL_NOT_DELETED,
+                new String[]{String.valueOf(id)},
+                null, null, null);
+        final long version = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        cursor.close();
+        return version;
     }
 
     // Delete a given contact from the database
-    public void deleteContact(Contact contact) {
-        // Get access to the database in write mode
-        final SQLiteDatabase database = getWritableDatabase();
+    public synchronized void deleteContact(Contact contact) {
+        final long start = System.nanoTime();
+        // Make sure the database is open and the statements compiled
+        getDatabase();
         // Remove contacts from the database with matching ID
-        database.delete(ContactContract.ContactEntry.TABLE_NAME,
-                ContactContract.ContactEntry.COLUMN_NAME_ID + "=?",
-                new String[]{String.valueOf(contact.get_ID())});
-        // Close the database
-        database.close();
+        deleteStatement.bindLong(1, contact.get_ID());
+        final int rows = deleteStatement.executeUpdateDelete();
+        deleteStatement.clearBindings();
+        scheduleIdleCheckpoint();
+        scheduleCompaction();
+        metrics.record(ContactMetrics.Operation.DELETE, start, rows);
+        if (rows > 0) {
+            notifyContactChanged(ChangeType.DELETE, contact.get_ID(), null);
+        }
+    }
+
+    // Set the photo of the contact with the given ID (null to remove it), which is a change of the contact.
+    // The full photo is stored as a JPEG file referenced by the contact, and its thumbnail in a table
+    // of its own, so lists of contacts do not read any image. Images are encoded before locking the helper.
+    // Returns false if the contact does not exist
+    public boolean setContactPhoto(long id, Bitmap photo) throws IOException {
+        File file = null;
+        byte[] thumbnail = null;
+        if (photo != null) {
+            // A new file for each photo, so it does not replace one that is being read
+            file = new File(photoDirectory, id + "_" + UUID.randomUUID() + ".jpg");
+            ContactPhotos.writePhoto(photo, file);
+            thumbnail = ContactPhotos.createThumbnail(photo);
+        }
+
+        final String previous;
+        final List<Contact> updated;
+        synchronized (this) {
+            final SQLiteDatabase database = getDatabase();
+            database.beginTransaction();
+            try {
+                previous = readPhoto(id);
+                final SQLiteStatement statement = database.compileStatement(SQL_SET_PHOTO);
+                bindNullable(statement, 1, file == null ? null : file.getName());
+                statement.bindLong(2, id);
+                final int rows = statement.executeUpdateDelete();
+                statement.close();
+                if (rows > 0) {
+                    if (thumbnail != null) {
+                        database.execSQL(SQL_SET_THUMBNAIL, new Object[]{id, thumbnail});
+                    } else {
+                        database.execSQL(SQL_DELETE_THUMBNAIL, new Object[]{id});
+                    }
+                    database.setTransactionSuccessful();
+                }
+            } finally {
+                database.endTransaction();
+            }
+            updated = queryContacts(
+                    Projection.FULL,
+                    SQL_BY_ID,
+                    new String[]{String.valueOf(id)},
+                    null,
+                    null);
+            scheduleIdleCheckpoint();
+            if (!updated.isEmpty()) {
+                notifyContactChanged(ChangeType.UPDATE, id, updated.get(0));
+            }
+        }
+        // Remove the file that is no longer referenced
+        if (updated.isEmpty()) {
+            if (file != null) {
+                file.delete();
+            }
+            return false;
+        }
+        if (previous != null) {
+            new File(photoDirectory, previous).delete();
+        }
+        return true;
+    }
+
+    // Get the file with the full photo of the contact with the given ID, or null if it has none
+    public File getContactPhoto(long id) {
+        final String photo = readPhoto(id);
+        return photo == null ? null : new File(photoDirectory, photo);
+    }
+
+    // Get the directory where the photos of the contacts are stored
+    File getPhotoDirectory() {
+        return photoDirectory;
+    }
+
+    // Get the thumbnail (JPEG) of the photo of the contact with the given ID, or null if it has none
+    public byte[] getThumbnail(long id) {
+        final Cursor cursor = getDatabase().query(
+                ContactContract.ThumbnailEntry.TABLE_NAME,
+                new String[]{ContactContract.ThumbnailEntry.COLUMN_NAME_DATA},
+                ContactContract.ThumbnailEntry.COLUMN_NAME_CONTACT_ID + " = ?",
+                new String[]{String.valueOf(id)},
+                null, null, null);
+        final byte[] thumbnail = cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        cursor.close();
+        return thumbnail;
+    }
+
+    // Get the name of the photo file of the contact with the given ID, or null if it has none
+    private String readPhoto(long id) {
+        final Cursor cursor = getDatabase().query(
+                ContactContract.ContactEntry.TABLE_NAME,
+                new String[]{ContactContract.ContactEntry.COLUMN_NAME_PHOTO},
+                ContactContract.ContactEntry.COLUMN_NAME_ID + " = ? AND " + SQL_NOT_DELETED,
+                new String[]{String.valueOf(id)},
+                null, null, null);
+        final String photo = cursor.moveToFirst() ? cursor.getString(0) : null;
+        cursor.close();
+        return photo;
+    }
+
+    // Set the object to be notified of the number of rows written by each batch (null to stop)
+    public synchronized void setOnBatchWrittenListener(OnBatchWrittenListener listener) {
+        this.batchListener = listener;
+    }
+
+    // Notify the number of rows written by the last batch and the time it took
+    private void notifyBatchWritten(int rows, long startNanos) {
+        if (batchListener != null && rows > 0) {
+            batchListener.onBatchWritten(rows, System.nanoTime() - startNanos);
+        }
+    }
+
+    // Add an object to be notified of the changes made to contacts
+    public void addOnContactChangedListener(OnContactChangedListener listener) {
+        changeListeners.add(listener);
+    }
+
+    // Remove an object previously added to be notified of the changes made to contacts
+    public void removeOnContactChangedListener(OnContactChangedListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    // Notify a change made to a contact to the cache and all the listeners.
+    // Within runInTransaction() it is delayed until the transaction is committed
+    private void notifyContactChanged(ChangeType type, long id, Contact contact) {
+        if (transactionChanges != null) {
+            transactionChanges.add(new ContactChange(type, id, contact));
+            return;
+        }
+        updateCache(type, id, contact);
+        for (OnContactChangedListener listener : changeListeners) {
+            listener.onContactChanged(type, id, contact);
+        }
+    }
+
+    // Notify the changes committed together to the cache and all the listeners, at once
+    private void notifyContactsChanged(List<ContactChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        if (transactionChanges != null) {
+            transactionChanges.addAll(changes);
+            return;
+        }
+        for (ContactChange change : changes) {
+            updateCache(change.type, change.id, change.contact);
+        }
+        for (OnContactChangedListener listener : changeListeners) {
+            listener.onContactsChanged(changes);
+        }
+    }
+
+    // Execute the given operations on the contacts within a single transaction, which is rolled
+    // back if they throw an exception. Other writers wait until it is finished, and the changes
+    // made are notified once it is committed. Returns the result of the operations
+    synchronized <T> T runInTransaction(Callable<T> operations) throws Exception {
+        final SQLiteDatabase database = getDatabase();
+        final boolean outermost = transactionChanges == null;
+        if (outermost) {
+            transactionChanges = new ArrayList<>();
+        }
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            final T result = operations.call();
+            database.setTransactionSuccessful();
+            successful = true;
+            return result;
+        } finally {
+            database.endTransaction();
+            if (outermost) {
+                final List<ContactChange> changes = transactionChanges;
+                transactionChanges = null;
+                if (successful) {
+                    // All of them at once, as they were committed together
+                    notifyContactsChanged(changes);
+                } else {
+                    // Contacts read within the transaction may have been cached
+                    synchronized (contactCache) {
+                        cacheChanges++;
+                        contactCache.evictAll();
+                    }
+                }
+            }
+        }
+    }
+
+    // Query the contacts (not deleted) for ContactProvider. The projection, selection, order,
+    // and limit are given to SQLite. The projection can only include the public columns of ContactContract,
+    // and the selection and order only those columns, literals, arguments, and the words of QUERY_KEYWORDS,
+    // so they cannot read other columns or tables (through subqueries or functions).
+    // Contacts are listed in alphabetical order by default
+    Cursor query(String[] projection, String selection, String[] selectionArgs, String sortOrder, String limit) {
+        checkQueryColumns(selection);
+        checkQueryColumns(sortOrder);
+        final SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(ContactContract.ContactEntry.TABLE_NAME);
+        builder.setProjectionMap(PUBLIC_COLUMNS);
+        // Rejects columns in the projection that are not in the map
+        builder.setStrict(true);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // Also rejects anything but columns and expressions in the selection and order
+            builder.setStrictGrammar(true);
+        }
+        builder.appendWhere(SQL_NOT_DELETED);
+        return builder.query(
+                getDatabase(),
+                projection == null ? PUBLIC_PROJECTION : projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder == null ? SORT_ORDER : sortOrder,
+                limit);
+    }
+
+    // Throw an exception if the selection or order for query() includes any identifier
+    // other than the public columns and QUERY_KEYWORDS. Literals are not checked
+    private static void checkQueryColumns(String clause) {
+        if (clause == null) {
+            return;
+        }
+        final Matcher matcher = QUERY_TOKEN.matcher(clause);
+        while (matcher.find()) {
+            String identifier = null;
+            for (int group = 1; group <= 4 && identifier == null; group++) {
+                identifier = matcher.group(group);
+            }
+            if (identifier != null && !PUBLIC_COLUMNS.containsKey(identifier) &&
+                    !QUERY_KEYWORDS.contains(identifier.toLowerCase(Locale.ROOT))) {
+                throw new IllegalArgumentException("Unknown column: " + identifier);
+            }
+        }
+    }
+
+    // Insert a collection of contacts into the database, committing them in batches of BATCH_SIZE,
+    // so other writers wait at most for a batch. If a batch fails, the previous ones stay committed
+    // (within runInTransaction() all of them are committed, or rolled back, together).
+    // Returns the IDs of the inserted Contacts, in the same order of the collection.
+    public long[] addContacts(Collection<Contact> contacts) {
+        final long[] ids = new long[contacts.size()];
+        final Contact[] batch = new Contact[Math.min(BATCH_SIZE, ids.length)];
+        final Iterator<Contact> iterator = contacts.iterator();
+        int inserted = 0;
+        final long operationStart = System.nanoTime();
+        for (int from = 0; from < ids.length; from += BATCH_SIZE) {
+            final int count = Math.min(BATCH_SIZE, ids.length - from);
+            for (int i = 0; i < count; i++) {
+                batch[i] = iterator.next();
+            }
+            inserted += addBatch(batch, count, ids, from);
+        }
+        scheduleIdleCheckpoint();
+        metrics.record(ContactMetrics.Operation.ADD_BATCH, operationStart, inserted);
+        return ids;
+    }
+
+    // Insert the first count contacts of the batch within a transaction of their own,
+    // storing their IDs into ids from the given position.
+    // Changes are notified once the transaction is committed. Returns the number of contacts inserted
+    private synchronized int addBatch(Contact[] batch, int count, long[] ids, int from) {
+        final SQLiteDatabase database = getDatabase();
+        final long start = System.nanoTime();
+        int inserted = 0;
+
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                // Rebind the compiled statement instead of creating ContentValues for each row
+                bindContact(insertStatement, batch[i]);
+                bindNullable(insertStatement, INSERT_NOTES_INDEX, batch[i].getNotes());
+                ids[from + i] = insertStatement.executeInsert();
+                if (ids[from + i] != -1) {
+                    inserted++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            insertStatement.clearBindings();
+        }
+        notifyBatchWritten(inserted, start);
+        final List<ContactChange> changes = new ArrayList<>(inserted);
+        for (int i = 0; i < count; i++) {
+            if (ids[from + i] != -1) {
+                batch[i].setVersion(1);
+                if (batch[i].getNotes() == null) {
+                    batch[i].setNotes("");
+                }
+                changes.add(new ContactChange(ChangeType.INSERT, ids[from + i], batch[i]));
+            }
+            batch[i] = null;
+        }
+        notifyContactsChanged(changes);
+        return inserted;
+    }
+
+    // Update the data of a collection of contacts, committing them in batches of BATCH_SIZE
+    // (see addContacts()). Contacts changed since they were read (see updateContact()) are skipped,
+    // while the rest hold their new version once updated. Returns the number of rows updated.
+    public int updateContacts(Collection<Contact> contacts) {
+        final Contact[] batch = new Contact[Math.min(BATCH_SIZE, contacts.size())];
+        final Iterator<Contact> iterator = contacts.iterator();
+        int updated = 0;
+        final long operationStart = System.nanoTime();
+        while (iterator.hasNext()) {
+            int count = 0;
+            while (count < batch.length && iterator.hasNext()) {
+                batch[count++] = iterator.next();
+            }
+            updated += updateBatch(batch, count);
+        }
+        scheduleIdleCheckpoint();
+        metrics.record(ContactMetrics.Operation.UPDATE_BATCH, operationStart, updated);
+        return updated;
+    }
+
+    // Update the first count contacts of the batch within a transaction of their own.
+    // Changes are notified once the transaction is committed. Returns the number of rows updated
+    private synchronized int updateBatch(Contact[] batch, int count) {
+        final SQLiteDatabase database = getDatabase();
+        final long start = System.nanoTime();
+        final List<ContactChange> changes = new ArrayList<>(count);
+
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                final Contact contact = batch[i];
+                bindContact(updateStatement, contact);
+                updateStatement.bindLong(UPDATE_ID_INDEX, contact.get_ID());
+                updateStatement.bindLong(UPDATE_VERSION_INDEX, contact.getVersion());
+                bindNullable(updateStatement, UPDATE_NOTES_INDEX, contact.getNotes());
+                // Contacts not updated are not notified
+                if (updateStatement.executeUpdateDelete() > 0) {
+                    contact.setVersion(getNextVersion(contact));
+                    changes.add(new ContactChange(ChangeType.UPDATE, contact.get_ID(), contact));
+                } else if (contact.getVersion() != 0 && readVersion(contact.get_ID()) != 0) {
+                    updateConflicts.incrementAndGet();
+                }
+                batch[i] = null;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            updateStatement.clearBindings();
+        }
+        notifyBatchWritten(changes.size(), start);
+        notifyContactsChanged(changes);
+        return changes.size();
+    }
+
+    // Delete the contacts with the given IDs, committing them in batches of BATCH_SIZE (see addContacts()).
+    // The IDs of each batch are bound to a single UPDATE ... IN (...) statement.
+    // Returns the number of rows deleted.
+    public int deleteContacts(long[] ids) {
+        final String[] args = new String[Math.min(BATCH_SIZE, ids.length)];
+        int rows = 0;
+        final long operationStart = System.nanoTime();
+        for (int from = 0; from < ids.length; from += BATCH_SIZE) {
+            rows += deleteBatch(ids, from, Math.min(BATCH_SIZE, ids.length - from), args);
+        }
+        scheduleIdleCheckpoint();
+        scheduleCompaction();
+        metrics.record(ContactMetrics.Operation.DELETE_BATCH, operationStart, rows);
+        return rows;
+    }
+
+    // Delete count contacts, from the given position of ids, within a transaction of their own.
+    // The contacts actually deleted (those that existed and were not deleted yet) are read first,
+    // so only they are notified once the transaction is committed. They are marked as deleted,
+    // like deleteContact() does. Returns the number of rows deleted
+    private synchronized int deleteBatch(long[] ids, int from, int count, String[] args) {
+        final SQLiteDatabase database = getDatabase();
+        final long start = System.nanoTime();
+        final String condition = getIdsInCondition(count);
+        final List<ContactChange> changes = new ArrayList<>(count);
+
+        database.beginTransaction();
+        try {
+            final String[] batchArgs = count == args.length ? args : new String[count];
+            for (int i = 0; i < count; i++) {
+                batchArgs[i] = String.valueOf(ids[from + i]);
+            }
+            final Cursor cursor = database.query(
+                    ContactContract.ContactEntry.TABLE_NAME,
+                    new String[]{ContactContract.ContactEntry.COLUMN_NAME_ID},
+                    condition,
+                    batchArgs,
+                    null, null, null);
+            while (cursor.moveToNext()) {
+                changes.add(new ContactChange(ChangeType.DELETE, cursor.getLong(0), null));
+            }
+            cursor.close();
+            if (!changes.isEmpty()) {
+                // The connection keeps the statements it compiled, so those of full batches are reused
+                final SQLiteStatement statement = database.compileStatement(
+                        "UPDATE " + ContactContract.ContactEntry.TABLE_NAME + " SET " +
+                                ContactContract.ContactEntry.COLUMN_NAME_DELETED + " = 1 WHERE " + condition);
+                try {
+                    statement.bindAllArgsAsStrings(batchArgs);
+                    statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        notifyBatchWritten(changes.size(), start);
+        notifyContactsChanged(changes);
+        return changes.size();
+    }
+
+    // Generate the SQL sentence (for the triggers) to remove the old values of a contact from the search table
+    private static String getSearchDeleteStatement() {
+        return "DELETE FROM " + ContactContract.ContactSearchEntry.TABLE_NAME + " WHERE " +
+                ContactContract.ContactSearchEntry.COLUMN_NAME_DOCID + " = old." +
+                ContactContract.ContactEntry.COLUMN_NAME_ID + ";";
+    }
+
+    // Generate the SQL sentence (for the triggers) to add the new values of a contact to the search table
+    private static String getSearchInsertStatement() {
+        return "INSERT INTO " + ContactContract.ContactSearchEntry.TABLE_NAME + " (" +
+                ContactContract.ContactSearchEntry.COLUMN_NAME_DOCID + ", " +
+                ContactContract.ContactEntry.COLUMN_NAME_NAME + ", " +
+                ContactContract.ContactEntry.COLUMN_NAME_EMAIL + ", " +
+                ContactContract.ContactEntry.COLUMN_NAME_PHONE + ") VALUES (new." +
+                ContactContract.ContactEntry.COLUMN_NAME_ID + ", new." +
+                ContactContract.ContactEntry.COLUMN_NAME_NAME + ", new." +
+                ContactContract.ContactEntry.COLUMN_NAME_EMAIL + ", new." +
+                ContactContract.ContactEntry.COLUMN_NAME_PHONE + ");";
+    }
+
+    // Generate the SQL sentence (for the triggers) to record a change of the contact in the journal,
+    // taking its ID from the given row (new or old)
+    private static String getJournalInsertStatement(String row) {
+        return "INSERT INTO " + ContactContract.JournalEntry.TABLE_NAME + " (" +
+                ContactContract.JournalEntry.COLUMN_NAME_CONTACT_ID + ") VALUES (" + row + "." +
+                ContactContract.ContactEntry.COLUMN_NAME_ID + ");";
+    }
+
+    // Generate the list of columns indexed by the search table (for the triggers)
+    private static String getSearchColumns() {
+        return ContactContract.ContactEntry.COLUMN_NAME_NAME + ", " +
+                ContactContract.ContactEntry.COLUMN_NAME_EMAIL + ", " +
+                ContactContract.ContactEntry.COLUMN_NAME_PHONE;
+    }
+
+    // Bind the data of a contact, its normalized keys, its sort key, and its section
+    // to the first seven arguments of the insert or update statements
+    private static void bindContact(SQLiteStatement statement, Contact contact) {
+        statement.bindString(1, contact.getName());
+        statement.bindString(2, contact.getEmail());
+        statement.bindString(3, contact.getPhone());
+        bindNullable(statement, 4, ContactKeys.normalizeEmail(contact.getEmail()));
+        bindNullable(statement, 5, ContactKeys.normalizePhone(contact.getPhone()));
+        statement.bindString(6, ContactCollation.getSortKey(contact.getName()));
+        statement.bindString(7, ContactCollation.getSection(contact.getName()));
+    }
+
+    // Bind a String that may be null to an argument of a statement
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    // Generate the SQL sentence to find the groups of contacts sharing the value of the given key column
+    private static String getFindDuplicatesStatement(String column) {
+        return "SELECT group_concat(" + ContactContract.ContactEntry.COLUMN_NAME_ID + ") FROM " +
+                ContactContract.ContactEntry.TABLE_NAME + " WHERE " + column + " IS NOT NULL AND " +
+                SQL_NOT_DELETED + " GROUP BY " +
+                column + " HAVING COUNT(*) > 1";
+    }
+
+    // Generate the selection of the given number of contacts (not deleted) by their IDs
+    private static String getIdsInCondition(int count) {
+        final StringBuilder builder = new StringBuilder(SQL_NOT_DELETED)
+                .append(" AND ")
+                .append(ContactContract.ContactEntry.COLUMN_NAME_ID)
+                .append(" IN (?");
+        for (int i = 1; i < count; i++) {
+            builder.append(", ?");
+        }
+        return builder.append(")").toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.io;
+
+import android.content.Context;
+import android.database.CharArrayBuffer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import labs.dadm.l0405_databases.database.ContactCursor;
+import labs.dadm.l0405_databases.database.CustomSqliteOpenHelper;
+
+// Exports the contacts stored in the database to CSV or vCard files.
+// Rows are streamed from a cursor, formatted into a reusable buffer, and encoded into
+// a direct byte buffer that is written to the file channel each time it fills up,
+// so memory does not depend on the number of contacts.
+// It must be called from a background thread.
+public class ContactExporter {
+
+    // Size of the buffer written to the file at once
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Number of rows between two progress reports
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    // Hold reference to the database
+    private final CustomSqliteOpenHelper helper;
+
+    public ContactExporter(Context context) {
+        this(CustomSqliteOpenHelper.getInstance(context.getApplicationContext()));
+    }
+
+    // Export the contacts of the given database
+    public ContactExporter(CustomSqliteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    // Export all the contacts to the given file, reporting the progress periodically (listener may be null).
+    // Returns the number of contacts exported
+    public long exportContacts(File file, ContactFormat format, ProgressListener listener) throws IOException {
+        final long start = System.nanoTime();
+        long rows = 0;
+        try (FileOutputStream out = new FileOutputStream(file);
+             ContactCursor cursor = helper.openContactCursor()) {
+            final ChannelWriter writer = new ChannelWriter(out.getChannel());
+            final StringBuilder record = new StringBuilder();
+
+            if (format == ContactFormat.CSV) {
+                for (int i = 0; i < CsvContactParser.HEADER.length; i++) {
+                    if (i > 0) {
+                        record.append(',');
+                    }
+                    record.append(CsvContactParser.HEADER[i]);
+                }
+                writer.write(record.append("\r\n"));
+            }
+
+            while (cursor.moveToNext()) {
+                final ContactCursor.Row row = cursor.getRow();
+                record.setLength(0);
+                if (format == ContactFormat.CSV) {
+                    CsvContactParser.appendField(record, wrap(row.getName()));
+                    record.append(',');
+                    CsvContactParser.appendField(record, wrap(row.getEmail()));
+                    record.append(',');
+                    CsvContactParser.appendField(record, wrap(row.getPhone()));
+                    record.append("\r\n");
+                } else {
+                    record.append("BEGIN:VCARD\r\nVERSION:3.0\r\nFN:");
+                    VCardContactParser.appendValue(record, wrap(row.getName()));
+                    record.append("\r\nN:;");
+                    VCardContactParser.appendValue(record, wrap(row.getName()));
+                    record.append(";;;\r\nEMAIL:");
+                    VCardContactParser.appendValue(record, wrap(row.getEmail()));
+                    record.append("\r\nTEL:");
+                    VCardContactParser.appendValue(record, wrap(row.getPhone()));
+                    record.append("\r\nEND:VCARD\r\n");
+                }
+                writer.write(record);
+
+                if (++rows % PROGRESS_INTERVAL == 0 && listener != null) {
+                    listener.onProgress(rows, ContactImporter.getRate(rows, start));
+                }
+            }
+            writer.close();
+        }
+        if (listener != null) {
+            listener.onProgress(rows, ContactImporter.getRate(rows, start));
+        }
+        return rows;
+    }
+
+    // View the characters copied into a buffer as a CharSequence
+    private static CharSequence wrap(CharArrayBuffer buffer) {
+        return CharBuffer.wrap(buffer.data, 0, buffer.sizeCopied);
+    }
+
+    // Encodes text as UTF-8 into a direct buffer, which is written to a channel each time it fills up
+    private static class ChannelWriter {
+        private final FileChannel channel;
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        ChannelWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(CharSequence text) throws IOException {
+            final CharBuffer chars = CharBuffer.wrap(text);
+            while (encoder.encode(chars, bytes, false) == CoderResult.OVERFLOW) {
+                drain();
+            }
+        }
+
+        // Encode any pending characters and write the remaining bytes
+        void close() throws IOException {
+            while (encoder.encode(CharBuffer.allocate(0), bytes, true) == CoderResult.OVERFLOW) {
+                drain();
+            }
+            while (encoder.flush(bytes) == CoderResult.OVERFLOW) {
+                drain();
+            }
+            drain();
+        }
+
+        private void drain() throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            bytes.clear();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.io;
+
+import java.io.Reader;
+
+// File formats supported to import and export contacts
+public enum ContactFormat {
+
+    // Comma-separated values with a header line: name,email,phone
+    CSV,
+    // vCard 3.0, using the FN, EMAIL, and TEL properties
+    VCARD;
+
+    // Create a parser reading contacts in this format
+    ContactParser createParser(Reader reader) {
+        return this == CSV ? new CsvContactParser(reader) : new VCardContactParser(reader);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.io;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import labs.dadm.l0405_databases.database.CustomSqliteOpenHelper;
+import labs.dadm.l0405_databases.pojo.Contact;
+
+// Imports contacts from CSV or vCard files into the database.
+// A parser thread reads the file into batches of contacts that are handed to the calling thread
+// through a bounded queue, and each batch is inserted within a single transaction.
+// As the queue is bounded, memory does not depend on the size of the file.
+// It must be called from a background thread.
+public class ContactImporter {
+
+    // Number of contacts inserted within each transaction
+    private static final int BATCH_SIZE = 500;
+    // Maximum number of parsed batches waiting to be inserted
+    private static final int QUEUE_CAPACITY = 4;
+    // Marks the end of the parsed batches
+    private static final List<Contact> END = new ArrayList<>();
+
+    // Hold reference to the database
+    private final CustomSqliteOpenHelper helper;
+
+    public ContactImporter(Context context) {
+        this(CustomSqliteOpenHelper.getInstance(context.getApplicationContext()));
+    }
+
+    // Import the contacts into the given database
+    public ContactImporter(CustomSqliteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    // Import all the contacts from the stream, reporting the progress after each batch (listener may be null).
+    // Batches inserted before an error is found remain in the database, and the error found while
+    // parsing (an IOException, or any unchecked exception or error) is thrown once they are inserted.
+    // Returns the number of contacts imported
+    public long importContacts(InputStream in, ContactFormat format, ProgressListener listener)
+            throws IOException, InterruptedException {
+        final BlockingQueue<List<Contact>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final Throwable[] error = new Throwable[1];
+
+        // Parse the stream on another thread, so parsing and inserting overlap
+        final Thread producer = new Thread(() -> {
+            try {
+                parse(in, format, queue);
+            } catch (InterruptedException e) {
+                // The import was stopped by the consumer, which no longer waits for the end
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                // Taking END from the queue makes it visible to the consumer
+                error[0] = e;
+            } finally {
+                if (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        // Blocks while the queue is full, so the consumer always gets the end
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, "ContactParserThread");
+        producer.start();
+
+        final long start = System.nanoTime();
+        long rows = 0;
+        try {
+            List<Contact> batch;
+            while ((batch = queue.take()) != END) {
+                // Contacts that could not be inserted get -1 as ID
+                for (long id : helper.addContacts(batch)) {
+                    if (id != -1) {
+                        rows++;
+                    }
+                }
+                if (listener != null) {
+                    listener.onProgress(rows, getRate(rows, start));
+                }
+            }
+        } finally {
+            // Stop parsing if inserting failed or this thread was interrupted
+            producer.interrupt();
+            producer.join();
+        }
+        if (error[0] instanceof IOException) {
+            throw (IOException) error[0];
+        } else if (error[0] instanceof RuntimeException) {
+            throw (RuntimeException) error[0];
+        } else if (error[0] instanceof Error) {
+            throw (Error) error[0];
+        } else if (error[0] != null) {
+            throw new IOException(error[0]);
+        }
+        return rows;
+    }
+
+    // Parse the contacts from the stream into batches, which are added to the queue.
+    // Blocks while the queue is full
+    private static void parse(InputStream in, ContactFormat format, BlockingQueue<List<Contact>> queue)
+            throws IOException, InterruptedException {
+        final ContactParser parser = format.createParser(new InputStreamReader(in, StandardCharsets.UTF_8));
+        List<Contact> batch = new ArrayList<>(BATCH_SIZE);
+        Contact contact;
+        while ((contact = parser.next()) != null) {
+            batch.add(contact);
+            if (batch.size() == BATCH_SIZE) {
+                queue.put(batch);
+                batch = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            queue.put(batch);
+        }
+    }
+
+    // Compute the number of rows processed per second since the given time
+    static double getRate(long rows, long startNanos) {
+        final long elapsed = System.nanoTime() - startNanos;
+        return elapsed > 0 ? rows * 1e9 / elapsed : 0;
+    }
+}
@@ -0,0 +1,16 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.io;
+
+import java.io.IOException;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+// Reads contacts one at a time from a stream, so files of any size can be parsed
+interface ContactParser {
+
+    // Get the next contact, or null once the end of the stream is reached
+    Contact next() throws IOException;
+}
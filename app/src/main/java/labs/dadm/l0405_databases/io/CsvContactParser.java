@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+// Parses contacts from comma-separated values (RFC 4180): fields may be enclosed in double quotes,
+// which lets them include commas, line breaks, and (doubled) double quotes.
+// Records have the fields name, email, and phone. A first record matching the header is skipped,
+// as well as records without name
+class CsvContactParser implements ContactParser {
+
+    // Fields of the header line
+    static final String[] HEADER = {"name", "email", "phone"};
+
+    private final Reader reader;
+    // Fields of the record being parsed, and characters of the field being parsed
+    private final List<String> fields = new ArrayList<>();
+    private final StringBuilder field = new StringBuilder();
+    // Whether the first record has already been read (to skip the header)
+    private boolean started = false;
+
+    CsvContactParser(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? reader : new BufferedReader(reader);
+    }
+
+    @Override
+    public Contact next() throws IOException {
+        while (readRecord()) {
+            if (!started) {
+                started = true;
+                if (isHeader()) {
+                    continue;
+                }
+            }
+            final String name = getField(0).trim();
+            if (!name.isEmpty()) {
+                return new Contact(name, getField(1).trim(), getField(2).trim());
+            }
+        }
+        return null;
+    }
+
+    // Whether the record read is the header line
+    private boolean isHeader() {
+        for (int i = 0; i < HEADER.length; i++) {
+            if (!HEADER[i].equalsIgnoreCase(getField(i).trim())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Get a field from the record read, or an empty String if it is missing
+    private String getField(int index) {
+        return index < fields.size() ? fields.get(index) : "";
+    }
+
+    // Read the fields of the next record.
+    // Returns false once the end of the stream is reached
+    private boolean readRecord() throws IOException {
+        fields.clear();
+        field.setLength(0);
+        boolean quoted = false;
+        boolean empty = true;
+        int c;
+        while ((c = reader.read()) != -1) {
+            empty = false;
+            if (quoted) {
+                if (c == '"') {
+                    // A doubled quote is a literal quote, otherwise the quoted section ends
+                    reader.mark(1);
+                    if (reader.read() == '"') {
+                        field.append('"');
+                    } else {
+                        reader.reset();
+                        quoted = false;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+        }
+        if (empty) {
+            return false;
+        }
+        fields.add(field.toString());
+        return true;
+    }
+
+    // Append the given value as a field, quoting it if required
+    static void appendField(StringBuilder builder, CharSequence value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            final char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            builder.append(value);
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"') {
+                builder.append('"');
+            }
+            builder.append(c);
+        }
+        builder.append('"');
+    }
+}
@@ -0,0 +1,12 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.io;
+
+// Interface to be notified of the progress of an import or export.
+// It is called on the thread performing the operation
+public interface ProgressListener {
+
+    void onProgress(long rows, double rowsPerSecond);
+}
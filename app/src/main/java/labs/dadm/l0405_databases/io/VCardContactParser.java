@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+// Parses contacts from vCard files (versions 2.1, 3.0, and 4.0), one card at a time.
+// The name is taken from FN (or N if missing), and the first EMAIL and TEL properties are used.
+// Folded lines (continued by a leading space or tab) are unfolded, and cards without name are skipped
+class VCardContactParser implements ContactParser {
+
+    private final BufferedReader reader;
+    // Logical line read ahead while unfolding the previous one
+    private String pending = null;
+
+    VCardContactParser(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    @Override
+    public Contact next() throws IOException {
+        String name = null;
+        String structuredName = null;
+        String email = null;
+        String phone = null;
+        boolean inCard = false;
+
+        String line;
+        while ((line = readLogicalLine()) != null) {
+            final int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            // Property name, without parameters (e.g. TEL;TYPE=cell) nor group (e.g. item1.EMAIL)
+            String property = line.substring(0, colon);
+            final int semicolon = property.indexOf(';');
+            if (semicolon >= 0) {
+                property = property.substring(0, semicolon);
+            }
+            final int dot = property.lastIndexOf('.');
+            if (dot >= 0) {
+                property = property.substring(dot + 1);
+            }
+            final String value = line.substring(colon + 1);
+
+            if (property.equalsIgnoreCase("BEGIN") && value.trim().equalsIgnoreCase("VCARD")) {
+                inCard = true;
+                name = structuredName = email = phone = null;
+            } else if (!inCard) {
+                continue;
+            } else if (property.equalsIgnoreCase("END") && value.trim().equalsIgnoreCase("VCARD")) {
+                inCard = false;
+                if (name == null || name.isEmpty()) {
+                    name = structuredName;
+                }
+                if (name != null && !name.isEmpty()) {
+                    return new Contact(name, email == null ? "" : email, phone == null ? "" : phone);
+                }
+            } else if (property.equalsIgnoreCase("FN")) {
+                name = unescape(value).trim();
+            } else if (property.equalsIgnoreCase("N") && structuredName == null) {
+                structuredName = getStructuredName(value);
+            } else if (property.equalsIgnoreCase("EMAIL") && email == null) {
+                email = unescape(value).trim();
+            } else if (property.equalsIgnoreCase("TEL") && phone == null) {
+                phone = unescape(value).trim();
+                if (phone.regionMatches(true, 0, "tel:", 0, 4)) {
+                    phone = phone.substring(4);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Generate "Given Family" from the structured name "Family;Given;Additional;Prefix;Suffix"
+    private static String getStructuredName(String value) {
+        final String[] parts = value.split(";", -1);
+        final String family = parts.length > 0 ? unescape(parts[0]).trim() : "";
+        final String given = parts.length > 1 ? unescape(parts[1]).trim() : "";
+        return (given + " " + family).trim();
+    }
+
+    // Read the next line, joining the folded lines that follow it
+    private String readLogicalLine() throws IOException {
+        String line = pending != null ? pending : reader.readLine();
+        pending = null;
+        if (line == null) {
+            return null;
+        }
+        String next;
+        while ((next = reader.readLine()) != null &&
+                !next.isEmpty() && (next.charAt(0) == ' ' || next.charAt(0) == '\t')) {
+            line = line + next.substring(1);
+        }
+        pending = next;
+        return line;
+    }
+
+    // Remove the escaping of commas, semicolons, backslashes, and line breaks
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        final StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                c = value.charAt(++i);
+                if (c == 'n' || c == 'N') {
+                    c = '\n';
+                }
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    // Append the given value to a property, escaping it as required
+    static void appendValue(StringBuilder builder, CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == ',' || c == ';' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else if (c != '\r') {
+                builder.append(c);
+            }
+        }
+    }
+}
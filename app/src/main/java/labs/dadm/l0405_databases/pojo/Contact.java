@@ -15,6 +15,12 @@ public class Contact {
     private String email;
     // Phone of the contact
     private String phone;
+    // Notes about the contact. They are only read when the contact is opened, not to list it,
+    // so they are null until loaded (updates then keep the stored ones)
+    private String notes;
+    // Version of the stored row this object was read from, increased by each update,
+    // or 0 if it is unknown (updates then overwrite the row whatever its version)
+    private long version;
 
     public Contact(String name, String email, String phone) {
         this.name = name;
@@ -22,6 +28,14 @@ public class Contact {
         this.phone = phone;
     }
 
+    // Create a copy of the given contact
+    public Contact(Contact contact) {
+        this(contact.name, contact.email, contact.phone);
+        this._ID = contact._ID;
+        this.notes = contact.notes;
+        this.version = contact.version;
+    }
+
     public String getName() {
         return name;
     }
@@ -46,6 +60,14 @@ public class Contact {
         this.phone = phone;
     }
 
+    public String getNotes() {
+        return notes;
+    }
+
+    public void setNotes(String notes) {
+        this.notes = notes;
+    }
+
     public long get_ID() {
         return _ID;
     }
@@ -53,4 +75,12 @@ public class Contact {
     public void set_ID(long _ID) {
         this._ID = _ID;
     }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
 }
\ No newline at end of file
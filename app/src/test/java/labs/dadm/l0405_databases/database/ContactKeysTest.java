@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+// Checks the normalization of phones and emails used to detect duplicated contacts
+public class ContactKeysTest {
+
+    @Test
+    public void phoneKeepsOnlyDigits() {
+        assertEquals("963877000", ContactKeys.normalizePhone("963 87 70 00"));
+        assertEquals("963877000", ContactKeys.normalizePhone("(963) 877-000"));
+    }
+
+    @Test
+    public void phoneKeepsCountryCode() {
+        assertEquals("+34963877000", ContactKeys.normalizePhone("+34 963 87 70 00"));
+        // The international prefix 00 is the same as +
+        assertEquals("+34963877000", ContactKeys.normalizePhone("0034 963877000"));
+    }
+
+    @Test
+    public void plusOnlyCountsBeforeDigits() {
+        assertEquals("34963877000", ContactKeys.normalizePhone("34+963877000"));
+    }
+
+    @Test
+    public void phoneWithoutDigitsHasNoKey() {
+        assertNull(ContactKeys.normalizePhone(null));
+        assertNull(ContactKeys.normalizePhone(""));
+        assertNull(ContactKeys.normalizePhone("+ -"));
+    }
+
+    @Test
+    public void shortNumbersStartingWithZerosAreKept() {
+        assertEquals("00", ContactKeys.normalizePhone("00"));
+    }
+
+    @Test
+    public void emailIsTrimmedAndLowercased() {
+        assertEquals("ana.garcia@example.com", ContactKeys.normalizeEmail("  Ana.Garcia@Example.COM "));
+    }
+
+    @Test
+    public void emptyEmailHasNoKey() {
+        assertNull(ContactKeys.normalizeEmail(null));
+        assertNull(ContactKeys.normalizeEmail(""));
+        assertNull(ContactKeys.normalizeEmail("   "));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Checks the histogram buckets into which ContactMetrics counts latencies
+public class ContactMetricsTest {
+
+    @Test
+    public void smallLatenciesHaveTheirOwnBucket() {
+        assertEquals(0, ContactMetrics.getBucket(0));
+        assertEquals(0, ContactMetrics.getBucket(999));
+        assertEquals(1, ContactMetrics.getBucket(1000));
+        assertEquals(3, ContactMetrics.getBucket(3999));
+        // Clock adjustments may give negative latencies
+        assertEquals(0, ContactMetrics.getBucket(-5000));
+    }
+
+    @Test
+    public void powersOfTwoAreSplitIntoFourBuckets() {
+        // 4 to 8 microseconds
+        assertEquals(4, ContactMetrics.getBucket(4000));
+        assertEquals(5, ContactMetrics.getBucket(5000));
+        assertEquals(6, ContactMetrics.getBucket(6000));
+        assertEquals(7, ContactMetrics.getBucket(7999));
+        // 8 to 16 microseconds
+        assertEquals(8, ContactMetrics.getBucket(8000));
+        assertEquals(11, ContactMetrics.getBucket(15999));
+    }
+
+    @Test
+    public void eachBucketStartsAtItsLimit() {
+        for (int bucket = 0; bucket < ContactMetrics.BUCKETS; bucket++) {
+            final long limit = ContactMetrics.getBucketLimit(bucket);
+            assertEquals(bucket, ContactMetrics.getBucket(limit * 1000));
+            if (bucket > 0) {
+                assertEquals(bucket - 1, ContactMetrics.getBucket(limit * 1000 - 1));
+            }
+        }
+    }
+
+    @Test
+    public void bucketsAreWithinAQuarterOfTheirLimit() {
+        for (int bucket = 4; bucket < ContactMetrics.BUCKETS - 1; bucket++) {
+            final long lower = ContactMetrics.getBucketLimit(bucket);
+            final long upper = ContactMetrics.getBucketLimit(bucket + 1);
+            assertTrue(upper > lower);
+            assertTrue(upper - lower <= lower / 4);
+        }
+    }
+
+    @Test
+    public void longLatenciesGoToTheLastBucket() {
+        assertEquals(ContactMetrics.BUCKETS - 1, ContactMetrics.getBucket(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.database;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+// Checks the SQL and arguments generated by ContactQuery
+public class ContactQueryTest {
+
+    // Columns read by the queries under test
+    private static final String[] COLUMNS = {"_ID", "name"};
+
+    @Test
+    public void noConditionsOnlyExcludesDeletedContacts() {
+        final ContactQuery query = new ContactQuery();
+        assertEquals("SELECT _ID, name FROM contacts_table WHERE deleted = 0", query.getSql(COLUMNS));
+        assertArrayEquals(new String[0], query.getArgs());
+    }
+
+    @Test
+    public void valuesAreBoundAsArguments() {
+        final ContactQuery query = new ContactQuery()
+                .equalTo(ContactQuery.PHONE, "600123456")
+                .equalTo(ContactQuery.VERSION, 3L);
+        assertEquals("SELECT _ID, name FROM contacts_table WHERE deleted = 0 AND phone = ? AND version = ?",
+                query.getSql(COLUMNS));
+        assertArrayEquals(new String[]{"600123456", "3"}, query.getArgs());
+    }
+
+    @Test
+    public void sameConditionsGenerateSameSql() {
+        assertEquals(
+                new ContactQuery().equalTo(ContactQuery.EMAIL, "ana@example.com").getSql(COLUMNS),
+                new ContactQuery().equalTo(ContactQuery.EMAIL, "luis@example.com").getSql(COLUMNS));
+    }
+
+    @Test
+    public void startsWithEscapesWildcards() {
+        final ContactQuery query = new ContactQuery().startsWith(ContactQuery.NAME, "50%_a\\b");
+        assertEquals("SELECT _ID, name FROM contacts_table WHERE deleted = 0 AND name LIKE ? ESCAPE '\\'",
+                query.getSql(COLUMNS));
+        assertArrayEquals(new String[]{"50\\%\\_a\\\\b%"}, query.getArgs());
+    }
+
+    @Test
+    public void inPadsValuesToPowerOfTwo() {
+        final ContactQuery query = new ContactQuery().in(ContactQuery.ID, Arrays.asList(1L, 2L, 3L));
+        assertEquals("SELECT _ID, name FROM contacts_table WHERE deleted = 0 AND _ID IN (?, ?, ?, ?)",
+                query.getSql(COLUMNS));
+        assertArrayEquals(new String[]{"1", "2", "3", "3"}, query.getArgs());
+        assertEquals(query.getSql(COLUMNS),
+                new ContactQuery().in(ContactQuery.ID, Arrays.asList(4L, 5L, 6L, 7L)).getSql(COLUMNS));
+    }
+
+    @Test
+    public void inWithSingleValue() {
+        final ContactQuery query = new ContactQuery().in(ContactQuery.ID, Collections.singletonList(9L));
+        assertEquals("SELECT _ID, name FROM contacts_table WHERE deleted = 0 AND _ID IN (?)", query.getSql(COLUMNS));
+        assertArrayEquals(new String[]{"9"}, query.getArgs());
+    }
+
+    @Test
+    public void orderAndLimit() {
+        final ContactQuery query = new ContactQuery()
+                .startsWith(ContactQuery.NAME, "Jo")
+                .orderBy(ContactQuery.NAME, true)
+                .orderBy(ContactQuery.VERSION, false)
+                .limit(20);
+        assertEquals("SELECT _ID, name FROM contacts_table WHERE deleted = 0 AND name LIKE ? ESCAPE '\\'" +
+                        " ORDER BY sort_key ASC, version DESC, _ID LIMIT ?",
+                query.getSql(COLUMNS));
+        assertArrayEquals(new String[]{"Jo%", "20"}, query.getArgs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullValueIsRejected() {
+        new ContactQuery().equalTo(ContactQuery.NAME, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyInIsRejected() {
+        new ContactQuery().in(ContactQuery.ID, Collections.<Long>emptyList());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyInValuesAreRejected() {
+        new ContactQuery().in(ContactQuery.ID, Collections.nCopies(ContactQuery.MAX_IN_VALUES + 1, 1L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLimitIsRejected() {
+        new ContactQuery().limit(-1);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import labs.dadm.l0405_databases.pojo.Contact;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+// Checks the parsing of contacts from comma-separated values
+public class CsvContactParserTest {
+
+    @Test
+    public void headerIsSkipped() throws IOException {
+        final ContactParser parser = parse("name,email,phone\nAna García,ana@example.com,600123456\n");
+        assertContact(parser.next(), "Ana García", "ana@example.com", "600123456");
+        assertNull(parser.next());
+    }
+
+    @Test
+    public void firstRecordIsKeptWithoutHeader() throws IOException {
+        final ContactParser parser = parse("Ana,ana@example.com,600123456\r\nLuis,luis@example.com,600654321");
+        assertContact(parser.next(), "Ana", "ana@example.com", "600123456");
+        assertContact(parser.next(), "Luis", "luis@example.com", "600654321");
+        assertNull(parser.next());
+    }
+
+    @Test
+    public void quotedFieldsKeepCommasQuotesAndLineBreaks() throws IOException {
+        final ContactParser parser = parse("\"García, Ana\",\"say \"\"hi\"\"\",\"600\n123\"\n");
+        assertContact(parser.next(), "García, Ana", "say \"hi\"", "600\n123");
+        assertNull(parser.next());
+    }
+
+    @Test
+    public void missingFieldsAreEmptyAndFieldsTrimmed() throws IOException {
+        final ContactParser parser = parse("  Ana  ,\nLuis\n");
+        assertContact(parser.next(), "Ana", "", "");
+        assertContact(parser.next(), "Luis", "", "");
+        assertNull(parser.next());
+    }
+
+    @Test
+    public void recordsWithoutNameAreSkipped() throws IOException {
+        final ContactParser parser = parse(",ana@example.com,600123456\n   ,,\nLuis,,\n");
+        assertContact(parser.next(), "Luis", "", "");
+        assertNull(parser.next());
+    }
+
+    @Test
+    public void emptyInput() throws IOException {
+        assertNull(parse("").next());
+    }
+
+    @Test
+    public void writtenFieldsAreParsedBack() throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        CsvContactParser.appendField(builder, "García, \"Ana\"");
+        builder.append(',');
+        CsvContactParser.appendField(builder, "ana@example.com");
+        builder.append(',');
+        CsvContactParser.appendField(builder, "600\r\n123");
+        assertContact(parse(builder.toString()).next(), "García, \"Ana\"", "ana@example.com", "600\r\n123");
+    }
+
+    private static ContactParser parse(String text) {
+        return ContactFormat.CSV.createParser(new StringReader(text));
+    }
+
+    static void assertContact(Contact contact, String name, String email, String phone) {
+        assertEquals(name, contact.getName());
+        assertEquals(email, contact.getEmail());
+        assertEquals(phone, contact.getPhone());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2018. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0405_databases.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static labs.dadm.l0405_databases.io.CsvContactParserTest.assertContact;
+import static org.junit.Assert.assertNull;
+
+// Checks the parsing of contacts from vCard files
+public class VCardContactParserTest {
+
+    @Test
+    public void cardsAreParsedInOrder() throws IOException {
+        final ContactParser parser = parse(
+                "BEGIN:VCARD\r\nVERSION:3.0\r\nFN:Ana García\r\nEMAIL:ana@example.com\r\nTEL:600123456\r\nEND:VCARD\r\n" +
+                        "BEGIN:VCARD\r\nVERSION:3.0\r\nFN:Luis\r\nEND:VCARD\r\n");
+        assertContact(parser.next(), "Ana García", "ana@example.com", "600123456");
+        assertContact(parser.next(), "Luis", "", "");
+        assertNull(parser.next());
+    }
+
+    @Test
+    public void parametersAndGroupsAreIgnored() throws IOException {
+        final ContactParser parser = parse("BEGIN:VCARD\nFN:Ana\nitem1.EMAIL;TYPE=work:ana@example.com\n" +
+                "TEL;TYPE=cell;VALUE=uri:tel:+34600123456\nTEL:963877000\nEND:VCARD\n");
+        // Only the first phone is used
+        assertContact(parser.next(), "Ana", "ana@example.com", "+34600123456");
+    }
+
+    @Test
+    public void structuredNameIsUsedWithoutFormattedName() throws IOException {
+        final ContactParser parser = parse("BEGIN:VCARD\nN:García;Ana;;Dr.;\nEND:VCARD\n");
+        assertContact(parser.next(), "Ana García", "", "");
+    }
+
+    @Test
+    public void foldedLinesAreUnfolded() throws IOException {
+        final ContactParser parser = parse("BEGIN:VCARD\nFN:Ana Gar\n cía\nEMAIL:ana@\n\texample.com\nEND:VCARD\n");
+        assertContact(parser.next(), "Ana García", "ana@example.com", "");
+    }
+
+    @Test
+    public void valuesAreUnescaped() throws IOException {
+        final ContactParser parser = parse("BEGIN:VCARD\nFN:García\\, Ana\\nJr.\nEND:VCARD\n");
+        assertContact(parser.next(), "García, Ana\nJr.", "", "");
+    }
+
+    @Test
+    public void cardsWithoutNameAndLinesOutsideCardsAreSkipped() throws IOException {
+        final ContactParser parser = parse("FN:Outside\nBEGIN:VCARD\nEMAIL:x@example.com\nEND:VCARD\n" +
+                "BEGIN:VCARD\nFN:Luis\nEND:VCARD\n");
+        assertContact(parser.next(), "Luis", "", "");
+        assertNull(parser.next());
+    }
+
+    @Test
+    public void writtenValuesAreParsedBack() throws IOException {
+        final StringBuilder builder = new StringBuilder("BEGIN:VCARD\nFN:");
+        VCardContactParser.appendValue(builder, "García, Ana; \\Jr.\r\n");
+        builder.append("\nEND:VCARD\n");
+        assertContact(parse(builder.toString()).next(), "García, Ana; \\Jr.", "", "");
+    }
+
+    private static ContactParser parse(String text) {
+        return ContactFormat.VCARD.createParser(new StringReader(text));
+    }
+}